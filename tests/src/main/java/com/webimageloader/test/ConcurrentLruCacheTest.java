@@ -0,0 +1,170 @@
+package com.webimageloader.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.webimageloader.util.ConcurrentLruCache;
+import com.webimageloader.util.FrequencySketch;
+
+public class ConcurrentLruCacheTest extends TestCase {
+    public void testEvictsLeastRecentlyUsed() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(3);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+
+        assertEquals("A", cache.get("a"));
+        cache.put("d", "D");
+
+        assertNull(cache.get("b"));
+        assertEquals(Arrays.asList("c", "a", "d"), new ArrayList<String>(cache.snapshot().keySet()));
+        assertEquals(1, cache.evictionCount());
+    }
+
+    public void testSizeOf() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(10) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+        };
+
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        cache.put("c", "cccc");
+
+        assertEquals(8, cache.size());
+        assertFalse(cache.containsKey("a"));
+    }
+
+    public void testRejectedCandidateIsEvicted() {
+        RecordingCache cache = new RecordingCache(2, false);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+
+        assertNull(cache.get("c"));
+        assertEquals("A", cache.get("a"));
+        assertEquals("B", cache.get("b"));
+        assertEquals(Arrays.asList("c"), cache.evicted);
+    }
+
+    public void testReplacingSkipsAdmission() {
+        RecordingCache cache = new RecordingCache(2, false);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("a", "A2");
+
+        assertEquals("A2", cache.get("a"));
+        assertEquals("B", cache.get("b"));
+        assertTrue(cache.evicted.isEmpty());
+    }
+
+    public void testFrequencyAdmission() {
+        final FrequencySketch sketch = new FrequencySketch(1024);
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(2) {
+            @Override
+            protected boolean admit(String candidateKey, String victimKey) {
+                return sketch.frequency(candidateKey) > sketch.frequency(victimKey);
+            }
+        };
+
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("a");
+            sketch.increment("b");
+        }
+        cache.put("a", "A");
+        cache.put("b", "B");
+
+        // Seen once, less popular than the eldest entry
+        sketch.increment("once");
+        cache.put("once", "ONCE");
+        assertFalse(cache.containsKey("once"));
+        assertTrue(cache.containsKey("a"));
+
+        // Popular enough to replace it
+        for (int i = 0; i < 10; i++) {
+            sketch.increment("popular");
+        }
+        cache.put("popular", "POPULAR");
+        assertTrue(cache.containsKey("popular"));
+        assertFalse(cache.containsKey("a"));
+        assertTrue(cache.containsKey("b"));
+    }
+
+    public void testRemove() {
+        RecordingCache cache = new RecordingCache(2, true);
+        cache.put("a", "A");
+
+        assertEquals("A", cache.remove("a"));
+        assertNull(cache.remove("a"));
+        assertEquals(0, cache.size());
+        assertEquals(Arrays.asList("a"), cache.removed);
+        assertTrue(cache.evicted.isEmpty());
+    }
+
+    public void testEvictAll() {
+        RecordingCache cache = new RecordingCache(3, true);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.evictAll();
+
+        assertEquals(0, cache.size());
+        assertEquals(Arrays.asList("a", "b"), cache.evicted);
+    }
+
+    public void testHitAndMissCount() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(2);
+        cache.put("a", "A");
+        cache.get("a");
+        cache.get("b");
+
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+        assertEquals(1, cache.putCount());
+    }
+
+    public void testPeekIsNotAnAccess() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(2);
+        cache.put("a", "A");
+        cache.put("b", "B");
+
+        assertEquals("A", cache.peek("a"));
+        assertNull(cache.peek("c"));
+        assertEquals(0, cache.hitCount());
+        assertEquals(0, cache.missCount());
+
+        // Still the least recently used
+        cache.put("c", "C");
+        assertNull(cache.peek("a"));
+    }
+
+    private static class RecordingCache extends ConcurrentLruCache<String, String> {
+        final List<String> evicted = new ArrayList<String>();
+        final List<String> removed = new ArrayList<String>();
+        private final boolean admit;
+
+        RecordingCache(int maxSize, boolean admit) {
+            super(maxSize);
+
+            this.admit = admit;
+        }
+
+        @Override
+        protected boolean admit(String candidateKey, String victimKey) {
+            return admit;
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, String oldValue, String newValue) {
+            if (evicted) {
+                this.evicted.add(key);
+            } else if (newValue == null) {
+                removed.add(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package com.webimageloader.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import android.graphics.Bitmap;
+
+import com.webimageloader.ImageLoader;
+import com.webimageloader.Request;
+import com.webimageloader.loader.DiskCache;
+import com.webimageloader.loader.DiskLoader;
+import com.webimageloader.loader.Loader;
+import com.webimageloader.loader.LoaderRequest;
+import com.webimageloader.loader.LoaderWork;
+import com.webimageloader.loader.Metadata;
+import com.webimageloader.loader.SchedulingPolicy;
+import com.webimageloader.loader.SegmentDiskCache;
+import com.webimageloader.util.BitmapPool;
+import com.webimageloader.util.InputSupplier;
+
+public class DiskLoaderWriteTest extends TestCase {
+    private static final long MAX_SIZE = 1024 * 1024;
+    private static final long SEGMENT_SIZE = 64 * 1024;
+    private static final long TIMEOUT = 5000;
+
+    // Same as DiskLoader
+    private static final int MAX_PENDING_WRITES = 32;
+
+    private static final Metadata METADATA = new Metadata("image/png", 0, Metadata.NEVER_EXPIRES, "old");
+
+    private File directory;
+    private GatedCache cache;
+    private RecordingPool pool;
+    private DiskLoader loader;
+    private boolean closed;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("diskloader", null);
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        cache = new GatedCache(SegmentDiskCache.open(directory, MAX_SIZE, SEGMENT_SIZE));
+        pool = new RecordingPool();
+
+        loader = DiskLoader.open(new DiskCache.Factory() {
+            @Override
+            public DiskCache open(File directory, long maxSize) {
+                return cache;
+            }
+        }, directory, MAX_SIZE, 1, SchedulingPolicy.FIFO);
+        loader.setBitmapPool(pool);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cache.open.countDown();
+        if (!closed) {
+            loader.close();
+        }
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testServesPendingWrite() throws Exception {
+        blockWrites();
+
+        Bitmap a = createBitmap();
+        assertSame(a, load("a", new SourceLoader(a)).bitmap);
+        assertEquals(1, pool.getHeld(a));
+
+        // Not written yet, but still there
+        assertSame(a, load("a", new SourceLoader()).bitmap);
+
+        assertWritten(2);
+    }
+
+    public void testReplacedWriteIsReleased() throws Exception {
+        blockWrites();
+
+        Bitmap a1 = createBitmap();
+        Bitmap a2 = createBitmap();
+        load("a", new SourceLoader(a1), Request.Flag.IGNORE_CACHE);
+        load("a", new SourceLoader(a2), Request.Flag.IGNORE_CACHE);
+
+        // Replaced before it was written
+        assertEquals(0, pool.getHeld(a1));
+        assertEquals(1, pool.getHeld(a2));
+
+        // Only the newest one is written
+        assertWritten(2);
+    }
+
+    public void testDropsOldestWrite() throws Exception {
+        blockWrites();
+
+        List<Bitmap> bitmaps = new ArrayList<Bitmap>();
+        for (int i = 0; i <= MAX_PENDING_WRITES; i++) {
+            Bitmap b = createBitmap();
+            bitmaps.add(b);
+            load("url" + i, new SourceLoader(b));
+        }
+
+        assertEquals(0, pool.getHeld(bitmaps.get(0)));
+        assertEquals(1, pool.getHeld(bitmaps.get(1)));
+
+        assertWritten(1 + MAX_PENDING_WRITES);
+    }
+
+    public void testNotModifiedRewritesPendingWrite() throws Exception {
+        blockWrites();
+
+        Bitmap a = createBitmap();
+        load("a", new SourceLoader(a));
+
+        Metadata updated = new Metadata("image/png", 0, Metadata.NEVER_EXPIRES, "new");
+        Result result = load("a", new SourceLoader(updated), Request.Flag.IGNORE_CACHE);
+        assertSame(updated, result.notModified);
+
+        // Queued again with the new metadata, held once
+        assertEquals(1, pool.getHeld(a));
+
+        assertWritten(2);
+
+        result = load("a", new SourceLoader());
+        assertEquals("new", result.streamMetadata.getEtag());
+    }
+
+    public void testCloseReleasesPendingWrites() throws Exception {
+        blockWrites();
+
+        load("a", new SourceLoader(createBitmap()));
+        load("b", new SourceLoader(createBitmap()));
+
+        // Interrupts the blocked write too
+        loader.close();
+        closed = true;
+
+        assertEquals(0, pool.getHeldCount());
+    }
+
+    /**
+     * Load an image which blocks the write thread, later writes queue up
+     * behind it
+     */
+    private void blockWrites() throws Exception {
+        load("blocker", new SourceLoader(createBitmap()));
+        assertTrue(cache.entered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Let the writes through and check that each bitmap was released again
+     */
+    private void assertWritten(int edits) throws InterruptedException {
+        cache.open.countDown();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (pool.getHeldCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, pool.getHeldCount());
+        assertEquals(edits, cache.getEditCount());
+    }
+
+    private Result load(String url, Loader source, Request.Flag... flags) throws InterruptedException {
+        EnumSet<Request.Flag> flagSet = EnumSet.noneOf(Request.Flag.class);
+        Collections.addAll(flagSet, flags);
+
+        Result result = new Result();
+        LoaderRequest request = new LoaderRequest(url, null, flagSet, null, Request.Priority.VISIBLE);
+        LoaderWork work = new LoaderWork(result, new EmptyProgressListener(), Request.Priority.VISIBLE);
+
+        List<Loader> chain = new ArrayList<Loader>();
+        chain.add(loader);
+        chain.add(source);
+        work.start(chain, request);
+
+        assertTrue(result.done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertNull(result.error);
+
+        return result;
+    }
+
+    private static Bitmap createBitmap() {
+        return Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Stands in for the network, delivers a bitmap, a not modified answer
+     * or fails if it has neither
+     */
+    private static class SourceLoader implements Loader {
+        private final Bitmap bitmap;
+        private final Metadata notModified;
+
+        SourceLoader() {
+            this.bitmap = null;
+            this.notModified = null;
+        }
+
+        SourceLoader(Bitmap bitmap) {
+            this.bitmap = bitmap;
+            this.notModified = null;
+        }
+
+        SourceLoader(Metadata notModified) {
+            this.bitmap = null;
+            this.notModified = notModified;
+        }
+
+        @Override
+        public void load(LoaderWork.Manager manager, LoaderRequest request) {
+            if (bitmap != null) {
+                manager.deliverBitmap(bitmap, METADATA);
+            } else if (notModified != null) {
+                manager.deliverNotMotified(notModified);
+            } else {
+                manager.deliverError(new IOException("Unexpected load of " + request));
+            }
+        }
+    }
+
+    /**
+     * Blocks every edit until opened, like a slow disk
+     */
+    private static class GatedCache implements DiskCache {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch open = new CountDownLatch(1);
+
+        private final DiskCache cache;
+        private int editCount;
+
+        GatedCache(DiskCache cache) {
+            this.cache = cache;
+        }
+
+        synchronized int getEditCount() {
+            return editCount;
+        }
+
+        @Override
+        public Snapshot get(String key) throws IOException {
+            return cache.get(key);
+        }
+
+        @Override
+        public Editor edit(String key) throws IOException {
+            entered.countDown();
+
+            try {
+                open.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+
+            synchronized (this) {
+                editCount++;
+            }
+
+            return cache.edit(key);
+        }
+
+        @Override
+        public boolean remove(String key) throws IOException {
+            return cache.remove(key);
+        }
+
+        @Override
+        public void close() throws IOException {
+            cache.close();
+        }
+    }
+
+    /**
+     * Counts how often each bitmap is held
+     */
+    private static class RecordingPool extends BitmapPool {
+        private final Map<Bitmap, Integer> held = new IdentityHashMap<Bitmap, Integer>();
+
+        RecordingPool() {
+            super((int) MAX_SIZE);
+        }
+
+        @Override
+        public synchronized void hold(Bitmap b) {
+            super.hold(b);
+
+            held.put(b, getHeld(b) + 1);
+        }
+
+        @Override
+        public synchronized void release(Bitmap b) {
+            super.release(b);
+
+            int count = getHeld(b);
+            assertTrue("Released more often than held", count > 0);
+            if (count == 1) {
+                held.remove(b);
+            } else {
+                held.put(b, count - 1);
+            }
+        }
+
+        synchronized int getHeld(Bitmap b) {
+            Integer count = held.get(b);
+            return count != null ? count : 0;
+        }
+
+        synchronized int getHeldCount() {
+            return held.size();
+        }
+    }
+
+    private static class Result implements Loader.Listener {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        volatile Bitmap bitmap;
+        volatile Metadata notModified;
+        volatile Metadata streamMetadata;
+        volatile Throwable error;
+
+        @Override
+        public void onStreamLoaded(InputSupplier input, Metadata metadata) {
+            streamMetadata = metadata;
+            done.countDown();
+        }
+
+        @Override
+        public void onBitmapLoaded(Bitmap b, Metadata metadata) {
+            bitmap = b;
+            done.countDown();
+        }
+
+        @Override
+        public void onNotModified(Metadata metadata) {
+            notModified = metadata;
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            done.countDown();
+        }
+    }
+
+    private static class EmptyProgressListener implements ImageLoader.ProgressListener {
+        @Override
+        public void onProgress(float value) {}
+    }
+}
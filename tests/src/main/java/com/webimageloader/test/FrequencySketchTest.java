@@ -0,0 +1,72 @@
+package com.webimageloader.test;
+
+import junit.framework.TestCase;
+
+import com.webimageloader.util.FrequencySketch;
+
+public class FrequencySketchTest extends TestCase {
+    public void testUnseen() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+
+        assertEquals(0, sketch.frequency("a"));
+    }
+
+    public void testIncrement() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("a");
+        }
+
+        assertEquals(5, sketch.frequency("a"));
+        assertEquals(0, sketch.frequency("b"));
+    }
+
+    public void testSaturates() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("a");
+        }
+
+        assertEquals(15, sketch.frequency("a"));
+    }
+
+    public void testHalvesAfterSampleSize() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 10; i++) {
+            sketch.increment("a");
+        }
+
+        // The last of these reaches the sample size
+        for (int i = 0; i < 54; i++) {
+            sketch.increment("key" + i);
+        }
+
+        int frequency = sketch.frequency("a");
+        assertTrue("Frequency was " + frequency, frequency >= 5 && frequency <= 7);
+    }
+
+    public void testHotKeyStandsOut() {
+        FrequencySketch sketch = new FrequencySketch(4096);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment("hot");
+        }
+
+        for (int i = 0; i < 500; i++) {
+            sketch.increment("cold" + i);
+        }
+
+        int hot = sketch.frequency("hot");
+        for (int i = 0; i < 500; i++) {
+            assertTrue(hot > sketch.frequency("cold" + i));
+        }
+    }
+
+    public void testInvalidSampleSize() {
+        try {
+            new FrequencySketch(0);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
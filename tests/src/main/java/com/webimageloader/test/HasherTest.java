@@ -0,0 +1,48 @@
+package com.webimageloader.test;
+
+import junit.framework.TestCase;
+
+import com.webimageloader.util.Hasher;
+
+public class HasherTest extends TestCase {
+    // MurmurHash3 x64 128-bit with seed 0 of the UTF-8 bytes, covering every
+    // tail length. Same as Guava's Hashing.murmur3_128().
+    private static final String[][] MURMUR3_VECTORS = {
+        { "", "00000000000000000000000000000000" },
+        { "a", "897859f6655555855a890e51483ab5e6" },
+        { "ab", "2e1bed16ea118b93add4529b01a75ee6" },
+        { "abc", "6778ad3f3f3f96b4522dca264174a23b" },
+        { "abcdefg", "99e49ec09f2fcda6b6bb55b13aa23a1c" },
+        { "abcdefgh", "028cef37b00a8acca14069eb600d8948" },
+        { "abcdefghi", "64793cf1cfc0470533e041b7f53db579" },
+        { "abcdefghijklmno", "fb2f0c895124be8a612a969c2d8c546a" },
+        { "abcdefghijklmnop", "23b74c22a33ccac41aeb31b395d63343" },
+        { "abcdefghijklmnopq", "57a6bd887f746475e40d11a19d49daec" },
+        { "The quick brown fox jumps over the lazy dog", "6c1b07bc7bbc4be347939ac4a93c437a" },
+        // Two and four byte characters
+        { "http://example.com/images/\u00e5\u00e4\u00f6\ud83d\ude00.png", "8992ba172c030c71e6643cb5eb77ccc9" },
+    };
+
+    public void testMurmur3() {
+        Hasher hasher = new Hasher(Hasher.Algorithm.MURMUR3_128);
+
+        for (String[] vector : MURMUR3_VECTORS) {
+            assertEquals(vector[0], vector[1], hasher.hash(vector[0]));
+        }
+    }
+
+    public void testMurmur3Repeated() {
+        // The buffers are reused, a long key must not leak into a shorter one
+        Hasher hasher = new Hasher(Hasher.Algorithm.MURMUR3_128);
+        hasher.hash("The quick brown fox jumps over the lazy dog");
+
+        assertEquals("6778ad3f3f3f96b4522dca264174a23b", hasher.hash("abc"));
+    }
+
+    public void testSha1() {
+        Hasher hasher = new Hasher();
+
+        assertEquals(Hasher.Algorithm.SHA1, hasher.getAlgorithm());
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", hasher.hash("abc"));
+    }
+}
@@ -0,0 +1,88 @@
+package com.webimageloader.test;
+
+import junit.framework.TestCase;
+
+import com.webimageloader.util.HeaderParser;
+import com.webimageloader.util.HeaderParser.CacheControl;
+
+public class HeaderParserTest extends TestCase {
+    public void testMissing() {
+        CacheControl cacheControl = HeaderParser.parseCacheControl(null);
+
+        assertEquals(CacheControl.NOT_SET, cacheControl.maxAge);
+        assertEquals(CacheControl.NOT_SET, cacheControl.staleWhileRevalidate);
+        assertFalse(cacheControl.noCache);
+        assertFalse(cacheControl.noStore);
+        assertFalse(cacheControl.mustRevalidate);
+        assertFalse(cacheControl.immutable);
+    }
+
+    public void testMaxAge() {
+        assertEquals(3600, HeaderParser.parseCacheControl("public, max-age=3600").maxAge);
+        assertEquals(60, HeaderParser.parseCacheControl("MAX-AGE = 60").maxAge);
+    }
+
+    public void testInvalidMaxAge() {
+        assertEquals(CacheControl.NOT_SET, HeaderParser.parseCacheControl("max-age=soon").maxAge);
+        assertEquals(CacheControl.NOT_SET, HeaderParser.parseCacheControl("max-age=-5").maxAge);
+        assertEquals(CacheControl.NOT_SET, HeaderParser.parseCacheControl("max-age").maxAge);
+    }
+
+    public void testLargeMaxAgeIsClamped() {
+        long max = Integer.MAX_VALUE;
+
+        assertEquals(max, HeaderParser.parseCacheControl("max-age=9223372036854775807").maxAge);
+        assertEquals(max, HeaderParser.parseCacheControl("max-age=99999999999999999999999").maxAge);
+        assertEquals(max, HeaderParser.parseCacheControl("stale-while-revalidate=10000000000").staleWhileRevalidate);
+
+        // Still in the future once converted to milliseconds
+        assertTrue(System.currentTimeMillis() + max * 1000 > System.currentTimeMillis());
+    }
+
+    public void testQuotedValues() {
+        CacheControl cacheControl = HeaderParser.parseCacheControl("max-age=\"120\", private=\"Set-Cookie, X-Token\", no-store");
+
+        assertEquals(120, cacheControl.maxAge);
+        // The comma inside the quotes doesn't start a new directive
+        assertTrue(cacheControl.noStore);
+        assertFalse(cacheControl.noCache);
+    }
+
+    public void testNoCacheWithoutValue() {
+        assertTrue(HeaderParser.parseCacheControl("no-cache").noCache);
+        assertTrue(HeaderParser.parseCacheControl("max-age=0, no-cache").noCache);
+    }
+
+    public void testNoCacheWithFieldNames() {
+        // Only the listed headers may not be reused, the image itself may
+        CacheControl cacheControl = HeaderParser.parseCacheControl("no-cache=\"Set-Cookie\", max-age=60");
+
+        assertFalse(cacheControl.noCache);
+        assertEquals(60, cacheControl.maxAge);
+    }
+
+    public void testImmutable() {
+        CacheControl cacheControl = HeaderParser.parseCacheControl("max-age=31536000, immutable");
+
+        assertTrue(cacheControl.immutable);
+        assertEquals(31536000, cacheControl.maxAge);
+    }
+
+    public void testStaleWhileRevalidate() {
+        CacheControl cacheControl = HeaderParser.parseCacheControl("max-age=1, stale-while-revalidate=59");
+
+        assertEquals(1, cacheControl.maxAge);
+        assertEquals(59, cacheControl.staleWhileRevalidate);
+    }
+
+    public void testMustRevalidate() {
+        assertTrue(HeaderParser.parseCacheControl("must-revalidate").mustRevalidate);
+    }
+
+    public void testUnknownDirectivesIgnored() {
+        CacheControl cacheControl = HeaderParser.parseCacheControl("s-maxage=600, community=\"UCI\", max-age=30");
+
+        assertEquals(30, cacheControl.maxAge);
+        assertFalse(cacheControl.noStore);
+    }
+}
@@ -0,0 +1,308 @@
+package com.webimageloader.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.webimageloader.util.ImageHeaderParser;
+import com.webimageloader.util.ImageHeaderParser.Header;
+
+public class ImageHeaderParserTest extends TestCase {
+    private static final int ORIENTATION_ROTATE_90 = 6;
+
+    public void testPng() throws IOException {
+        Header header = parse(png(640, 480, false, false));
+
+        assertHeader(header, "image/png", 640, 480);
+        assertFalse(header.progressive);
+        assertFalse(header.animated);
+    }
+
+    public void testInterlacedPng() throws IOException {
+        Header header = parse(png(16, 16, true, false));
+
+        assertHeader(header, "image/png", 16, 16);
+        assertTrue(header.progressive);
+    }
+
+    public void testAnimatedPng() throws IOException {
+        Header header = parse(png(16, 16, false, true));
+
+        assertHeader(header, "image/png", 16, 16);
+        assertTrue(header.animated);
+    }
+
+    public void testJpeg() throws IOException {
+        Image image = new Image();
+        image.writeShort(0xffd8);
+        // JFIF segment before the frame
+        image.writeShort(0xffe0);
+        image.writeShort(16);
+        image.write(new byte[14]);
+        startOfFrame(image, 0xc0, 200, 300);
+
+        Header header = parse(image.toByteArray());
+
+        assertHeader(header, "image/jpeg", 200, 300);
+        assertFalse(header.progressive);
+        assertEquals(ImageHeaderParser.ORIENTATION_UNDEFINED, header.orientation);
+    }
+
+    public void testProgressiveJpeg() throws IOException {
+        Image image = new Image();
+        image.writeShort(0xffd8);
+        startOfFrame(image, 0xc2, 200, 300);
+
+        Header header = parse(image.toByteArray());
+
+        assertHeader(header, "image/jpeg", 200, 300);
+        assertTrue(header.progressive);
+    }
+
+    public void testJpegExifOrientationBigEndian() throws IOException {
+        Header header = parse(exifJpeg(false));
+
+        assertHeader(header, "image/jpeg", 200, 300);
+        assertEquals(ORIENTATION_ROTATE_90, header.orientation);
+    }
+
+    public void testJpegExifOrientationLittleEndian() throws IOException {
+        Header header = parse(exifJpeg(true));
+
+        assertHeader(header, "image/jpeg", 200, 300);
+        assertEquals(ORIENTATION_ROTATE_90, header.orientation);
+    }
+
+    public void testGif() throws IOException {
+        Image image = gifHeader(320, 200);
+        imageDescriptor(image, true);
+
+        Header header = parse(image.toByteArray());
+
+        assertHeader(header, "image/gif", 320, 200);
+        assertTrue(header.progressive);
+        assertFalse(header.animated);
+    }
+
+    public void testAnimatedGif() throws IOException {
+        Image image = gifHeader(320, 200);
+        // Looping application extension
+        image.writeByte(0x21);
+        image.writeByte(0xff);
+        image.writeByte(11);
+        image.writeBytes("NETSCAPE2.0");
+        image.write(new byte[] { 3, 1, 0, 0, 0 });
+        imageDescriptor(image, false);
+
+        Header header = parse(image.toByteArray());
+
+        assertHeader(header, "image/gif", 320, 200);
+        assertFalse(header.progressive);
+        assertTrue(header.animated);
+    }
+
+    public void testLossyWebp() throws IOException {
+        Image image = webpHeader("VP8 ");
+        // Frame tag and start code
+        image.write(new byte[] { 0, 0, 0, (byte) 0x9d, 0x01, 0x2a });
+        image.writeShortLittleEndian(400);
+        image.writeShortLittleEndian(300);
+
+        assertHeader(parse(image.toByteArray()), "image/webp", 400, 300);
+    }
+
+    public void testLosslessWebp() throws IOException {
+        Image image = webpHeader("VP8L");
+        image.writeByte(0x2f);
+        image.writeIntLittleEndian((400 - 1) | (300 - 1) << 14);
+
+        assertHeader(parse(image.toByteArray()), "image/webp", 400, 300);
+    }
+
+    public void testAnimatedWebp() throws IOException {
+        Image image = webpHeader("VP8X");
+        image.writeByte(0x02);
+        image.write(new byte[3]);
+        image.writeUInt24LittleEndian(400 - 1);
+        image.writeUInt24LittleEndian(300 - 1);
+
+        Header header = parse(image.toByteArray());
+
+        assertHeader(header, "image/webp", 400, 300);
+        assertTrue(header.animated);
+    }
+
+    public void testUnknownFormat() throws IOException {
+        assertNull(parse("This is not an image".getBytes("US-ASCII")));
+    }
+
+    public void testTruncated() throws IOException {
+        byte[] png = png(640, 480, false, false);
+        byte[] truncated = new byte[12];
+        System.arraycopy(png, 0, truncated, 0, truncated.length);
+
+        assertNull(parse(truncated));
+    }
+
+    public void testLimit() throws IOException {
+        Image image = new Image();
+        image.writeShort(0xffd8);
+        // Large segment before the frame
+        image.writeShort(0xffe2);
+        image.writeShort(1002);
+        image.write(new byte[1000]);
+        startOfFrame(image, 0xc0, 200, 300);
+        byte[] data = image.toByteArray();
+
+        assertNull(ImageHeaderParser.parse(new ByteArrayInputStream(data), 512));
+        assertHeader(ImageHeaderParser.parse(new ByteArrayInputStream(data), 2048), "image/jpeg", 200, 300);
+    }
+
+    private static Header parse(byte[] data) throws IOException {
+        return ImageHeaderParser.parse(new ByteArrayInputStream(data));
+    }
+
+    private static void assertHeader(Header header, String mimeType, int width, int height) {
+        assertNotNull(header);
+        assertEquals(mimeType, header.mimeType);
+        assertEquals(width, header.width);
+        assertEquals(height, header.height);
+    }
+
+    private static byte[] png(int width, int height, boolean interlaced, boolean animated) throws IOException {
+        Image image = new Image();
+        image.writeInt(0x89504e47);
+        image.writeInt(0x0d0a1a0a);
+
+        image.writeInt(13);
+        image.writeBytes("IHDR");
+        image.writeInt(width);
+        image.writeInt(height);
+        // Bit depth, color type, compression and filter method
+        image.write(new byte[] { 8, 6, 0, 0 });
+        image.writeByte(interlaced ? 1 : 0);
+        // CRC
+        image.writeInt(0);
+
+        if (animated) {
+            image.writeInt(8);
+            image.writeBytes("acTL");
+            image.writeInt(2);
+            image.writeInt(0);
+            image.writeInt(0);
+        }
+
+        image.writeInt(0);
+        image.writeBytes("IDAT");
+
+        return image.toByteArray();
+    }
+
+    private static void startOfFrame(Image image, int marker, int width, int height) throws IOException {
+        image.writeByte(0xff);
+        image.writeByte(marker);
+        image.writeShort(17);
+        image.writeByte(8);
+        image.writeShort(height);
+        image.writeShort(width);
+        image.write(new byte[10]);
+    }
+
+    private static byte[] exifJpeg(boolean littleEndian) throws IOException {
+        Image tiff = new Image();
+        if (littleEndian) {
+            tiff.writeShort(0x4949);
+            tiff.writeShortLittleEndian(42);
+            tiff.writeIntLittleEndian(8);
+            tiff.writeShortLittleEndian(1);
+            tiff.writeShortLittleEndian(0x0112);
+            tiff.writeShortLittleEndian(3);
+            tiff.writeIntLittleEndian(1);
+            tiff.writeShortLittleEndian(ORIENTATION_ROTATE_90);
+            tiff.writeShort(0);
+        } else {
+            tiff.writeShort(0x4d4d);
+            tiff.writeShort(42);
+            tiff.writeInt(8);
+            tiff.writeShort(1);
+            tiff.writeShort(0x0112);
+            tiff.writeShort(3);
+            tiff.writeInt(1);
+            tiff.writeShort(ORIENTATION_ROTATE_90);
+            tiff.writeShort(0);
+        }
+        // No next IFD
+        tiff.writeInt(0);
+        byte[] tiffData = tiff.toByteArray();
+
+        Image image = new Image();
+        image.writeShort(0xffd8);
+        image.writeShort(0xffe1);
+        image.writeShort(2 + 6 + tiffData.length);
+        image.writeBytes("Exif");
+        image.writeShort(0);
+        image.write(tiffData);
+        startOfFrame(image, 0xc0, 200, 300);
+
+        return image.toByteArray();
+    }
+
+    private static Image gifHeader(int width, int height) throws IOException {
+        Image image = new Image();
+        image.writeBytes("GIF89a");
+        image.writeShortLittleEndian(width);
+        image.writeShortLittleEndian(height);
+        // No global color table, background color and aspect ratio
+        image.write(new byte[3]);
+
+        return image;
+    }
+
+    private static void imageDescriptor(Image image, boolean interlaced) throws IOException {
+        image.writeByte(0x2c);
+        image.write(new byte[8]);
+        image.writeByte(interlaced ? 0x40 : 0);
+    }
+
+    private static Image webpHeader(String chunk) throws IOException {
+        Image image = new Image();
+        image.writeBytes("RIFF");
+        image.writeInt(0);
+        image.writeBytes("WEBP");
+        image.writeBytes(chunk);
+        image.writeInt(0);
+
+        return image;
+    }
+
+    /**
+     * Builds image data, big endian unless told otherwise
+     */
+    private static class Image extends DataOutputStream {
+        Image() {
+            super(new ByteArrayOutputStream());
+        }
+
+        void writeShortLittleEndian(int v) throws IOException {
+            write(v & 0xff);
+            write(v >>> 8 & 0xff);
+        }
+
+        void writeUInt24LittleEndian(int v) throws IOException {
+            writeShortLittleEndian(v & 0xffff);
+            write(v >>> 16 & 0xff);
+        }
+
+        void writeIntLittleEndian(int v) throws IOException {
+            writeShortLittleEndian(v & 0xffff);
+            writeShortLittleEndian(v >>> 16);
+        }
+
+        byte[] toByteArray() {
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.webimageloader.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.webimageloader.loader.Metadata;
+import com.webimageloader.util.HeaderParser;
+import com.webimageloader.util.ImageHeaderParser;
+
+public class MetadataTest extends TestCase {
+    private static final long LAST_MODIFIED = 1357000000000L;
+    private static final long EXPIRES = 1358000000000L;
+
+    public void testReadUnversioned() throws IOException {
+        // Written before the metadata had a version
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("image/jpeg");
+        out.writeLong(LAST_MODIFIED);
+        out.writeLong(EXPIRES);
+        out.writeUTF("\"abc\"");
+
+        Metadata metadata = read(bytes.toByteArray());
+
+        assertEquals("image/jpeg", metadata.getContentType());
+        assertEquals(LAST_MODIFIED, metadata.getLastModified());
+        assertEquals(EXPIRES, metadata.getExpires());
+        assertEquals("\"abc\"", metadata.getEtag());
+        assertNull(metadata.getImageHeader());
+        assertDefaultCacheControl(metadata);
+    }
+
+    public void testReadVersion2() throws IOException {
+        // Has the image header but no cache control directives
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(0xffff);
+        out.writeByte(2);
+        out.writeUTF("image/png");
+        out.writeLong(LAST_MODIFIED);
+        out.writeLong(EXPIRES);
+        out.writeUTF("");
+        out.writeBoolean(true);
+        out.writeUTF("image/png");
+        out.writeInt(640);
+        out.writeInt(480);
+        out.writeInt(ImageHeaderParser.ORIENTATION_UNDEFINED);
+        out.writeBoolean(true);
+        out.writeBoolean(false);
+
+        Metadata metadata = read(bytes.toByteArray());
+
+        assertEquals("image/png", metadata.getContentType());
+        assertEquals(LAST_MODIFIED, metadata.getLastModified());
+        assertEquals(EXPIRES, metadata.getExpires());
+
+        ImageHeaderParser.Header header = metadata.getImageHeader();
+        assertNotNull(header);
+        assertEquals(640, header.width);
+        assertEquals(480, header.height);
+        assertTrue(header.progressive);
+        assertFalse(header.animated);
+
+        assertDefaultCacheControl(metadata);
+    }
+
+    public void testRoundTrip() throws IOException {
+        ImageHeaderParser.Header header = new ImageHeaderParser.Header("image/webp", 400, 300, 6, false, true);
+        HeaderParser.CacheControl cacheControl = HeaderParser.parseCacheControl("no-store, must-revalidate, stale-while-revalidate=30");
+        Metadata written = new Metadata("image/webp", LAST_MODIFIED, EXPIRES, "etag", header).withCacheControl(cacheControl);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        written.writeTo(bytes);
+        Metadata metadata = read(bytes.toByteArray());
+
+        assertEquals("image/webp", metadata.getContentType());
+        assertEquals(LAST_MODIFIED, metadata.getLastModified());
+        assertEquals(EXPIRES, metadata.getExpires());
+        assertEquals("etag", metadata.getEtag());
+
+        assertEquals(6, metadata.getImageHeader().orientation);
+        assertTrue(metadata.getImageHeader().animated);
+
+        assertTrue(metadata.isNoStore());
+        assertTrue(metadata.isMustRevalidate());
+        assertEquals(30 * 1000, metadata.getStaleWhileRevalidate());
+    }
+
+    public void testUpgradeOnWrite() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("image/gif");
+        out.writeLong(LAST_MODIFIED);
+        out.writeLong(EXPIRES);
+        out.writeUTF("");
+
+        // Reading an old record and writing it again gives the current version
+        ByteArrayOutputStream upgraded = new ByteArrayOutputStream();
+        read(bytes.toByteArray()).writeTo(upgraded);
+        Metadata metadata = read(upgraded.toByteArray());
+
+        assertEquals("image/gif", metadata.getContentType());
+        assertEquals(EXPIRES, metadata.getExpires());
+        assertDefaultCacheControl(metadata);
+    }
+
+    private static Metadata read(byte[] data) throws IOException {
+        return Metadata.from(new ByteArrayInputStream(data));
+    }
+
+    private static void assertDefaultCacheControl(Metadata metadata) {
+        assertFalse(metadata.isNoStore());
+        assertFalse(metadata.isMustRevalidate());
+        assertEquals(Metadata.STALE_NOT_SET, metadata.getStaleWhileRevalidate());
+    }
+}
@@ -0,0 +1,184 @@
+package com.webimageloader.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import android.graphics.Bitmap;
+
+import com.webimageloader.Request;
+import com.webimageloader.loader.Loader;
+import com.webimageloader.loader.LoaderManager;
+import com.webimageloader.loader.LoaderRequest;
+import com.webimageloader.loader.LoaderWork;
+import com.webimageloader.loader.PendingRequests;
+
+public class PendingRequestsTest extends TestCase {
+    private static final long TIMEOUT = 5000;
+
+    private PendingRequests pendingRequests;
+
+    @Override
+    protected void setUp() throws Exception {
+        pendingRequests = new PendingRequests(null, null);
+    }
+
+    public void testSharesWork() throws Exception {
+        RecordingListener l1 = new RecordingListener();
+        RecordingListener l2 = new RecordingListener();
+
+        LoaderWork work = pendingRequests.addRequest("tag1", request("a"), l1);
+        assertNotNull(work);
+        assertNull(pendingRequests.addRequest("tag2", request("a"), l2));
+
+        Bitmap b = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+        deliver(work, "a", b);
+
+        assertSame(b, l1.loaded);
+        assertSame(b, l2.loaded);
+        assertEquals(1, l1.loadedCount.get());
+        assertEquals(1, l2.loadedCount.get());
+
+        // Done, a new request gets new work
+        assertNotNull(pendingRequests.addRequest("tag1", request("a"), l1));
+    }
+
+    public void testJoiningRaisesPriority() {
+        LoaderWork work = pendingRequests.addRequest("tag1", request("a", Request.Priority.PREFETCH), new RecordingListener());
+        assertNull(pendingRequests.addRequest("tag2", request("a", Request.Priority.VISIBLE), new RecordingListener()));
+
+        assertEquals(Request.Priority.VISIBLE, work.getPriority());
+    }
+
+    public void testSameRequestForSameTagIsStillPending() {
+        LoaderWork work = pendingRequests.addRequest("tag", request("a"), new RecordingListener());
+
+        assertNull(pendingRequests.addRequest("tag", request("a"), new RecordingListener()));
+        assertFalse(work.isCancelled());
+    }
+
+    public void testNewRequestForTagCancelsOld() {
+        LoaderWork a = pendingRequests.addRequest("tag", request("a"), new RecordingListener());
+        LoaderWork b = pendingRequests.addRequest("tag", request("b"), new RecordingListener());
+
+        assertNotNull(b);
+        assertTrue(a.isCancelled());
+        assertFalse(b.isCancelled());
+    }
+
+    public void testCancelledOnceLastTagIsCancelled() {
+        LoaderWork work = pendingRequests.addRequest("tag1", request("a"), new RecordingListener());
+        pendingRequests.addRequest("tag2", request("a"), new RecordingListener());
+
+        pendingRequests.cancel("tag1");
+        assertFalse(work.isCancelled());
+
+        pendingRequests.cancel("tag2");
+        assertTrue(work.isCancelled());
+
+        // Replaced instead of joining the cancelled work
+        LoaderWork replaced = pendingRequests.addRequest("tag1", request("a"), new RecordingListener());
+        assertNotNull(replaced);
+        assertTrue(replaced != work);
+    }
+
+    public void testRequestWithoutTagIsNeverCancelled() {
+        LoaderWork work = pendingRequests.addRequest(null, request("a"), new RecordingListener());
+        pendingRequests.addRequest("tag", request("a"), new RecordingListener());
+
+        pendingRequests.cancel("tag");
+        assertFalse(work.isCancelled());
+    }
+
+    public void testConcurrentAddAndCancel() throws Exception {
+        final int threadCount = 4;
+        final int iterations = 2000;
+
+        final List<LoaderWork> works = Collections.synchronizedList(new ArrayList<LoaderWork>());
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < threadCount; i++) {
+            final String tag = "tag" + i;
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    for (int j = 0; j < iterations; j++) {
+                        LoaderWork work = pendingRequests.addRequest(tag, request("a"), new RecordingListener());
+                        if (work != null) {
+                            works.add(work);
+                        }
+
+                        pendingRequests.cancel(tag);
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+
+        start.countDown();
+        for (Thread t : threads) {
+            t.join(TIMEOUT);
+        }
+
+        // Every tag was cancelled, so is all work
+        assertFalse(works.isEmpty());
+        synchronized (works) {
+            for (LoaderWork work : works) {
+                assertTrue(work.isCancelled());
+            }
+        }
+    }
+
+    private static void deliver(LoaderWork work, String url, final Bitmap b) {
+        List<Loader> chain = new ArrayList<Loader>();
+        chain.add(new Loader() {
+            @Override
+            public void load(LoaderWork.Manager manager, LoaderRequest request) {
+                manager.deliverBitmap(b, null);
+            }
+        });
+
+        work.start(chain, request(url));
+    }
+
+    private static LoaderRequest request(String url) {
+        return request(url, Request.Priority.VISIBLE);
+    }
+
+    private static LoaderRequest request(String url, Request.Priority priority) {
+        return new LoaderRequest(url, null, EnumSet.noneOf(Request.Flag.class), null, priority);
+    }
+
+    private static class RecordingListener implements LoaderManager.Listener {
+        final AtomicInteger loadedCount = new AtomicInteger();
+        volatile Bitmap loaded;
+
+        @Override
+        public void onLoaded(Bitmap b) {
+            loaded = b;
+            loadedCount.incrementAndGet();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            fail(t.toString());
+        }
+
+        @Override
+        public void onProgress(float value) {}
+    }
+}
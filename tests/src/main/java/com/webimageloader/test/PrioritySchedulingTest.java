@@ -0,0 +1,177 @@
+package com.webimageloader.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import android.graphics.Bitmap;
+
+import com.webimageloader.ImageLoader;
+import com.webimageloader.Request;
+import com.webimageloader.loader.Loader;
+import com.webimageloader.loader.LoaderRequest;
+import com.webimageloader.loader.LoaderWork;
+import com.webimageloader.loader.Metadata;
+import com.webimageloader.loader.SchedulingPolicy;
+import com.webimageloader.loader.SimpleBackgroundLoader;
+import com.webimageloader.util.InputSupplier;
+
+public class PrioritySchedulingTest extends TestCase {
+    private static final long TIMEOUT = 5000;
+
+    private RecordingLoader loader;
+
+    @Override
+    protected void setUp() throws Exception {
+        loader = new RecordingLoader(SchedulingPolicy.PRIORITY);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        loader.close();
+    }
+
+    public void testHigherPriorityFirst() throws Exception {
+        loader.block();
+
+        start("prefetch", Request.Priority.PREFETCH);
+        start("visible", Request.Priority.VISIBLE);
+        start("background", Request.Priority.BACKGROUND);
+
+        loader.unblock();
+
+        assertEquals(list("blocker", "visible", "prefetch", "background"), loader.awaitLoaded(4));
+    }
+
+    public void testRaisedPriorityIsRequeued() throws Exception {
+        loader.block();
+
+        LoaderWork prefetch = start("prefetch", Request.Priority.PREFETCH);
+        start("visible1", Request.Priority.VISIBLE);
+        start("visible2", Request.Priority.VISIBLE);
+
+        // A visible request joined the prefetch, it's now the newest visible work
+        prefetch.raisePriority(Request.Priority.VISIBLE);
+        assertEquals(Request.Priority.VISIBLE, prefetch.getPriority());
+
+        loader.unblock();
+
+        assertEquals(list("blocker", "prefetch", "visible2", "visible1"), loader.awaitLoaded(4));
+    }
+
+    public void testPriorityIsNeverLowered() throws Exception {
+        loader.block();
+
+        LoaderWork visible = start("visible", Request.Priority.VISIBLE);
+        start("prefetch", Request.Priority.PREFETCH);
+
+        visible.raisePriority(Request.Priority.BACKGROUND);
+        assertEquals(Request.Priority.VISIBLE, visible.getPriority());
+
+        loader.unblock();
+
+        assertEquals(list("blocker", "visible", "prefetch"), loader.awaitLoaded(3));
+    }
+
+    public void testFifoIgnoresPriority() throws Exception {
+        loader.close();
+        loader = new RecordingLoader(SchedulingPolicy.FIFO);
+        loader.block();
+
+        LoaderWork prefetch = start("prefetch", Request.Priority.PREFETCH);
+        start("visible", Request.Priority.VISIBLE);
+
+        // Requeueing would only move it to the back
+        prefetch.raisePriority(Request.Priority.VISIBLE);
+
+        loader.unblock();
+
+        assertEquals(list("blocker", "prefetch", "visible"), loader.awaitLoaded(3));
+    }
+
+    private LoaderWork start(String url, Request.Priority priority) {
+        LoaderRequest request = new LoaderRequest(url, null, EnumSet.noneOf(Request.Flag.class), null, priority);
+        LoaderWork work = new LoaderWork(new EmptyListener(), new EmptyProgressListener(), priority);
+
+        List<Loader> chain = new ArrayList<Loader>();
+        chain.add(loader);
+        work.start(chain, request);
+
+        return work;
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<String>();
+        Collections.addAll(list, values);
+
+        return list;
+    }
+
+    /**
+     * Loads on a single thread and records the order of the urls, the
+     * thread can be blocked to let work queue up
+     */
+    private class RecordingLoader extends SimpleBackgroundLoader {
+        private final List<String> loaded = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch blocked = new CountDownLatch(1);
+
+        RecordingLoader(SchedulingPolicy policy) {
+            super("Test", 0, 1, policy);
+        }
+
+        void block() throws InterruptedException {
+            start("blocker", Request.Priority.VISIBLE);
+            assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+
+        void unblock() {
+            blocked.countDown();
+        }
+
+        List<String> awaitLoaded(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (loaded.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            synchronized (loaded) {
+                return new ArrayList<String>(loaded);
+            }
+        }
+
+        @Override
+        protected void loadInBackground(LoaderWork.Manager manager, LoaderRequest request) throws Exception {
+            loaded.add(request.getUrl());
+
+            if ("blocker".equals(request.getUrl())) {
+                started.countDown();
+                assertTrue(blocked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            }
+        }
+    }
+
+    private static class EmptyListener implements Loader.Listener {
+        @Override
+        public void onStreamLoaded(InputSupplier input, Metadata metadata) {}
+
+        @Override
+        public void onBitmapLoaded(Bitmap b, Metadata metadata) {}
+
+        @Override
+        public void onNotModified(Metadata metadata) {}
+
+        @Override
+        public void onError(Throwable t) {}
+    }
+
+    private static class EmptyProgressListener implements ImageLoader.ProgressListener {
+        @Override
+        public void onProgress(float value) {}
+    }
+}
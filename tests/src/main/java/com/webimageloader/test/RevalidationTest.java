@@ -0,0 +1,357 @@
+package com.webimageloader.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import android.graphics.Bitmap;
+
+import com.webimageloader.ImageLoader;
+import com.webimageloader.Request;
+import com.webimageloader.loader.DiskCache;
+import com.webimageloader.loader.DiskLoader;
+import com.webimageloader.loader.Loader;
+import com.webimageloader.loader.LoaderManager;
+import com.webimageloader.loader.LoaderRequest;
+import com.webimageloader.loader.LoaderWork;
+import com.webimageloader.loader.Metadata;
+import com.webimageloader.loader.NetworkLoader;
+import com.webimageloader.loader.SchedulingPolicy;
+import com.webimageloader.loader.SegmentDiskCache;
+import com.webimageloader.util.Hasher;
+import com.webimageloader.util.InputSupplier;
+
+public class RevalidationTest extends TestCase {
+    private static final long MAX_SIZE = 1024 * 1024;
+    private static final long TIMEOUT = 5000;
+
+    private static final String SCHEME = "mock";
+
+    private MockServer server;
+    private NetworkLoader networkLoader;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new MockServer();
+        networkLoader = new NetworkLoader(new NetworkLoader.Builder()
+                .addURLSchemeHandler(SCHEME, server)
+                .setRevalidationThreadCount(4));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.open.countDown();
+        networkLoader.close();
+    }
+
+    public void testJoinsRunningRevalidation() throws Exception {
+        server.block();
+
+        Result first = revalidate("mock://a");
+        assertTrue(server.entered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        Result second = revalidate("mock://a");
+
+        server.open.countDown();
+
+        assertNotNull(first.await().notModified);
+        assertNotNull(second.await().notModified);
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, networkLoader.getDedupedRevalidationCount());
+    }
+
+    public void testReusesRecentUnmodifiedResult() throws Exception {
+        assertNotNull(revalidate("mock://a").await().notModified);
+        assertNotNull(revalidate("mock://a").await().notModified);
+
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, networkLoader.getDedupedRevalidationCount());
+    }
+
+    public void testModifiedResultIsNotReused() throws Exception {
+        server.modified = true;
+
+        assertNotNull(revalidate("mock://a").await().stream);
+        assertNotNull(revalidate("mock://a").await().stream);
+
+        // Both need the new image, even if the second joined the first
+        assertEquals(2, server.getRequestCount());
+    }
+
+    public void testBatchConcurrency() throws Exception {
+        File directory = File.createTempFile("revalidation", null);
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        List<String> urls = new ArrayList<String>();
+        for (int i = 0; i < 6; i++) {
+            urls.add("mock://image" + i);
+        }
+
+        // Expired a while ago, but still good to show
+        Metadata expired = new Metadata("image/png", 0, System.currentTimeMillis() - 1000, "old");
+        DiskCache cache = SegmentDiskCache.FACTORY.open(directory, MAX_SIZE);
+        for (String url : urls) {
+            put(cache, url, expired);
+        }
+        cache.close();
+
+        DiskLoader diskLoader = DiskLoader.open(SegmentDiskCache.FACTORY, directory, MAX_SIZE, 1, SchedulingPolicy.FIFO);
+        LoaderManager loaderManager = new LoaderManager(null, null, diskLoader, networkLoader);
+        loaderManager.setRevalidationConcurrency(2);
+
+        try {
+            server.delay = 50;
+            loaderManager.revalidate(urls);
+
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (server.getRequestCount() < urls.size() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(urls.size(), server.getRequestCount());
+            assertTrue(server.getMaxRunning() <= 2);
+
+            // The new metadata is saved once each check is done
+            for (String url : urls) {
+                Metadata metadata = getCachedMetadata(diskLoader, url);
+                while (metadata == null && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                    metadata = getCachedMetadata(diskLoader, url);
+                }
+
+                assertNotNull(metadata);
+                assertEquals("new", metadata.getEtag());
+            }
+        } finally {
+            loaderManager.close();
+
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private Result revalidate(String url) {
+        Metadata metadata = new Metadata("image/png", 0, System.currentTimeMillis() - 1000, "old");
+        LoaderRequest request = new LoaderRequest(url, null, EnumSet.noneOf(Request.Flag.class), null,
+                Request.Priority.BACKGROUND).withMetadata(metadata);
+
+        Result result = new Result();
+        LoaderWork work = new LoaderWork(result, new EmptyProgressListener(), Request.Priority.BACKGROUND);
+
+        List<Loader> chain = new ArrayList<Loader>();
+        chain.add(networkLoader);
+        work.start(chain, request);
+
+        return result;
+    }
+
+    /**
+     * Get the metadata of a cached image which is fresh again, without
+     * checking with the server
+     *
+     * @return the metadata, or null if it's still expired
+     */
+    private static Metadata getCachedMetadata(DiskLoader diskLoader, String url) throws InterruptedException {
+        LoaderRequest request = new LoaderRequest(url, null, EnumSet.noneOf(Request.Flag.class));
+
+        Result result = new Result();
+        LoaderWork work = new LoaderWork(result, new EmptyProgressListener(), Request.Priority.BACKGROUND);
+
+        List<Loader> chain = new ArrayList<Loader>();
+        chain.add(diskLoader.getRevalidationLoader());
+        chain.add(new Loader() {
+            @Override
+            public void load(LoaderWork.Manager manager, LoaderRequest request) {
+                manager.deliverError(new IOException("Still expired"));
+            }
+        });
+        work.start(chain, request);
+
+        return result.await().notModified;
+    }
+
+    private static String key(String url) {
+        // Same as the disk loader by default
+        return new LoaderRequest(url, null, EnumSet.noneOf(Request.Flag.class)).getDiskKey(new Hasher());
+    }
+
+    private static void put(DiskCache cache, String url, Metadata metadata) throws IOException {
+        DiskCache.Editor editor = cache.edit(key(url));
+
+        OutputStream os = editor.newImageOutputStream();
+        try {
+            os.write(new byte[] { 1, 2, 3 });
+        } finally {
+            os.close();
+        }
+
+        os = editor.newMetadataOutputStream();
+        try {
+            metadata.writeTo(os);
+        } finally {
+            os.close();
+        }
+
+        editor.commit();
+    }
+
+    /**
+     * Answers every request as not modified, or with a new image, counting
+     * how many requests are made and how many run at once
+     */
+    private static class MockServer extends URLStreamHandler {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch open = new CountDownLatch(1);
+
+        volatile boolean modified;
+        volatile long delay;
+
+        private int requestCount;
+        private int running;
+        private int maxRunning;
+
+        void block() {
+            delay = -1;
+        }
+
+        synchronized int getRequestCount() {
+            return requestCount;
+        }
+
+        synchronized int getMaxRunning() {
+            return maxRunning;
+        }
+
+        @Override
+        protected URLConnection openConnection(URL url) {
+            return new MockConnection(url);
+        }
+
+        private synchronized void started() {
+            requestCount++;
+            running++;
+            maxRunning = Math.max(maxRunning, running);
+        }
+
+        private synchronized void finished() {
+            running--;
+        }
+
+        private class MockConnection extends HttpURLConnection {
+            private int responseCode = -1;
+
+            MockConnection(URL url) {
+                super(url);
+            }
+
+            @Override
+            public void connect() {}
+
+            @Override
+            public void disconnect() {}
+
+            @Override
+            public boolean usingProxy() {
+                return false;
+            }
+
+            @Override
+            public synchronized int getResponseCode() throws IOException {
+                if (responseCode == -1) {
+                    started();
+                    try {
+                        waitForAnswer();
+                    } finally {
+                        finished();
+                    }
+
+                    responseCode = modified ? HTTP_OK : HTTP_NOT_MODIFIED;
+                }
+
+                return responseCode;
+            }
+
+            @Override
+            public String getHeaderField(String name) {
+                return "ETag".equals(name) ? "new" : null;
+            }
+
+            @Override
+            public InputStream getInputStream() {
+                return new ByteArrayInputStream(new byte[] { 1, 2, 3 });
+            }
+
+            private void waitForAnswer() throws IOException {
+                try {
+                    if (delay < 0) {
+                        entered.countDown();
+                        open.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                    } else if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+        }
+    }
+
+    private static class Result implements Loader.Listener {
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        volatile InputSupplier stream;
+        volatile Metadata notModified;
+        volatile Throwable error;
+
+        Result await() throws InterruptedException {
+            assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+            return this;
+        }
+
+        @Override
+        public void onStreamLoaded(InputSupplier input, Metadata metadata) {
+            stream = input;
+            done.countDown();
+        }
+
+        @Override
+        public void onBitmapLoaded(Bitmap b, Metadata metadata) {
+            done.countDown();
+        }
+
+        @Override
+        public void onNotModified(Metadata metadata) {
+            notModified = metadata;
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            done.countDown();
+        }
+    }
+
+    private static class EmptyProgressListener implements ImageLoader.ProgressListener {
+        @Override
+        public void onProgress(float value) {}
+    }
+}
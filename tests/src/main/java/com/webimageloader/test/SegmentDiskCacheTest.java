@@ -0,0 +1,423 @@
+package com.webimageloader.test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import com.webimageloader.loader.DiskCache;
+import com.webimageloader.loader.SegmentDiskCache;
+
+public class SegmentDiskCacheTest extends TestCase {
+    private static final long MAX_SIZE = 1024 * 1024;
+    private static final long SEGMENT_SIZE = 1024;
+
+    private static final long MAINTENANCE_TIMEOUT = 5000;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = createDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(directory);
+    }
+
+    public void testPutAndGet() throws IOException {
+        SegmentDiskCache cache = open(directory);
+        put(cache, "a", "image a", "metadata a");
+
+        assertEntry(cache, "a", "image a", "metadata a");
+        assertNull(cache.get("b"));
+
+        cache.close();
+    }
+
+    public void testKeepsMetadataWhenOnlyImageIsWritten() throws IOException {
+        SegmentDiskCache cache = open(directory);
+        put(cache, "a", "image a", "metadata a");
+
+        DiskCache.Editor editor = cache.edit("a");
+        write(editor.newImageOutputStream(), "image b");
+        editor.commit();
+
+        assertEntry(cache, "a", "image b", "metadata a");
+
+        cache.close();
+    }
+
+    public void testReopenFromSnapshot() throws IOException {
+        SegmentDiskCache cache = open(directory);
+        for (int i = 0; i < 20; i++) {
+            put(cache, "key" + i, "image " + i, "metadata " + i);
+        }
+        cache.remove("key3");
+        cache.close();
+
+        assertTrue(new File(directory, "index").exists());
+
+        cache = open(directory);
+        for (int i = 0; i < 20; i++) {
+            if (i == 3) {
+                assertNull(cache.get("key3"));
+            } else {
+                assertEntry(cache, "key" + i, "image " + i, "metadata " + i);
+            }
+        }
+        cache.close();
+    }
+
+    public void testReplayWithoutSnapshot() throws IOException {
+        SegmentDiskCache cache = open(directory);
+        for (int i = 0; i < 20; i++) {
+            put(cache, "key" + i, "image " + i, "metadata " + i);
+        }
+        put(cache, "key0", "image new", "metadata new");
+        cache.remove("key3");
+        cache.close();
+
+        assertTrue(new File(directory, "index").delete());
+
+        cache = open(directory);
+        assertEntry(cache, "key0", "image new", "metadata new");
+        assertNull(cache.get("key3"));
+        assertEntry(cache, "key19", "image 19", "metadata 19");
+        cache.close();
+    }
+
+    public void testTruncatedTailAfterSnapshot() throws IOException {
+        SegmentDiskCache cache = open(directory);
+        put(cache, "saved", "image saved", "metadata saved");
+        cache.close();
+
+        // Written after the snapshot, then the process dies in the middle
+        // of writing another record
+        cache = open(directory);
+        put(cache, "replayed", "image replayed", "metadata replayed");
+        put(cache, "broken", "image broken", "metadata broken");
+
+        File crashed = createDirectory();
+        try {
+            copy(directory, crashed);
+            cache.close();
+
+            File segment = getNewestSegment(crashed);
+            RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+            try {
+                raf.setLength(raf.length() - 5);
+            } finally {
+                raf.close();
+            }
+
+            SegmentDiskCache recovered = open(crashed);
+            assertEntry(recovered, "saved", "image saved", "metadata saved");
+            assertEntry(recovered, "replayed", "image replayed", "metadata replayed");
+            assertNull(recovered.get("broken"));
+
+            // The broken record is gone, new ones can be read back again
+            put(recovered, "after", "image after", "metadata after");
+            recovered.close();
+
+            recovered = open(crashed);
+            assertEntry(recovered, "after", "image after", "metadata after");
+            assertNull(recovered.get("broken"));
+            recovered.close();
+        } finally {
+            delete(crashed);
+        }
+    }
+
+    public void testTornRecord() throws IOException {
+        SegmentDiskCache cache = open(directory);
+        put(cache, "saved", "image saved", "metadata saved");
+        put(cache, "torn", "image torn", "metadata torn");
+        cache.close();
+
+        // The header reached the disk but the values didn't
+        assertTrue(new File(directory, "index").delete());
+        File segment = getNewestSegment(directory);
+        overwrite(segment, "image torn", new byte["image torn".length()]);
+
+        cache = open(directory);
+        assertEntry(cache, "saved", "image saved", "metadata saved");
+        assertNull(cache.get("torn"));
+        cache.close();
+    }
+
+    public void testBrokenRecordInSnapshot() throws IOException {
+        SegmentDiskCache cache = open(directory);
+        put(cache, "a", "image a", "metadata a");
+        put(cache, "b", "image b", "metadata b");
+        cache.close();
+
+        overwrite(getNewestSegment(directory), "image a", "imagE a".getBytes("UTF-8"));
+
+        cache = open(directory);
+        assertNull(cache.get("a"));
+        assertEntry(cache, "b", "image b", "metadata b");
+        cache.close();
+
+        // Stays gone
+        cache = open(directory);
+        assertNull(cache.get("a"));
+        cache.close();
+    }
+
+    public void testCompaction() throws Exception {
+        SegmentDiskCache cache = open(directory);
+
+        // Overwriting the same few keys leaves lots of dead records behind
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 5; i++) {
+                put(cache, "key" + i, "image " + i + " round " + round, "metadata " + round);
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + MAINTENANCE_TIMEOUT;
+        while (countSegments(directory) > 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        assertTrue("Segments were not compacted", countSegments(directory) <= 3);
+        for (int i = 0; i < 5; i++) {
+            assertEntry(cache, "key" + i, "image " + i + " round 49", "metadata 49");
+        }
+        cache.close();
+
+        // Replaying the compacted segments gives the same result
+        assertTrue(new File(directory, "index").delete());
+        cache = open(directory);
+        for (int i = 0; i < 5; i++) {
+            assertEntry(cache, "key" + i, "image " + i + " round 49", "metadata 49");
+        }
+        cache.close();
+    }
+
+    public void testReadsWhileCompacting() throws Exception {
+        final SegmentDiskCache cache = open(directory);
+        for (int i = 0; i < 5; i++) {
+            put(cache, "key" + i, "image " + i + " round 0", "metadata 0");
+        }
+
+        final Throwable[] failure = new Throwable[1];
+        final AtomicBoolean stop = new AtomicBoolean();
+
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!stop.get()) {
+                        for (int i = 0; i < 5; i++) {
+                            DiskCache.Snapshot snapshot = cache.get("key" + i);
+                            assertNotNull(snapshot);
+                            assertTrue(read(snapshot.getImage()).startsWith("image " + i + " round "));
+                            snapshot.close();
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        };
+        reader.start();
+
+        try {
+            for (int round = 1; round < 200; round++) {
+                for (int i = 0; i < 5; i++) {
+                    put(cache, "key" + i, "image " + i + " round " + round, "metadata " + round);
+                }
+            }
+        } finally {
+            stop.set(true);
+            reader.join();
+        }
+
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+
+        cache.close();
+    }
+
+    public void testRejectsTooLargeEntry() throws IOException {
+        SegmentDiskCache cache = open(directory);
+        put(cache, "a", "image a", "metadata a");
+
+        DiskCache.Editor editor = cache.edit("a");
+        try {
+            write(editor.newImageOutputStream(), new String(new char[(int) SEGMENT_SIZE]));
+            write(editor.newMetadataOutputStream(), "metadata b");
+            editor.commit();
+            fail("Committed an entry larger than a segment");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            editor.abortUnlessCommitted();
+        }
+
+        // The old entry is out of date
+        assertNull(cache.get("a"));
+
+        // Smaller entries are still saved
+        put(cache, "a", "image c", "metadata c");
+        assertEntry(cache, "a", "image c", "metadata c");
+
+        cache.close();
+    }
+
+    public void testEvictsOverMaxSize() throws IOException {
+        SegmentDiskCache cache = SegmentDiskCache.open(directory, 100, SEGMENT_SIZE);
+        for (int i = 0; i < 10; i++) {
+            put(cache, "key" + i, "0123456789", "0123456789");
+        }
+
+        // Only the most recent entries fit
+        assertNull(cache.get("key0"));
+        assertNotNull(cache.get("key9"));
+
+        cache.close();
+    }
+
+    private static SegmentDiskCache open(File directory) throws IOException {
+        return SegmentDiskCache.open(directory, MAX_SIZE, SEGMENT_SIZE);
+    }
+
+    private static void put(DiskCache cache, String key, String image, String metadata) throws IOException {
+        DiskCache.Editor editor = cache.edit(key);
+        assertNotNull(editor);
+
+        try {
+            write(editor.newImageOutputStream(), image);
+            write(editor.newMetadataOutputStream(), metadata);
+            editor.commit();
+        } finally {
+            editor.abortUnlessCommitted();
+        }
+    }
+
+    private static void assertEntry(DiskCache cache, String key, String image, String metadata) throws IOException {
+        DiskCache.Snapshot snapshot = cache.get(key);
+        assertNotNull("Missing " + key, snapshot);
+
+        try {
+            assertEquals(image.length(), snapshot.getImageLength());
+            assertEquals(image, read(snapshot.getImage()));
+            assertEquals(metadata, read(snapshot.getMetadata()));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static void write(OutputStream os, String value) throws IOException {
+        try {
+            os.write(value.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+
+    private static String read(InputStream is) throws IOException {
+        try {
+            byte[] buffer = new byte[is.available()];
+            new DataInputStream(is).readFully(buffer);
+
+            return new String(buffer, "UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Overwrite the first occurrence of a string in a file
+     */
+    private static void overwrite(File file, String value, byte[] replacement) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+
+            int offset = new String(data, "ISO-8859-1").indexOf(value);
+            assertTrue("Missing " + value, offset != -1);
+
+            raf.seek(offset);
+            raf.write(replacement);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int countSegments(File directory) {
+        int count = 0;
+        for (String name : directory.list()) {
+            if (name.startsWith("segment.")) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private static File getNewestSegment(File directory) {
+        File newest = null;
+        long newestId = -1;
+        for (File file : directory.listFiles()) {
+            String name = file.getName();
+            if (name.startsWith("segment.")) {
+                long id = Long.parseLong(name.substring("segment.".length()));
+                if (id > newestId) {
+                    newest = file;
+                    newestId = id;
+                }
+            }
+        }
+
+        return newest;
+    }
+
+    private static File createDirectory() throws IOException {
+        File directory = File.createTempFile("segments", null);
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        return directory;
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        byte[] buffer = new byte[8192];
+        for (File file : from.listFiles()) {
+            InputStream is = new FileInputStream(file);
+            OutputStream os = new FileOutputStream(new File(to, file.getName()));
+            try {
+                int n;
+                while ((n = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, n);
+                }
+            } finally {
+                is.close();
+                os.close();
+            }
+        }
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        directory.delete();
+    }
+}
@@ -0,0 +1,298 @@
+package com.webimageloader.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import android.graphics.Bitmap;
+
+import com.webimageloader.ImageLoader;
+import com.webimageloader.Request;
+import com.webimageloader.loader.Loader;
+import com.webimageloader.loader.LoaderRequest;
+import com.webimageloader.loader.LoaderWork;
+import com.webimageloader.loader.Metadata;
+import com.webimageloader.loader.OverflowPolicy;
+import com.webimageloader.loader.SimpleBackgroundLoader;
+import com.webimageloader.loader.WorkLimiter;
+import com.webimageloader.util.InputSupplier;
+
+public class WorkLimiterTest extends TestCase {
+    private static final long TIMEOUT = 5000;
+
+    private RecordingLoader loader;
+    private List<String> failed;
+
+    @Override
+    protected void setUp() throws Exception {
+        loader = new RecordingLoader();
+        failed = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        loader.close();
+    }
+
+    public void testReject() throws Exception {
+        WorkLimiter limiter = new WorkLimiter(2, OverflowPolicy.REJECT);
+        loader.block(limiter);
+
+        start(limiter, "a", Request.Priority.VISIBLE);
+        start(limiter, "b", Request.Priority.VISIBLE);
+
+        loader.unblock();
+
+        assertEquals(list("blocker", "a"), loader.awaitLoaded(2));
+        assertEquals(list("b"), failed);
+        assertEquals(1, limiter.getRejectedCount());
+        assertEquals(0, limiter.getDroppedCount());
+
+        // The places were given back
+        start(limiter, "c", Request.Priority.VISIBLE);
+        assertEquals(list("blocker", "a", "c"), loader.awaitLoaded(3));
+    }
+
+    public void testDropOldestDropsQueuedWork() throws Exception {
+        WorkLimiter limiter = new WorkLimiter(2, OverflowPolicy.DROP_OLDEST);
+        loader.block(limiter);
+
+        start(limiter, "prefetch", Request.Priority.PREFETCH);
+        start(limiter, "visible", Request.Priority.VISIBLE);
+
+        loader.unblock();
+
+        assertEquals(list("blocker", "visible"), loader.awaitLoaded(2));
+        assertEquals(list("prefetch"), failed);
+        assertEquals(1, limiter.getDroppedCount());
+        assertEquals(0, limiter.getRejectedCount());
+    }
+
+    public void testDropOldestLeavesStartingWorkAlone() throws Exception {
+        WorkLimiter limiter = new WorkLimiter(1, OverflowPolicy.DROP_OLDEST);
+        final GateLoader gate = new GateLoader();
+
+        // Stays in start() until the gate is opened, nothing is queued yet
+        final LoaderWork starting = new LoaderWork(new RecordingListener("starting"), new EmptyProgressListener(), Request.Priority.PREFETCH);
+        Thread t = startOnThread(limiter, starting, "starting", gate);
+        assertTrue(gate.entered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        start(limiter, "visible", Request.Priority.VISIBLE);
+
+        assertEquals(list("visible"), failed);
+        assertEquals(0, limiter.getDroppedCount());
+        assertEquals(1, limiter.getRejectedCount());
+
+        gate.open.countDown();
+        t.join(TIMEOUT);
+
+        assertEquals(list("starting"), loader.awaitLoaded(1));
+        assertFalse(starting.isCancelled());
+    }
+
+    public void testWaitStartsMostUrgentFirst() throws Exception {
+        WorkLimiter limiter = new WorkLimiter(2, OverflowPolicy.WAIT);
+        loader.block(limiter);
+
+        start(limiter, "a", Request.Priority.VISIBLE);
+        start(limiter, "prefetch", Request.Priority.PREFETCH);
+        start(limiter, "visible", Request.Priority.VISIBLE);
+
+        loader.unblock();
+
+        assertEquals(list("blocker", "a", "visible", "prefetch"), loader.awaitLoaded(4));
+        assertTrue(failed.isEmpty());
+    }
+
+    public void testWaitIsBounded() throws Exception {
+        WorkLimiter limiter = new WorkLimiter(2, OverflowPolicy.WAIT);
+        loader.block(limiter);
+
+        start(limiter, "a", Request.Priority.VISIBLE);
+        start(limiter, "b", Request.Priority.VISIBLE);
+        start(limiter, "c", Request.Priority.VISIBLE);
+
+        // Less urgent than all waiting work
+        start(limiter, "background", Request.Priority.BACKGROUND);
+
+        // Takes the place of the oldest waiting work
+        start(limiter, "d", Request.Priority.VISIBLE);
+
+        loader.unblock();
+
+        assertEquals(list("blocker", "a", "d", "c"), loader.awaitLoaded(4));
+        assertEquals(list("background", "b"), failed);
+        assertEquals(1, limiter.getRejectedCount());
+        assertEquals(1, limiter.getDroppedCount());
+    }
+
+    public void testWaitSkipsCancelledWork() throws Exception {
+        WorkLimiter limiter = new WorkLimiter(1, OverflowPolicy.WAIT);
+        loader.block(limiter);
+
+        LoaderWork a = start(limiter, "a", Request.Priority.VISIBLE);
+        a.cancel();
+
+        // The cancelled work doesn't hold on to its waiting place
+        start(limiter, "b", Request.Priority.BACKGROUND);
+
+        loader.unblock();
+
+        assertEquals(list("blocker", "b"), loader.awaitLoaded(2));
+        assertTrue(failed.isEmpty());
+    }
+
+    public void testRaisedPriorityWhileWaiting() throws Exception {
+        WorkLimiter limiter = new WorkLimiter(2, OverflowPolicy.WAIT);
+        loader.block(limiter);
+
+        start(limiter, "a", Request.Priority.VISIBLE);
+        LoaderWork prefetch = start(limiter, "prefetch", Request.Priority.PREFETCH);
+        start(limiter, "visible", Request.Priority.VISIBLE);
+
+        prefetch.raisePriority(Request.Priority.VISIBLE);
+
+        loader.unblock();
+
+        assertEquals(list("blocker", "a", "prefetch", "visible"), loader.awaitLoaded(4));
+    }
+
+    private LoaderWork start(WorkLimiter limiter, String url, Request.Priority priority) {
+        LoaderWork work = new LoaderWork(new RecordingListener(url), new EmptyProgressListener(), priority);
+        limiter.start(work, chain(loader), request(url, priority));
+
+        return work;
+    }
+
+    private Thread startOnThread(final WorkLimiter limiter, final LoaderWork work, final String url, final Loader first) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                limiter.start(work, chain(first, loader), request(url, work.getPriority()));
+            }
+        };
+        t.start();
+
+        return t;
+    }
+
+    private static List<Loader> chain(Loader... loaders) {
+        List<Loader> chain = new ArrayList<Loader>();
+        Collections.addAll(chain, loaders);
+
+        return chain;
+    }
+
+    private static LoaderRequest request(String url, Request.Priority priority) {
+        return new LoaderRequest(url, null, EnumSet.noneOf(Request.Flag.class), null, priority);
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<String>();
+        Collections.addAll(list, values);
+
+        return list;
+    }
+
+    /**
+     * Loads on a single thread in the order the work was queued and records
+     * the urls, the thread can be blocked to let work queue up
+     */
+    private class RecordingLoader extends SimpleBackgroundLoader {
+        private final List<String> loaded = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch blocked = new CountDownLatch(1);
+
+        RecordingLoader() {
+            super("Test", 0, 1);
+        }
+
+        void block(WorkLimiter limiter) throws InterruptedException {
+            start(limiter, "blocker", Request.Priority.VISIBLE);
+            assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+
+        void unblock() {
+            blocked.countDown();
+        }
+
+        List<String> awaitLoaded(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (loaded.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            // Anything loaded after that shouldn't have been
+            Thread.sleep(50);
+
+            synchronized (loaded) {
+                return new ArrayList<String>(loaded);
+            }
+        }
+
+        @Override
+        protected void loadInBackground(LoaderWork.Manager manager, LoaderRequest request) throws Exception {
+            loaded.add(request.getUrl());
+
+            if ("blocker".equals(request.getUrl())) {
+                started.countDown();
+                assertTrue(blocked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            }
+        }
+    }
+
+    /**
+     * Holds the calling thread in load() until opened
+     */
+    private static class GateLoader implements Loader {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch open = new CountDownLatch(1);
+
+        @Override
+        public void load(LoaderWork.Manager manager, LoaderRequest request) {
+            entered.countDown();
+
+            try {
+                open.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            manager.next(request);
+        }
+    }
+
+    private class RecordingListener implements Loader.Listener {
+        private final String url;
+
+        RecordingListener(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public void onStreamLoaded(InputSupplier input, Metadata metadata) {}
+
+        @Override
+        public void onBitmapLoaded(Bitmap b, Metadata metadata) {}
+
+        @Override
+        public void onNotModified(Metadata metadata) {}
+
+        @Override
+        public void onError(Throwable t) {
+            assertTrue(t instanceof RejectedExecutionException);
+            failed.add(url);
+        }
+    }
+
+    private static class EmptyProgressListener implements ImageLoader.ProgressListener {
+        @Override
+        public void onProgress(float value) {}
+    }
+}
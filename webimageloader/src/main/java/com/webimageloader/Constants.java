@@ -8,12 +8,20 @@ public class Constants {
     public static final long DEFAULT_MAX_AGE = 3 * 24 * 60 * 60 * 1000; // Three days
     public static final long MAX_AGE_INFINITY = 0;
     public static final long MAX_AGE_NOT_FORCED = -1;
+    public static final long MAX_STALE_UNLIMITED = -1;
 
     public static final int DEFAULT_DISK_THREADS = 1;
     public static final int DEFAULT_NETWORK_THREADS = 2;
+    public static final int DEFAULT_REVALIDATION_THREADS = 1;
+    public static final int DEFAULT_REVALIDATION_CONCURRENCY = 4;
 
     public static final Bitmap.CompressFormat DEFAULT_COMPRESS_FORMAT = Bitmap.CompressFormat.JPEG;
     public static final int DEFAULT_COMPRESS_QUALITY = 75;
 
+    public static final float PROGRESS_MIN_DELTA = 0.01f; // 1%
+    public static final long PROGRESS_MIN_INTERVAL = 50; // 50 ms
+
+    public static final float DEFAULT_FINISH_THRESHOLD = 0.9f; // 90%
+
     private Constants() {}
 }
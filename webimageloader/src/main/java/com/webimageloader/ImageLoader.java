@@ -3,17 +3,25 @@ package com.webimageloader;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.util.Log;
 import com.webimageloader.content.ContentURLStreamHandler;
+import com.webimageloader.loader.DiskCache;
 import com.webimageloader.loader.DiskLoader;
 import com.webimageloader.loader.LoaderManager;
+import com.webimageloader.loader.LruDiskCache;
 import com.webimageloader.loader.MemoryCache;
 import com.webimageloader.loader.NetworkLoader;
+import com.webimageloader.loader.OverflowPolicy;
+import com.webimageloader.loader.SchedulingPolicy;
 import com.webimageloader.transformation.Transformation;
+import com.webimageloader.util.BitmapPool;
+import com.webimageloader.util.Hasher;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URLStreamHandler;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * This is the main class of WebImageLoader which can be constructed using a
@@ -85,6 +93,28 @@ public interface ImageLoader {
      */
     MemoryCache getMemoryCache();
 
+    /**
+     * Get bitmap pool debug info
+     *
+     * @return debug info or null if not available
+     */
+    BitmapPool.DebugInfo getBitmapPoolInfo();
+
+    /**
+     * Get the bitmap pool
+     *
+     * @return bitmap pool or null if not available
+     */
+    BitmapPool getBitmapPool();
+
+    /**
+     * Get debug info about the disk and network queues and saving of
+     * transformed images
+     *
+     * @return debug info
+     */
+    LoaderManager.DebugInfo getLoaderInfo();
+
     /**
      * Load the specified request blocking the calling thread.
      *
@@ -214,6 +244,27 @@ public interface ImageLoader {
      */
     <T> void cancel(T tag);
 
+    /**
+     * Check the cached images of these urls in the background and update
+     * those which have expired, for example when the app comes to the
+     * foreground. Only a few are checked at once and images which haven't
+     * expired are left alone. Does nothing without a disk cache.
+     *
+     * @param urls the urls to check
+     *
+     * @see Builder#setRevalidationBatchConcurrency(int)
+     */
+    void revalidate(Collection<String> urls);
+
+    /**
+     * Like {@link #revalidate(Collection)}, but checks the most recently
+     * loaded urls without transformations. The urls are remembered in the
+     * disk cache directory, so this also works right after a restart.
+     *
+     * @param count max number of urls to check
+     */
+    void revalidateRecent(int count);
+
     void destroy();
 
     /**
@@ -228,8 +279,23 @@ public interface ImageLoader {
 
         private NetworkLoader.Builder networkBuilder;
 
-        private DiskLoader diskLoader;
-        private MemoryCache memoryCache;
+        private File diskCacheDir;
+        private int diskCacheSize;
+        private int diskThreadCount;
+        private float diskFinishThreshold = Constants.DEFAULT_FINISH_THRESHOLD;
+        private boolean diskMappedReads;
+        private Hasher.Algorithm diskKeyHashing = Hasher.Algorithm.SHA1;
+        private long diskMaxStale = Constants.MAX_STALE_UNLIMITED;
+        private int revalidationBatchConcurrency = Constants.DEFAULT_REVALIDATION_CONCURRENCY;
+        private DiskCache.Factory diskCacheFactory = LruDiskCache.FACTORY;
+        private SchedulingPolicy schedulingPolicy = SchedulingPolicy.FIFO;
+        private int maxPending;
+        private OverflowPolicy overflowPolicy;
+
+        private int memoryCacheSize;
+        private int memoryCacheWindow;
+        private Map<String, Integer> memoryCachePartitions = new LinkedHashMap<String, Integer>();
+        private int bitmapPoolSize;
 
         /**
          * Create a new builder
@@ -259,11 +325,68 @@ public interface ImageLoader {
          * @return this builder
          */
         public Builder enableDiskCache(File cacheDir, int maxSize, int threadCount) {
-            try {
-                diskLoader = DiskLoader.open(cacheDir, maxSize, threadCount);
-            } catch (IOException e) {
-                Log.e(TAG, "Disk cache not available", e);
-            }
+            diskCacheDir = cacheDir;
+            diskCacheSize = maxSize;
+            diskThreadCount = threadCount;
+
+            return this;
+        }
+
+        /**
+         * Set how much of a download has to be done for it to be finished
+         * and saved to the disk cache when the request is cancelled, by
+         * default 90%. Less of the download means it's aborted right away
+         * to save bandwidth.
+         *
+         * @param threshold fraction of the download in the range 0f-1f
+         * @return this builder
+         */
+        public Builder setDownloadFinishThreshold(float threshold) {
+            diskFinishThreshold = threshold;
+
+            return this;
+        }
+
+        /**
+         * Set the storage engine used by the disk cache, by default
+         * {@link LruDiskCache} which stores every image in its own file.
+         * {@link com.webimageloader.loader.SegmentDiskCache} is better
+         * suited for caches of many small images, it also saves a snapshot
+         * of its index so opening it doesn't have to read every record.
+         * Images larger than a quarter of one of its segments aren't saved.
+         *
+         * @param factory factory opening the engine
+         * @return this builder
+         */
+        public Builder setDiskCacheFactory(DiskCache.Factory factory) {
+            diskCacheFactory = factory;
+
+            return this;
+        }
+
+        /**
+         * Set how disk cache keys are hashed, by default SHA-1.
+         * {@link Hasher.Algorithm#MURMUR3_128} is cheaper, but switching an
+         * existing cache loses the images saved with the old keys.
+         *
+         * @param algorithm the algorithm
+         * @return this builder
+         */
+        public Builder setDiskKeyHashing(Hasher.Algorithm algorithm) {
+            diskKeyHashing = algorithm;
+
+            return this;
+        }
+
+        /**
+         * Read disk cache hits from memory mapped files, or byte arrays for
+         * small files, instead of regular streams. Lowers CPU use and
+         * allocations when loading from the disk cache.
+         *
+         * @return this builder
+         */
+        public Builder enableMappedDiskReads() {
+            diskMappedReads = true;
 
             return this;
         }
@@ -274,7 +397,73 @@ public interface ImageLoader {
          * @return this builder
          */
         public Builder enableMemoryCache(int maxSize) {
-            memoryCache = new MemoryCache(maxSize);
+            memoryCacheSize = maxSize;
+
+            return this;
+        }
+
+        /**
+         * Add a memory cache partition with its own budget, on top of the size
+         * set with {@link #enableMemoryCache(int)}. Images in a partition are
+         * only evicted by other images in the same partition, which can be used
+         * to keep small, often shown images from being evicted by large ones.
+         * <p>
+         * Requests are put in a partition with
+         * {@link Request#setMemoryCachePartition(String)}, requests with a
+         * transformation whose identifier matches the name also end up here.
+         *
+         * @param name name of the partition
+         * @param maxSize max size of the partition in bytes
+         * @return this builder
+         */
+        public Builder addMemoryCachePartition(String name, int maxSize) {
+            if (name == null) {
+                throw new IllegalArgumentException("name may not be null");
+            }
+
+            memoryCachePartitions.put(name, maxSize);
+
+            return this;
+        }
+
+        /**
+         * Protect frequently used images in the memory cache from images which
+         * are only shown once, for example when flinging through a long list.
+         * New images are kept in a small window, once evicted from there they
+         * only stay in the cache if they have been requested more often than
+         * the image they would replace.
+         *
+         * @param windowPercent size of the window in percent of the memory cache, 1-99
+         * @return this builder
+         */
+        public Builder enableMemoryCacheAdmission(int windowPercent) {
+            if (windowPercent < 1 || windowPercent > 99) {
+                throw new IllegalArgumentException("windowPercent must be in the range 1-99");
+            }
+
+            memoryCacheWindow = windowPercent;
+
+            return this;
+        }
+
+        /**
+         * Enable reuse of bitmaps evicted from the memory cache when decoding
+         * new images, this reduces garbage collection while scrolling. Only
+         * has an effect on API level 11 and up and when the memory cache
+         * is enabled.
+         * <p>
+         * A bitmap is only reused once it has been evicted and is known not to
+         * be shown anymore. {@link com.webimageloader.ext.ImageHelper} keeps
+         * track of this for the views it loads into. If you show bitmaps some
+         * other way, use {@link BitmapPool#bind(Bitmap)} and
+         * {@link BitmapPool#unbind(Bitmap)}. Once a bitmap has been bound every
+         * use of it has to be, bitmaps never bound are not reused.
+         *
+         * @param maxSize max size of the pool in bytes
+         * @return this builder
+         */
+        public Builder enableBitmapPool(int maxSize) {
+            bitmapPoolSize = maxSize;
 
             return this;
         }
@@ -290,6 +479,39 @@ public interface ImageLoader {
             return this;
         }
 
+        /**
+         * Set in which order queued disk and network work is handled, by
+         * default {@link SchedulingPolicy#FIFO}. When scrolling through long
+         * lists {@link SchedulingPolicy#PRIORITY} makes sure the images on
+         * screen are loaded before the ones that were scrolled past.
+         *
+         * @param policy the policy
+         * @return this builder
+         */
+        public Builder setSchedulingPolicy(SchedulingPolicy policy) {
+            schedulingPolicy = policy;
+            networkBuilder.setSchedulingPolicy(policy);
+
+            return this;
+        }
+
+        /**
+         * Limit how many requests can be pending at once, by default there
+         * is no limit. Useful to keep preload bursts from queuing thousands
+         * of requests. Only new requests count, a request which has started
+         * always runs to completion.
+         *
+         * @param maxPending max number of pending requests
+         * @param policy what to do with new requests when the limit is reached
+         * @return this builder
+         */
+        public Builder setQueueLimit(int maxPending, OverflowPolicy policy) {
+            this.maxPending = maxPending;
+            this.overflowPolicy = policy;
+
+            return this;
+        }
+
         /**
          * Add a URL scheme handler
          * @param scheme the scheme to handle
@@ -375,6 +597,66 @@ public interface ImageLoader {
             return this;
         }
 
+        /**
+         * Set the number of threads checking expired images in the
+         * background, by default 1. These are separate from the download
+         * threads so checks never hold up downloads.
+         *
+         * @param count thread count
+         * @return this builder
+         */
+        public Builder setRevalidationThreadCount(int count) {
+            networkBuilder.setRevalidationThreadCount(count);
+
+            return this;
+        }
+
+        /**
+         * Limit how many background checks of expired images are started
+         * per second, by default unlimited. Checks of the same url, for
+         * example with different transformations, are always only done once.
+         *
+         * @param perSecond max checks per second, 0 means unlimited
+         * @return this builder
+         */
+        public Builder setRevalidationRate(int perSecond) {
+            networkBuilder.setRevalidationRate(perSecond);
+
+            return this;
+        }
+
+        /**
+         * Set how long after expiring a cached image is still shown while
+         * it's checked in the background, by default forever. Older images
+         * are checked before being shown, and only used if the check fails.
+         *
+         * @param maxStale max time in milliseconds
+         * @return this builder
+         */
+        public Builder setMaxStale(long maxStale) {
+            diskMaxStale = maxStale;
+
+            return this;
+        }
+
+        /**
+         * Set how many images are checked at once by
+         * {@link ImageLoader#revalidate(Collection)}, by default 4. The checks
+         * also share the revalidation threads and rate limit.
+         *
+         * @param concurrency max number of checks at once
+         * @return this builder
+         */
+        public Builder setRevalidationBatchConcurrency(int concurrency) {
+            if (concurrency <= 0) {
+                throw new IllegalArgumentException("concurrency <= 0");
+            }
+
+            revalidationBatchConcurrency = concurrency;
+
+            return this;
+        }
+
         /**
          * Build the {@link com.webimageloader.ImageLoader} from the settings in this builder
          * @return a {@link com.webimageloader.ImageLoader}
@@ -385,8 +667,38 @@ public interface ImageLoader {
             networkBuilder.addURLSchemeHandler(ContentResolver.SCHEME_FILE, handler);
             networkBuilder.addURLSchemeHandler(ContentResolver.SCHEME_ANDROID_RESOURCE, handler);
 
+            BitmapPool bitmapPool = null;
+            if (bitmapPoolSize > 0 && memoryCacheSize > 0 && BitmapPool.isSupported()) {
+                bitmapPool = new BitmapPool(bitmapPoolSize);
+            }
+
+            MemoryCache memoryCache = null;
+            if (memoryCacheSize > 0) {
+                memoryCache = new MemoryCache(memoryCacheSize, bitmapPool, memoryCacheWindow);
+
+                for (Map.Entry<String, Integer> partition : memoryCachePartitions.entrySet()) {
+                    memoryCache.addPartition(partition.getKey(), partition.getValue());
+                }
+            }
+
+            DiskLoader diskLoader = null;
+            if (diskCacheDir != null) {
+                // Don't block the caller, usually the main thread, while opening
+                diskLoader = DiskLoader.openAsync(diskCacheFactory, diskCacheDir, diskCacheSize, diskThreadCount, schedulingPolicy);
+                diskLoader.setFinishThreshold(diskFinishThreshold);
+                diskLoader.setMappedReads(diskMappedReads);
+                diskLoader.setKeyHashing(diskKeyHashing);
+                diskLoader.setMaxStale(diskMaxStale);
+                diskLoader.setBitmapPool(bitmapPool);
+            }
+
             NetworkLoader networkLoader = new NetworkLoader(networkBuilder);
-            LoaderManager loaderManager = new LoaderManager(memoryCache, diskLoader, networkLoader);
+            LoaderManager loaderManager = new LoaderManager(memoryCache, bitmapPool, diskLoader, networkLoader);
+            loaderManager.setRevalidationConcurrency(revalidationBatchConcurrency);
+
+            if (maxPending > 0) {
+                loaderManager.setQueueLimit(maxPending, overflowPolicy);
+            }
 
             return new ImageLoaderImpl(loaderManager);
         }
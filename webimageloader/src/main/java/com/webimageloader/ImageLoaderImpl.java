@@ -2,7 +2,9 @@ package com.webimageloader;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.Collection;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.graphics.Bitmap;
 import android.os.Handler;
@@ -12,6 +14,7 @@ import android.os.Message;
 import com.webimageloader.loader.LoaderManager;
 import com.webimageloader.loader.MemoryCache;
 import com.webimageloader.util.AbstractImageLoader;
+import com.webimageloader.util.BitmapPool;
 import com.webimageloader.util.WaitFuture;
 
 class ImageLoaderImpl extends AbstractImageLoader {
@@ -40,6 +43,27 @@ class ImageLoaderImpl extends AbstractImageLoader {
         return loaderManager.getMemoryCache();
     }
 
+    @Override
+    public BitmapPool.DebugInfo getBitmapPoolInfo() {
+        BitmapPool bitmapPool = loaderManager.getBitmapPool();
+
+        if (bitmapPool != null) {
+            return bitmapPool.getDebugInfo();
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public BitmapPool getBitmapPool() {
+        return loaderManager.getBitmapPool();
+    }
+
+    @Override
+    public LoaderManager.DebugInfo getLoaderInfo() {
+        return loaderManager.getDebugInfo();
+    }
+
     @Override
     public Bitmap loadBlocking(Request request) throws IOException {
         return loadBlocking(request, null);
@@ -49,7 +73,7 @@ class ImageLoaderImpl extends AbstractImageLoader {
     public Bitmap loadBlocking(Request request, final ProgressListener progressListener) throws IOException {
         final WaitFuture future = new WaitFuture();
 
-        Bitmap b = loadInternal(null, request, new LoaderManager.Listener() {
+        Bitmap b = loadInternal(null, request, Request.Priority.VISIBLE, new LoaderManager.Listener() {
             @Override
             public void onLoaded(Bitmap b) {
                 future.set(b);
@@ -100,7 +124,7 @@ class ImageLoaderImpl extends AbstractImageLoader {
     }
 
     public void preload(Request request) {
-        loadInternal(null, request, null);
+        loadInternal(null, request, Request.Priority.PREFETCH, null);
     }
 
     @Override
@@ -110,7 +134,7 @@ class ImageLoaderImpl extends AbstractImageLoader {
 
     @Override
     public <T> Bitmap load(T tag, Request request, Listener<T> listener, ProgressListener progressListener) {
-        return loadInternal(tag, request, handlerManager.getListener(tag, listener, progressListener));
+        return loadInternal(tag, request, Request.Priority.VISIBLE, handlerManager.getListener(tag, listener, progressListener));
     }
 
     @Override
@@ -119,8 +143,18 @@ class ImageLoaderImpl extends AbstractImageLoader {
         loaderManager.cancel(tag);
     }
 
-    private Bitmap loadInternal(Object tag, Request request, LoaderManager.Listener listener) {
-        return loaderManager.load(tag, request.toLoaderRequest(), listener);
+    private Bitmap loadInternal(Object tag, Request request, Request.Priority defaultPriority, LoaderManager.Listener listener) {
+        return loaderManager.load(tag, request.toLoaderRequest(defaultPriority), listener);
+    }
+
+    @Override
+    public void revalidate(Collection<String> urls) {
+        loaderManager.revalidate(urls);
+    }
+
+    @Override
+    public void revalidateRecent(int count) {
+        loaderManager.revalidateRecent(count);
     }
 
     @Override
@@ -156,6 +190,11 @@ class ImageLoaderImpl extends AbstractImageLoader {
             private Listener<T> listener;
             private ProgressListener progressListener;
 
+            // Only keep one progress update in the queue at a time, it
+            // always delivers the latest value
+            private volatile float progress;
+            private AtomicBoolean progressPending = new AtomicBoolean();
+
             public TagListener(Listener<T> listener, ProgressListener progressListener) {
                 this.listener = listener;
                 this.progressListener = progressListener;
@@ -192,15 +231,23 @@ class ImageLoaderImpl extends AbstractImageLoader {
             }
 
             @Override
-            public void onProgress(final float value) {
+            public void onProgress(float value) {
                 if (progressListener == null) {
                     return;
                 }
 
+                // The final update is always posted, a pending update
+                // might have been removed together with the tag's messages
+                progress = value;
+                if (!progressPending.compareAndSet(false, true) && value != 1f) {
+                    return;
+                }
+
                 post(getTag(), new Runnable() {
                     @Override
                     public void run() {
-                        progressListener.onProgress(value);
+                        progressPending.set(false);
+                        progressListener.onProgress(progress);
                     }
                 });
             }
@@ -32,9 +32,30 @@ public class Request {
         SKIP_DISK_CACHE
     }
 
+    /**
+     * How urgent a request is, requests with a higher priority are loaded
+     * first when using {@link com.webimageloader.loader.SchedulingPolicy#PRIORITY}
+     */
+    public enum Priority {
+        /**
+         * The image is about to be shown, default for loads with a listener
+         */
+        VISIBLE,
+        /**
+         * The image might be shown soon, default for preloads
+         */
+        PREFETCH,
+        /**
+         * Nobody is waiting for the image, for example when refreshing caches
+         */
+        BACKGROUND
+    }
+
     private String url;
     private Transformation transformation;
     private EnumSet<Flag> flags = EnumSet.noneOf(Flag.class);
+    private String memoryCachePartition;
+    private Priority priority;
 
     /**
      * Create a request for a resource in /res.
@@ -129,6 +150,35 @@ public class Request {
         return this;
     }
 
+    /**
+     * Put the result of this request in a memory cache partition, by default
+     * the partition named like the identifier of the transformation is used
+     * if there is one.
+     *
+     * @param name name of the partition
+     * @return this request
+     *
+     * @see ImageLoader.Builder#addMemoryCachePartition(String, int)
+     */
+    public Request setMemoryCachePartition(String name) {
+        this.memoryCachePartition = name;
+
+        return this;
+    }
+
+    /**
+     * Set the priority of this request, by default loads use
+     * {@link Priority#VISIBLE} and preloads {@link Priority#PREFETCH}
+     *
+     * @param priority the priority
+     * @return this request
+     */
+    public Request setPriority(Priority priority) {
+        this.priority = priority;
+
+        return this;
+    }
+
     /**
      * Add a flag to this request
      *
@@ -153,8 +203,10 @@ public class Request {
         return this;
     }
 
-    LoaderRequest toLoaderRequest() {
-        return new LoaderRequest(url, transformation, flags);
+    LoaderRequest toLoaderRequest(Priority defaultPriority) {
+        Priority p = priority != null ? priority : defaultPriority;
+
+        return new LoaderRequest(url, transformation, flags, memoryCachePartition, p);
     }
 
     private static String createUrl(String scheme, String authority, String path) {
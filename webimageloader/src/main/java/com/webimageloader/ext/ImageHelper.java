@@ -1,11 +1,15 @@
 package com.webimageloader.ext;
 
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import android.view.View;
 import android.widget.ProgressBar;
 import com.webimageloader.ImageLoader;
 import com.webimageloader.ImageLoader.Listener;
 import com.webimageloader.Request;
 import com.webimageloader.transformation.Transformation;
+import com.webimageloader.util.BitmapPool;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -49,6 +53,10 @@ public class ImageHelper {
     private LoadingListener listener;
     private DrawableCreator drawableCreator = DEFAULT_CREATOR;
 
+    // Bitmaps each view draws, bound in the bitmap pool so they aren't
+    // reused while shown. Only touched from the main thread.
+    private Map<ImageView, Bitmap[]> boundBitmaps = new WeakHashMap<ImageView, Bitmap[]>();
+
 
     /**
      * Create a new {@link ImageHelper} using the specified loader
@@ -200,15 +208,50 @@ public class ImageHelper {
 
         if (b != null) {
             v.setImageDrawable(drawableCreator.createDrawable(context, b));
+            bind(v, b);
         } else if (loadingResource != 0) {
             v.setImageResource(loadingResource);
+            bind(v);
         } else {
             v.setImageDrawable(null);
+            bind(v);
         }
 
         return b;
     }
 
+    /**
+     * Bind the bitmaps now drawn by this view and unbind the ones it no
+     * longer draws, so they can be reused once evicted
+     */
+    private void bind(ImageView v, Bitmap... bitmaps) {
+        BitmapPool pool = loader.getBitmapPool();
+        if (pool == null) {
+            return;
+        }
+
+        // Bind first, the same bitmap may still be shown
+        for (Bitmap b : bitmaps) {
+            pool.bind(b);
+        }
+
+        Bitmap[] previous = bitmaps.length > 0 ? boundBitmaps.put(v, bitmaps) : boundBitmaps.remove(v);
+        if (previous != null) {
+            for (Bitmap b : previous) {
+                pool.unbind(b);
+            }
+        }
+    }
+
+    /**
+     * Get the bitmap currently shown by this view, or null if it's
+     * showing something else
+     */
+    private Bitmap getShownBitmap(ImageView v) {
+        Bitmap[] bitmaps = boundBitmaps.get(v);
+        return bitmaps != null ? bitmaps[bitmaps.length - 1] : null;
+    }
+
     /**
      * Set a drawable creator
      * @param drawableCreator the drawable creator
@@ -225,8 +268,15 @@ public class ImageHelper {
         public void onSuccess(ImageView v, Bitmap b) {
             if (!fadeIn) {
                 v.setImageBitmap(b);
+                bind(v, b);
             } else {
                 Drawable old = v.getDrawable();
+                if (old instanceof TransitionDrawable) {
+                    // Fade from what's shown now instead of nesting transitions
+                    TransitionDrawable transition = (TransitionDrawable) old;
+                    old = transition.getDrawable(transition.getNumberOfLayers() - 1);
+                }
+
                 if (old == null) {
                     old = new ColorDrawable(android.R.color.transparent);
                 }
@@ -238,6 +288,14 @@ public class ImageHelper {
 
                 v.setImageDrawable(d);
                 d.startTransition(fadeDuration);
+
+                // The old image is still drawn below the new one
+                Bitmap shown = getShownBitmap(v);
+                if (shown != null) {
+                    bind(v, shown, b);
+                } else {
+                    bind(v, b);
+                }
             }
         }
 
@@ -246,6 +304,7 @@ public class ImageHelper {
             Log.d(TAG, "Error loading bitmap", t);
             if (errorResource > 0) {
                 v.setImageResource(errorResource);
+                bind(v);
             }
         }
     }
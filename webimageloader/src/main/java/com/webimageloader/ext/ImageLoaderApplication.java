@@ -5,6 +5,7 @@ import java.io.File;
 import com.webimageloader.ImageLoader;
 import com.webimageloader.ImageLoader.Logger;
 import com.webimageloader.loader.MemoryCache;
+import com.webimageloader.util.BitmapPool;
 import com.webimageloader.util.IOUtil;
 
 import android.annotation.TargetApi;
@@ -62,6 +63,12 @@ public class ImageLoaderApplication extends Application {
             if (Logger.DEBUG) Log.d(TAG, "onLowMemory() called, eviciting all bitmaps");
             memoryCache.evictAll();
         }
+
+        // Evict the pool last as the memory cache hands released bitmaps to it
+        BitmapPool bitmapPool = imageLoader.getBitmapPool();
+        if (bitmapPool != null) {
+            bitmapPool.evictAll();
+        }
     }
 
     @Override
@@ -79,6 +86,11 @@ public class ImageLoaderApplication extends Application {
             // Evict our entire bitmap cache
             if (Logger.DEBUG) Log.d(TAG, "onTrimMemory(), level>=TRIM_MEMORY_MODERATE called, eviciting all bitmaps");
             memoryCache.evictAll();
+
+            BitmapPool bitmapPool = imageLoader.getBitmapPool();
+            if (bitmapPool != null) {
+                bitmapPool.evictAll();
+            }
         } else if (level >= TRIM_MEMORY_BACKGROUND) {
             // Entering list of cached background apps
             // Evict oldest half of our bitmap cache
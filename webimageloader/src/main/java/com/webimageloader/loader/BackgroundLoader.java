@@ -1,15 +1,19 @@
 package com.webimageloader.loader;
 
 import java.io.Closeable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.webimageloader.util.ListenerFuture;
 
 public abstract class BackgroundLoader implements Loader, Closeable {
-    private ExecutorService executor;
+    private ThreadPoolExecutor executor;
 
-    public BackgroundLoader(ExecutorService executor) {
+    // Keeps track of the order work was added in
+    private AtomicLong sequence = new AtomicLong();
+
+    public BackgroundLoader(ThreadPoolExecutor executor) {
         this.executor = executor;
     }
 
@@ -29,7 +33,18 @@ public abstract class BackgroundLoader implements Loader, Closeable {
     }
 
     protected void run(LoaderWork.Manager manager, ListenerFuture.Task task) {
-        Future<?> future = executor.submit(new ListenerFuture(task, manager));
+        PrioritizedTask future = new PrioritizedTask(new ListenerFuture(task, manager), manager,
+                executor, sequence);
+
+        // Count it before it can run, it's done once it has stopped running
+        manager.taskQueued();
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            manager.taskFinished();
+            throw e;
+        }
+
         manager.addFuture(future);
     }
 
@@ -0,0 +1,136 @@
+package com.webimageloader.loader;
+
+import com.webimageloader.util.Hasher;
+
+/**
+ * Identifies an image in the caches by its url and the identifier of the
+ * transformation applied to it. The 64-bit hash is computed once, equal keys
+ * are usually told apart by it without comparing the strings.
+ */
+public final class CacheKey {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String url;
+    private final String transformation;
+
+    // Hash of the url only, so the key without the transformation is cheap
+    private final long urlHash;
+    private final long hash;
+
+    private String string;
+    private String diskKey;
+
+    /**
+     * @param url url of the image
+     * @param transformation identifier of the transformation, or null
+     */
+    public CacheKey(String url, String transformation) {
+        this(url, transformation, hash(FNV_OFFSET, url));
+    }
+
+    private CacheKey(String url, String transformation, long urlHash) {
+        this.url = url;
+        this.transformation = transformation;
+        this.urlHash = urlHash;
+
+        long h = transformation != null ? hash(urlHash, transformation) : urlHash;
+        hash = mix(h);
+    }
+
+    /**
+     * @return the key of the untransformed image
+     */
+    public CacheKey withoutTransformation() {
+        if (transformation == null) {
+            return this;
+        }
+
+        return new CacheKey(url, null, urlHash);
+    }
+
+    /**
+     * @return the 64-bit hash of this key
+     */
+    public long hash64() {
+        return hash;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (obj instanceof CacheKey) {
+            CacheKey key = (CacheKey) obj;
+            return hash == key.hash && url.equals(key.url)
+                    && (transformation == null ? key.transformation == null : transformation.equals(key.transformation));
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * @return the url followed by the transformation identifier, this is
+     *     what's hashed for the disk cache
+     */
+    @Override
+    public String toString() {
+        String s = string;
+        if (s == null) {
+            s = transformation != null ? url + transformation : url;
+            string = s;
+        }
+
+        return s;
+    }
+
+    /**
+     * Get this key hashed for use as a disk filename. The hash is computed
+     * once, a racing thread may compute it again but always gets the same
+     * result.
+     *
+     * @param hasher hasher used the first time
+     * @return the hashed key
+     */
+    public String getDiskKey(Hasher hasher) {
+        String key = diskKey;
+        if (key == null) {
+            key = hasher.hash(toString());
+            diskKey = key;
+        }
+
+        return key;
+    }
+
+    /**
+     * FNV-1a over the chars of the string, continuing from {@code h}
+     */
+    private static long hash(long h, String s) {
+        for (int i = 0, length = s.length(); i < length; i++) {
+            h ^= s.charAt(i);
+            h *= FNV_PRIME;
+        }
+
+        return h;
+    }
+
+    /**
+     * Spread the bits, FNV is weak in the low bits used by hash tables
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+}
@@ -0,0 +1,101 @@
+package com.webimageloader.loader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Storage engine used by the {@link DiskLoader}, every entry holds an
+ * image and its {@link Metadata}. Implementations must be thread safe.
+ */
+public interface DiskCache extends Closeable {
+    /**
+     * Opens a {@link DiskCache}, called from a background thread
+     */
+    interface Factory {
+        /**
+         * Open the cache, creating it if it doesn't exist
+         *
+         * @param directory the directory to store the cache in
+         * @param maxSize max size of the cache in bytes
+         * @return the opened cache
+         * @throws IOException if the cache could not be opened
+         */
+        DiskCache open(File directory, long maxSize) throws IOException;
+    }
+
+    /**
+     * Get a snapshot of an entry
+     *
+     * @param key the key, made up of [a-z0-9_-]
+     * @return the snapshot, or null if there is no such entry
+     * @throws IOException if reading the cache failed
+     */
+    Snapshot get(String key) throws IOException;
+
+    /**
+     * Create or update an entry
+     *
+     * @param key the key, made up of [a-z0-9_-]
+     * @return an editor, or null if the entry is already being edited
+     * @throws IOException if writing to the cache failed
+     */
+    Editor edit(String key) throws IOException;
+
+    /**
+     * Remove an entry, entries which are being edited are not removed
+     *
+     * @param key the key, made up of [a-z0-9_-]
+     * @return true if the entry was removed
+     * @throws IOException if writing to the cache failed
+     */
+    boolean remove(String key) throws IOException;
+
+    /**
+     * A stable view of an entry, must be closed once done with it
+     */
+    interface Snapshot extends Closeable {
+        /**
+         * @return a stream of the image, only call this once per snapshot
+         * @throws IOException if reading failed
+         */
+        InputStream getImage() throws IOException;
+
+        /**
+         * @return length of the image in bytes
+         */
+        long getImageLength();
+
+        /**
+         * @return a stream of the metadata, only call this once per snapshot
+         * @throws IOException if reading failed
+         */
+        InputStream getMetadata() throws IOException;
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Edits an entry, the new values become visible once committed. Values
+     * which aren't written keep their old content, a new entry must have
+     * both values written.
+     */
+    interface Editor {
+        OutputStream newImageOutputStream() throws IOException;
+
+        OutputStream newMetadataOutputStream() throws IOException;
+
+        void commit() throws IOException;
+
+        void abort() throws IOException;
+
+        /**
+         * Abort the edit unless it has been committed, safe to call in a
+         * finally block
+         */
+        void abortUnlessCommitted();
+    }
+}
@@ -2,27 +2,62 @@ package com.webimageloader.loader;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FilterInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.graphics.Bitmap;
 import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.jakewharton.disklrucache.DiskLruCache;
-import com.jakewharton.disklrucache.DiskLruCache.Editor;
-import com.jakewharton.disklrucache.DiskLruCache.Snapshot;
 import com.webimageloader.Constants;
 import com.webimageloader.ImageLoader.Logger;
-import com.webimageloader.util.ListenerFuture;
+import com.webimageloader.loader.DiskCache.Editor;
+import com.webimageloader.loader.DiskCache.Snapshot;
+import com.webimageloader.transformation.Encoding;
+import com.webimageloader.transformation.EncodingAwareTransformation;
+import com.webimageloader.transformation.Transformation;
+import com.webimageloader.util.AbortableInputSupplier;
+import com.webimageloader.util.BitmapPool;
 import com.webimageloader.util.BitmapUtils;
+import com.webimageloader.util.ByteBufferInputStream;
 import com.webimageloader.util.Hasher;
+import com.webimageloader.util.HeaderInputSupplier;
 import com.webimageloader.util.IOUtil;
+import com.webimageloader.util.ImageHeaderParser;
 import com.webimageloader.util.InputSupplier;
+import com.webimageloader.util.ListenerFuture;
+import com.webimageloader.util.PriorityThreadFactory;
 
 import static com.webimageloader.Request.Flag.IGNORE_CACHE;
 import static com.webimageloader.Request.Flag.NO_CACHE;
@@ -31,33 +66,410 @@ import static com.webimageloader.Request.Flag.SKIP_DISK_CACHE;
 public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
     private static final String TAG = "DiskLoader";
 
-    private static final int APP_VERSION = 2;
-
     private static final int BUFFER_SIZE = 8192;
 
-    private static final int INPUT_IMAGE = 0;
-    private static final int INPUT_METADATA = 1;
-    private static final int VALUE_COUNT = 2;
+    // Files up to this size are read in one go instead of being mapped
+    private static final int SMALL_FILE_SIZE = 32 * 1024;
+
+    // How much we're willing to buffer while parsing the header of an image
+    private static final int HEADER_LIMIT = 64 * 1024;
+
+    // Max number of bitmaps waiting to be written, the oldest are dropped
+    private static final int MAX_PENDING_WRITES = 32;
+
+    // How long closing waits for the current write to finish, in milliseconds
+    private static final long CLOSE_WRITE_TIMEOUT = 2000;
+
+    // Max number of recently loaded urls remembered for revalidation
+    private static final int MAX_RECENT_URLS = 256;
+
+    // The recent urls are kept in the cache directory so they survive a
+    // restart, saved at most this often (in milliseconds) and when closed
+    private static final String RECENT_URLS_FILE = "recent_urls";
+    private static final long RECENT_URLS_SAVE_INTERVAL = 30 * 1000;
 
-    private DiskLruCache cache;
-    private final Hasher hasher;
+    private volatile DiskCache cache;
+    private final CountDownLatch opened = new CountDownLatch(1);
+    private boolean closed;
+    private volatile Hasher hasher = new Hasher();
+
+    private volatile float finishThreshold = Constants.DEFAULT_FINISH_THRESHOLD;
+    private volatile boolean mappedReads;
+    private volatile long maxStale = Constants.MAX_STALE_UNLIMITED;
+    private volatile BitmapPool bitmapPool;
+
+    // Bitmaps waiting to be written to the cache, by disk key in the order
+    // they were added. Guarded by itself, as is writeScheduled.
+    private final LinkedHashMap<String, PendingWrite> pendingWrites = new LinkedHashMap<String, PendingWrite>();
+    private boolean writeScheduled;
+
+    private final ExecutorService writeExecutor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new PriorityThreadFactory("Disk write", Process.THREAD_PRIORITY_LOWEST));
+
+    // Untransformed urls in the order they were last loaded, guarded by itself
+    private final LinkedHashMap<String, Boolean> recentUrls = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_RECENT_URLS;
+        }
+    };
+    private boolean recentUrlsSaveScheduled;
+    private long recentUrlsSaveTime;
+
+    // Set once the cache is open
+    private volatile File recentUrlsFile;
+
+    private final Runnable saveRecentUrlsTask = new Runnable() {
+        @Override
+        public void run() {
+            saveRecentUrls();
+        }
+    };
+
+    private final Loader revalidationLoader = new Loader() {
+        @Override
+        public void load(final LoaderWork.Manager manager, final LoaderRequest request) {
+            run(manager, new ListenerFuture.Task() {
+                @Override
+                public void run() throws Exception {
+                    revalidateInBackground(manager, request);
+                }
+            });
+        }
+    };
+
+    private final AtomicInteger encodeCount = new AtomicInteger();
+    private final AtomicInteger skippedEncodeCount = new AtomicInteger();
+    private final AtomicLong encodeTime = new AtomicLong();
+    private final AtomicLong encodedSize = new AtomicLong();
+
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
 
     public static DiskLoader open(File directory, long maxSize, int threadCount) throws IOException {
-        return new DiskLoader(DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, maxSize), threadCount);
+        return open(directory, maxSize, threadCount, SchedulingPolicy.FIFO);
+    }
+
+    public static DiskLoader open(File directory, long maxSize, int threadCount, SchedulingPolicy policy) throws IOException {
+        return open(LruDiskCache.FACTORY, directory, maxSize, threadCount, policy);
+    }
+
+    public static DiskLoader open(DiskCache.Factory factory, File directory, long maxSize, int threadCount, SchedulingPolicy policy) throws IOException {
+        DiskLoader loader = new DiskLoader(threadCount, policy);
+        loader.setCache(factory.open(directory, maxSize), directory);
+
+        return loader;
     }
 
-    private DiskLoader(DiskLruCache cache, int threadCount) {
-        super("Disk", Process.THREAD_PRIORITY_BACKGROUND, threadCount);
+    /**
+     * Open the disk cache on a background thread instead of blocking the
+     * caller, requests wait for it to be ready. If the cache fails to open
+     * requests go straight to the next loader.
+     *
+     * @param factory factory opening the cache
+     * @param directory directory of the cache
+     * @param maxSize max size of the cache
+     * @param threadCount number of threads to use
+     * @param policy scheduling policy for the disk threads
+     * @return the disk loader
+     */
+    public static DiskLoader openAsync(final DiskCache.Factory factory, final File directory, final long maxSize,
+            int threadCount, SchedulingPolicy policy) {
+        final DiskLoader loader = new DiskLoader(threadCount, policy);
+
+        ThreadFactory threadFactory = new PriorityThreadFactory("Disk cache open", Process.THREAD_PRIORITY_BACKGROUND);
+        threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                DiskCache cache = null;
+                try {
+                    cache = factory.open(directory, maxSize);
+                } catch (IOException e) {
+                    Log.e(TAG, "Disk cache not available", e);
+                } finally {
+                    loader.setCache(cache, directory);
+                }
+            }
+        }).start();
+
+        return loader;
+    }
 
-        this.cache = cache;
-        hasher = new Hasher();
+    private DiskLoader(int threadCount, SchedulingPolicy policy) {
+        super("Disk", Process.THREAD_PRIORITY_BACKGROUND, threadCount, policy);
+    }
+
+    private void setCache(DiskCache cache, File directory) {
+        synchronized (opened) {
+            if (closed) {
+                // Closed while opening
+                IOUtil.closeQuietly(cache);
+                cache = null;
+            }
+
+            if (cache != null) {
+                // Before any request can be loaded, those are more recent
+                recentUrlsFile = new File(directory, RECENT_URLS_FILE);
+                loadRecentUrls();
+            }
+
+            this.cache = cache;
+            opened.countDown();
+        }
+    }
+
+    /**
+     * Wait for the cache to be opened
+     *
+     * @return the cache, or null if it failed to open
+     */
+    private DiskCache awaitCache() throws IOException {
+        try {
+            opened.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while opening disk cache");
+        }
+
+        return cache;
+    }
+
+    /**
+     * Set how much of a download has to be done for it to be finished and
+     * saved to the cache even though nobody wants it anymore. Downloads of
+     * unknown length are always aborted.
+     *
+     * @param threshold fraction of the download in the range 0f-1f, values
+     *     above 1f means downloads are always aborted
+     */
+    public void setFinishThreshold(float threshold) {
+        finishThreshold = threshold;
+    }
+
+    /**
+     * Serve cache hits from a memory mapped file, or a byte array for small
+     * files, instead of a regular stream. This avoids copying the image
+     * through several buffers before it reaches the decoder.
+     *
+     * @param enabled true to enable mapped reads
+     */
+    public void setMappedReads(boolean enabled) {
+        mappedReads = enabled;
+    }
+
+    /**
+     * Set how long after expiring a cached image may still be delivered
+     * while it's checked in the background. Older images are checked before
+     * being delivered, and only used if the check fails.
+     *
+     * @param maxStale max time in milliseconds, or
+     *     {@link Constants#MAX_STALE_UNLIMITED} to always deliver right away
+     */
+    public void setMaxStale(long maxStale) {
+        this.maxStale = maxStale;
+    }
+
+    /**
+     * Set how disk keys are hashed, must be called before any work is
+     * added. Entries saved with a different algorithm aren't found and will
+     * eventually be evicted.
+     *
+     * @param algorithm the algorithm
+     */
+    public void setKeyHashing(Hasher.Algorithm algorithm) {
+        hasher = new Hasher(algorithm);
+    }
+
+    /**
+     * Set the pool recycled bitmaps are put in, bitmaps waiting to be
+     * written to the cache are kept out of it until they're written.
+     *
+     * @param bitmapPool the pool, or null
+     */
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+    }
+
+    /**
+     * Get a loader which only checks cached images which have expired,
+     * fresh images are answered as not modified and missing ones fail.
+     * Nothing is read from the cache except the metadata.
+     *
+     * @return the loader, to be followed by the network loader
+     */
+    public Loader getRevalidationLoader() {
+        return revalidationLoader;
+    }
+
+    /**
+     * Get the untransformed urls loaded most recently. The cache only
+     * knows the hashed keys, so this is what can be revalidated without
+     * being told the urls. The urls are saved in the cache directory,
+     * urls loaded shortly before the process was killed without closing
+     * the loader might be missing.
+     *
+     * @param count max number of urls
+     * @return the urls, most recently loaded first
+     */
+    public List<String> getRecentUrls(int count) {
+        List<String> urls;
+        synchronized (recentUrls) {
+            urls = new ArrayList<String>(recentUrls.keySet());
+        }
+
+        Collections.reverse(urls);
+        if (urls.size() > count) {
+            urls = new ArrayList<String>(urls.subList(0, count));
+        }
+
+        return urls;
+    }
+
+    private void addRecentUrl(String url) {
+        synchronized (recentUrls) {
+            recentUrls.put(url, Boolean.TRUE);
+
+            if (recentUrlsSaveScheduled || SystemClock.uptimeMillis() - recentUrlsSaveTime < RECENT_URLS_SAVE_INTERVAL) {
+                return;
+            }
+
+            recentUrlsSaveScheduled = true;
+        }
+
+        synchronized (pendingWrites) {
+            if (!writeExecutor.isShutdown()) {
+                writeExecutor.execute(saveRecentUrlsTask);
+            }
+        }
+    }
+
+    private void loadRecentUrls() {
+        File file = recentUrlsFile;
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+
+            // Eldest first
+            while (true) {
+                String url = in.readUTF();
+                synchronized (recentUrls) {
+                    recentUrls.put(url, Boolean.TRUE);
+                }
+            }
+        } catch (EOFException e) {
+            // All read
+        } catch (IOException e) {
+            Log.w(TAG, "Failed reading recent urls", e);
+        } finally {
+            IOUtil.closeQuietly(in);
+        }
+    }
+
+    private void saveRecentUrls() {
+        List<String> urls;
+        synchronized (recentUrls) {
+            recentUrlsSaveScheduled = false;
+            recentUrlsSaveTime = SystemClock.uptimeMillis();
+
+            urls = new ArrayList<String>(recentUrls.keySet());
+        }
+
+        File file = recentUrlsFile;
+        if (file == null) {
+            return;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE));
+            try {
+                for (String url : urls) {
+                    try {
+                        out.writeUTF(url);
+                    } catch (UTFDataFormatException e) {
+                        // Too long to save, nothing was written
+                    }
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed saving recent urls", e);
+        }
+    }
+
+    /**
+     * @return number of transformed images compressed and saved
+     */
+    public int getEncodeCount() {
+        return encodeCount.get();
+    }
+
+    /**
+     * @return number of transformed images not saved because of their
+     *     {@link Encoding}
+     */
+    public int getSkippedEncodeCount() {
+        return skippedEncodeCount.get();
+    }
+
+    /**
+     * @return total time spent compressing transformed images, in milliseconds
+     */
+    public long getEncodeTime() {
+        return encodeTime.get();
+    }
+
+    /**
+     * @return total size of the compressed transformed images, in bytes
+     */
+    public long getEncodedSize() {
+        return encodedSize.get();
     }
 
     @Override
     public void close() {
         super.close();
 
-        IOUtil.closeQuietly(cache);
+        synchronized (pendingWrites) {
+            // Anything not written by now is lost, it's only a cache
+            for (PendingWrite write : pendingWrites.values()) {
+                if (!write.taken) {
+                    release(write);
+                }
+            }
+
+            pendingWrites.clear();
+            writeExecutor.shutdownNow();
+        }
+
+        // Don't close the cache under a bitmap which is being written
+        try {
+            if (!writeExecutor.awaitTermination(CLOSE_WRITE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for disk write, closing anyway");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        saveRecentUrls();
+
+        synchronized (opened) {
+            closed = true;
+            IOUtil.closeQuietly(cache);
+        }
     }
 
     @Override
@@ -72,18 +484,47 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
 
     @Override
     protected void loadInBackground(LoaderWork.Manager manager, LoaderRequest request) throws IOException {
+        if (awaitCache() == null) {
+            // No cache, pass it through without caching
+            manager.next(request);
+            return;
+        }
+
+        if (request.getTransformation() == null) {
+            addRecentUrl(request.getUrl());
+        }
+
+        PendingWrite pending = getPendingWrite(hashKeyForDisk(request));
+        if (pending != null) {
+            // Not written yet, but we still have the bitmap
+            if (Logger.VERBOSE) Log.v(TAG, "Loaded " + request + " from pending disk write");
+
+            manager.deliverBitmap(pending.bitmap, pending.metadata);
+            return;
+        }
+
         Snapshot snapshot = getSnapshot(request);
         if (snapshot != null) {
             try {
                 if (Logger.VERBOSE) Log.v(TAG, "Loaded " + request + " from disk");
 
                 Metadata metadata = readMetadata(snapshot);
-                DiskInputSupplier input = new DiskInputSupplier(request, snapshot);
 
+                long expires = metadata.getExpires();
+                long now = System.currentTimeMillis();
+                boolean expired = expires != Metadata.NEVER_EXPIRES && now > expires;
+
+                if (expired && isTooStale(metadata, now - expires)) {
+                    // Too old to show, check it first
+                    if (Logger.VERBOSE) Log.v(TAG, request + " is too stale, updating before delivering");
+                    manager.next(request.withMetadata(metadata, true), new NextListener(request, manager, metadata));
+                    return;
+                }
+
+                DiskInputSupplier input = new DiskInputSupplier(request, snapshot, metadata.getImageHeader());
                 manager.deliverStream(input, metadata);
 
-                long expires = metadata.getExpires();
-                if (expires != Metadata.NEVER_EXPIRES && System.currentTimeMillis() > expires) {
+                if (expired) {
                     // Cache has expired
                     if (Logger.VERBOSE) Log.v(TAG, request + " has expired, updating");
                     manager.next(request.withMetadata(metadata), new NextListener(request, manager));
@@ -97,9 +538,64 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
         }
     }
 
+    private void revalidateInBackground(LoaderWork.Manager manager, LoaderRequest request) throws IOException {
+        if (awaitCache() == null) {
+            throw new IOException("Disk cache not available");
+        }
+
+        PendingWrite pending = getPendingWrite(hashKeyForDisk(request));
+        if (pending != null) {
+            // Just loaded, can't be old
+            manager.deliverNotMotified(pending.metadata);
+            return;
+        }
+
+        Metadata metadata;
+        Snapshot snapshot = getSnapshot(request);
+        if (snapshot == null) {
+            throw new FileNotFoundException(request + " is not cached");
+        }
+
+        try {
+            metadata = readMetadata(snapshot);
+        } finally {
+            snapshot.close();
+        }
+
+        long expires = metadata.getExpires();
+        if (expires == Metadata.NEVER_EXPIRES || System.currentTimeMillis() <= expires) {
+            // Still fresh, nothing to do
+            manager.deliverNotMotified(metadata);
+            return;
+        }
+
+        if (Logger.VERBOSE) Log.v(TAG, request + " has expired, revalidating");
+        manager.next(request.withMetadata(metadata), new NextListener(request, manager));
+    }
+
+    /**
+     * Check if an expired image has to be checked before it's delivered
+     *
+     * @param metadata metadata of the image
+     * @param staleness time since the image expired
+     */
+    private boolean isTooStale(Metadata metadata, long staleness) {
+        if (metadata.isMustRevalidate()) {
+            return true;
+        }
+
+        // The server knows best, otherwise use our own limit
+        long limit = metadata.getStaleWhileRevalidate();
+        if (limit == Metadata.STALE_NOT_SET) {
+            limit = maxStale;
+        }
+
+        return limit != Constants.MAX_STALE_UNLIMITED && staleness > limit;
+    }
+
     private Metadata readMetadata(Snapshot snapshot) throws IOException {
         // Use a small buffer as the metadata itself is small
-        InputStream is = new BufferedInputStream(snapshot.getInputStream(INPUT_METADATA), 1024);
+        InputStream is = new BufferedInputStream(snapshot.getMetadata(), 1024);
         try {
             return Metadata.from(is);
         } finally {
@@ -113,7 +609,14 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
     }
 
     private Editor getEditor(LoaderRequest request) throws IOException {
-        String key = hashKeyForDisk(request);
+        return getEditor(hashKeyForDisk(request));
+    }
+
+    private Editor getEditor(String key) throws IOException {
+        DiskCache cache = awaitCache();
+        if (cache == null) {
+            throw new IOException("Disk cache not available");
+        }
 
         Editor editor = cache.edit(key);
         if (editor == null) {
@@ -123,64 +626,319 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
         return editor;
     }
 
+    private PendingWrite getPendingWrite(String key) {
+        synchronized (pendingWrites) {
+            return pendingWrites.get(key);
+        }
+    }
+
+    /**
+     * Queue a bitmap to be written to the cache in the background. An
+     * earlier write for the same key which hasn't started yet is replaced.
+     */
+    private void enqueueWrite(String key, Bitmap b, Metadata metadata, Encoding encoding) {
+        PendingWrite write = new PendingWrite(b, metadata, encoding);
+
+        synchronized (pendingWrites) {
+            if (writeExecutor.isShutdown()) {
+                return;
+            }
+
+            hold(write);
+
+            // Remove first so the key moves to the end
+            PendingWrite previous = pendingWrites.remove(key);
+            if (previous != null) {
+                if (Logger.VERBOSE) Log.v(TAG, "Replacing pending disk write for " + key);
+                discard(previous);
+            }
+
+            pendingWrites.put(key, write);
+
+            if (pendingWrites.size() > MAX_PENDING_WRITES) {
+                Iterator<PendingWrite> it = pendingWrites.values().iterator();
+                PendingWrite eldest = it.next();
+                it.remove();
+
+                if (Logger.VERBOSE) Log.v(TAG, "Too many pending disk writes, dropping oldest");
+                discard(eldest);
+            }
+
+            if (!writeScheduled) {
+                writeScheduled = true;
+                writeExecutor.execute(writeTask);
+            }
+        }
+    }
+
+    /**
+     * Drop a pending write for this key which hasn't started yet, it would
+     * overwrite what's about to be saved
+     */
+    private void cancelPendingWrite(String key) {
+        synchronized (pendingWrites) {
+            PendingWrite write = pendingWrites.get(key);
+            if (write != null && !write.taken) {
+                pendingWrites.remove(key);
+                release(write);
+            }
+        }
+    }
+
+    /**
+     * Write everything that's pending, in batches of whatever was queued
+     * when the previous batch was done
+     */
+    private void writePending() {
+        List<String> keys = new ArrayList<String>();
+        List<PendingWrite> batch = new ArrayList<PendingWrite>();
+        int done = 0;
+        boolean finished = false;
+
+        try {
+            while (true) {
+                synchronized (pendingWrites) {
+                    if (pendingWrites.isEmpty()) {
+                        writeScheduled = false;
+                        finished = true;
+                        return;
+                    }
+
+                    keys.clear();
+                    batch.clear();
+                    done = 0;
+                    for (Map.Entry<String, PendingWrite> entry : pendingWrites.entrySet()) {
+                        PendingWrite write = entry.getValue();
+                        if (!write.taken) {
+                            write.taken = true;
+                            keys.add(entry.getKey());
+                            batch.add(write);
+                        }
+                    }
+                }
+
+                while (done < batch.size()) {
+                    String key = keys.get(done);
+                    PendingWrite write = batch.get(done);
+
+                    try {
+                        if (!Thread.currentThread().isInterrupted()) {
+                            writeBitmap(key, write);
+                        }
+                    } finally {
+                        finishWrite(key, write);
+                        done++;
+                    }
+                }
+            }
+        } finally {
+            if (!finished) {
+                // Failed unexpectedly, drop the rest of the batch and let
+                // the next write start over
+                synchronized (pendingWrites) {
+                    for (int i = done; i < batch.size(); i++) {
+                        finishWrite(keys.get(i), batch.get(i));
+                    }
+
+                    writeScheduled = false;
+                }
+            }
+        }
+    }
+
+    private void finishWrite(String key, PendingWrite write) {
+        synchronized (pendingWrites) {
+            // Keep any newer write for the same key
+            if (pendingWrites.get(key) == write) {
+                pendingWrites.remove(key);
+            }
+
+            release(write);
+        }
+    }
+
+    private void writeBitmap(String key, PendingWrite write) {
+        Bitmap b = write.bitmap;
+
+        // Use the format of the original unless the transformation wants something else
+        Bitmap.CompressFormat format = write.encoding.getFormat();
+        if (format == null) {
+            format = BitmapUtils.getCompressFormat(write.metadata.getContentType());
+        }
+
+        try {
+            Editor editor = getEditor(key);
+
+            try {
+                long start = System.nanoTime();
+
+                CountingOutputStream os = new CountingOutputStream(editor.newImageOutputStream());
+                OutputStream buffered = new BufferedOutputStream(os, BUFFER_SIZE);
+                try {
+                    if (!b.compress(format, write.encoding.getQuality(), buffered)) {
+                        throw new IOException("Failed to compress bitmap");
+                    }
+                } finally {
+                    IOUtil.closeQuietly(buffered);
+                }
+
+                long time = (System.nanoTime() - start) / 1000000;
+                encodeCount.incrementAndGet();
+                encodeTime.addAndGet(time);
+                encodedSize.addAndGet(os.count);
+
+                if (Logger.DEBUG) Log.d(TAG, "Compressed " + b.getWidth() + "x" + b.getHeight() + " " + format
+                        + " to " + os.count + " bytes in " + time + " ms");
+
+                // We know what we just wrote, save it so it doesn't have to be parsed later
+                ImageHeaderParser.Header header = new ImageHeaderParser.Header(BitmapUtils.getContentType(format),
+                        b.getWidth(), b.getHeight(), ImageHeaderParser.ORIENTATION_UNDEFINED, false, false);
+                writeMetadata(editor, write.metadata.withImageHeader(header));
+
+                editor.commit();
+            } finally {
+                editor.abortUnlessCommitted();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed saving bitmap to cache", e);
+        }
+    }
+
+    /**
+     * Forget about a write which was replaced or dropped, if it's currently
+     * being written the writer releases it when done
+     */
+    private void discard(PendingWrite write) {
+        if (!write.taken) {
+            release(write);
+        }
+    }
+
+    private void hold(PendingWrite write) {
+        BitmapPool pool = bitmapPool;
+        if (pool != null) {
+            pool.hold(write.bitmap);
+        }
+    }
+
+    private void release(PendingWrite write) {
+        BitmapPool pool = bitmapPool;
+        if (pool != null) {
+            pool.release(write.bitmap);
+        }
+    }
+
+    private static void writeMetadata(Editor editor, Metadata metadata) throws IOException {
+        OutputStream os = new BufferedOutputStream(editor.newMetadataOutputStream(), BUFFER_SIZE);
+        try {
+            metadata.writeTo(os);
+        } finally {
+            IOUtil.closeQuietly(os);
+        }
+    }
+
+    private static class PendingWrite {
+        final Bitmap bitmap;
+        final Metadata metadata;
+        final Encoding encoding;
+
+        // Set once the writer has picked it up, guarded by pendingWrites
+        boolean taken;
+
+        PendingWrite(Bitmap bitmap, Metadata metadata, Encoding encoding) {
+            this.bitmap = bitmap;
+            this.metadata = metadata;
+            this.encoding = encoding;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            out.write(b, offset, length);
+            count += length;
+        }
+    }
+
+    private static Encoding getEncoding(Transformation transformation) {
+        if (transformation instanceof EncodingAwareTransformation) {
+            return ((EncodingAwareTransformation) transformation).getEncoding();
+        } else {
+            return Encoding.original();
+        }
+    }
+
     /**
      * A hashing method that changes a string (like a URL) into a hash suitable
      * for using as a disk filename.
      */
     private String hashKeyForDisk(LoaderRequest request) {
-        String key = request.getCacheKey();
-
-        // We don't except to have a lot of threads
-        // so it's okay to synchronize access
-        synchronized (hasher) {
-            return hasher.hash(key);
-        }
+        // Hashed once per request, the hasher is safe to use from any thread
+        return request.getDiskKey(hasher);
     }
 
     private class NextListener implements Listener {
         private LoaderRequest request;
         private LoaderWork.Manager manager;
 
+        // Metadata of a cached image which hasn't been delivered yet
+        private Metadata staleMetadata;
+
         public NextListener(LoaderRequest request, LoaderWork.Manager manager) {
+            this(request, manager, null);
+        }
+
+        public NextListener(LoaderRequest request, LoaderWork.Manager manager, Metadata staleMetadata) {
             this.request = request;
             this.manager = manager;
+            this.staleMetadata = staleMetadata;
         }
 
         @Override
-        public void onStreamLoaded(InputSupplier input, final Metadata metadata) {
-            if (request.hasFlag(NO_CACHE) || request.hasFlag(SKIP_DISK_CACHE)) {
+        public void onStreamLoaded(InputSupplier input, Metadata metadata) {
+            if (metadata.isNoStore()) {
+                removeCached(hashKeyForDisk(request));
+            }
+
+            if (request.hasFlag(NO_CACHE) || request.hasFlag(SKIP_DISK_CACHE) || metadata.isNoStore()) {
                 manager.deliverStream(input, metadata);
                 return;
             }
 
             try {
-                Editor editor = getEditor(request);
-
-                OutputStream os = new BufferedOutputStream(editor.newOutputStream(INPUT_IMAGE), BUFFER_SIZE);
-                try {
-                    try {
-                        copy(input, os);
-                    } finally {
-                        os.close();
-                    }
+                String key = hashKeyForDisk(request);
+                cancelPendingWrite(key);
 
-                    writeMetadata(editor, metadata);
+                Editor editor = getEditor(key);
+                TeeInputSupplier tee = new TeeInputSupplier(input, editor, metadata);
 
-                    editor.commit();
+                try {
+                    // Decode while the image is being written to the cache,
+                    // it's only read back if the stream is opened again
+                    manager.deliverStream(tee, tee.readMetadata());
 
-                    // Read back the file we just saved
-                    run(manager, new ListenerFuture.Task() {
-                        @Override
-                        public void run() throws Exception {
-                            DiskInputSupplier input = new DiskInputSupplier(request);
-                            manager.deliverStream(input, metadata);
-                        }
-                    });
+                    // Save the rest of the image even if it wasn't read
+                    tee.finish();
+                } catch (CancelledException e) {
+                    // Nobody is going to read it now
                 } catch (IOException e) {
-                    // We failed writing to the cache, we can't really do
-                    // anything to clean this up
-                    editor.abort();
-                    manager.deliverError(e);
+                    // Any errors reading the stream have already been seen
+                    // by the listener, we only failed updating the cache
+                    Log.e(TAG, "Failed saving " + request + " to cache", e);
+                } finally {
+                    tee.close();
                 }
             } catch (IOException e) {
                 // We failed opening the cache, this
@@ -191,46 +949,103 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
             }
         }
 
-        public void copy(InputSupplier input, OutputStream output) throws IOException {
-            long length = input.getLength();
-            InputStream is = new BufferedInputStream(input.getInput(), BUFFER_SIZE);
+        private CancelledException cancelled() {
+            if (Logger.VERBOSE) Log.v(TAG, "Aborting download of " + request + ", no longer needed");
 
-            try {
-                copy(is, output, length);
-            } finally {
-                is.close();
+            return new CancelledException();
+        }
+
+        @Override
+        public void onBitmapLoaded(Bitmap b, Metadata metadata) {
+            Encoding encoding = getEncoding(request.getTransformation());
+
+            // Compressing is slow, deliver right away and write it later.
+            // We can always pass on the bitmap we got, even if
+            // we don't manage to write it to cache.
+            if (metadata.isNoStore()) {
+                removeCached(hashKeyForDisk(request));
+                skippedEncodeCount.incrementAndGet();
+            } else if (encoding.isStored()) {
+                enqueueWrite(hashKeyForDisk(request), b, metadata, encoding);
+            } else {
+                skippedEncodeCount.incrementAndGet();
             }
+
+            manager.deliverBitmap(b, metadata);
         }
 
-        public void copy(InputStream input, OutputStream output, long length) throws IOException {
-            byte[] buffer = new byte[BUFFER_SIZE];
+        @Override
+        public void onNotModified(Metadata metadata) {
+            String key = hashKeyForDisk(request);
 
-            if (length != -1) {
-                manager.publishProgress(0f);
+            PendingWrite pending = getPendingWrite(key);
+            if (pending != null) {
+                if (metadata.isNoStore()) {
+                    removeCached(key);
+                } else {
+                    // Not written yet, write it with the new metadata instead
+                    enqueueWrite(key, pending.bitmap, metadata, pending.encoding);
+                }
 
-                long progress = 0;
-                int i;
-                while ((i = input.read(buffer)) != -1) {
-                    output.write(buffer, 0, i);
-                    progress += i;
-                    manager.publishProgress(Math.min(1f, (float) progress / length));
+                if (staleMetadata != null) {
+                    manager.deliverBitmap(pending.bitmap, metadata);
+                } else {
+                    manager.deliverNotMotified(metadata);
                 }
+
+                return;
+            }
+
+            if (!metadata.isNoStore()) {
+                updateMetadata(key, metadata);
+            }
+
+            if (staleMetadata != null) {
+                // Still valid, deliver what we have
+                deliverCached(metadata);
             } else {
-                int i;
-                while ((i = input.read(buffer)) != -1) {
-                    output.write(buffer, 0, i);
-                }
+                manager.deliverNotMotified(metadata);
+            }
+
+            // Delivered from the cache, it can go now
+            if (metadata.isNoStore()) {
+                removeCached(key);
             }
         }
 
         @Override
-        public void onBitmapLoaded(Bitmap b, Metadata metadata) {
+        public void onError(Throwable t) {
+            if (staleMetadata != null && !staleMetadata.isMustRevalidate()) {
+                // Better than nothing
+                if (Logger.VERBOSE) Log.v(TAG, "Failed updating " + request + ", using stale image");
+                deliverCached(staleMetadata);
+            } else {
+                manager.deliverError(t);
+            }
+        }
+
+        /**
+         * The server doesn't want the image kept anymore, drop both the
+         * saved entry and any write of it which hasn't started
+         */
+        private void removeCached(String key) {
+            cancelPendingWrite(key);
+
             try {
-                Editor editor = getEditor(request);
+                DiskCache cache = awaitCache();
+                if (cache != null && cache.remove(key)) {
+                    if (Logger.VERBOSE) Log.v(TAG, "Removed " + request + " from cache, it may not be stored");
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed removing " + request + " from cache", e);
+            }
+        }
+
+        private void updateMetadata(String key, Metadata metadata) {
+            try {
+                Editor editor = getEditor(key);
 
                 try {
-                    Bitmap.CompressFormat format = BitmapUtils.getCompressFormat(metadata.getContentType());
-                    writeBitmap(editor, b, format);
                     writeMetadata(editor, metadata);
 
                     editor.commit();
@@ -238,73 +1053,276 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
                     editor.abortUnlessCommitted();
                 }
             } catch (IOException e) {
-                Log.e(TAG, "Failed saving bitmap to cache", e);
+                Log.e(TAG, "Failed to update metadata", e);
             }
-
-            // We can always pass on the bitmap we got, even if
-            // we didn't manage to write it to cache
-            manager.deliverBitmap(b, metadata);
         }
 
-        @Override
-        public void onNotModified(Metadata metadata) {
+        private void deliverCached(Metadata metadata) {
             try {
-                Editor editor = getEditor(request);
+                Snapshot snapshot = getSnapshot(request);
+                if (snapshot == null) {
+                    manager.deliverError(new IOException("Cached image was removed"));
+                    return;
+                }
 
                 try {
+                    manager.deliverStream(new DiskInputSupplier(request, snapshot, metadata.getImageHeader()), metadata);
+                } finally {
+                    snapshot.close();
+                }
+            } catch (IOException e) {
+                manager.deliverError(e);
+            }
+        }
+
+        /**
+         * Supplies the image as it's being downloaded while writing it to
+         * the cache. The first stream reads from the network, any later
+         * streams read the saved file.
+         */
+        private class TeeInputSupplier implements HeaderInputSupplier, Closeable {
+            private final InputSupplier source;
+            private final Editor editor;
+            private Metadata metadata;
+
+            private long length;
+            private long progress;
+
+            private InputStream input;
+            private OutputStream output;
+
+            private boolean streamed;
+            private boolean finished;
+            private boolean committed;
+            private boolean closed;
+            private IOException failure;
+
+            public TeeInputSupplier(InputSupplier source, Editor editor, Metadata metadata) {
+                this.source = source;
+                this.editor = editor;
+                this.metadata = metadata;
+            }
+
+            @Override
+            public long getLength() throws IOException {
+                return source.getLength();
+            }
+
+            /**
+             * Add the parsed image header to the metadata, without consuming
+             * any of the image
+             *
+             * @return the metadata to deliver and save
+             */
+            public Metadata readMetadata() {
+                try {
+                    open();
+
+                    input.mark(HEADER_LIMIT);
+                    ImageHeaderParser.Header header = ImageHeaderParser.parse(input, HEADER_LIMIT);
+                    input.reset();
+
+                    if (header != null) {
+                        metadata = metadata.withImageHeader(header);
+                    }
+                } catch (IOException e) {
+                    // Seen by the listener once it starts reading
+                    failure = e;
+                }
+
+                return metadata;
+            }
+
+            @Override
+            public ImageHeaderParser.Header getImageHeader() {
+                return metadata.getImageHeader();
+            }
+
+            @Override
+            public InputStream getInput() throws IOException {
+                if (!streamed && !finished) {
+                    streamed = true;
+
+                    return new InputStream() {
+                        private final byte[] single = new byte[1];
+
+                        @Override
+                        public int read() throws IOException {
+                            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+                        }
+
+                        @Override
+                        public int read(byte[] buffer, int offset, int count) throws IOException {
+                            return TeeInputSupplier.this.read(buffer, offset, count);
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                            // Whatever wasn't read still has to be saved
+                            finish();
+                        }
+                    };
+                }
+
+                finish();
+                if (!committed) {
+                    throw new IOException("Image was not saved to cache");
+                }
+
+                return new DiskInputSupplier(request).getInput();
+            }
+
+            /**
+             * Save the rest of the image and commit it to the cache
+             */
+            public void finish() throws IOException {
+                if (finished) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+
+                    return;
+                }
+
+                try {
+                    if (failure != null) {
+                        throw failure;
+                    }
+
+                    if (input == null) {
+                        open();
+                    }
+
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    while (read(buffer, 0, buffer.length) != -1) {
+                        // Keep going until everything has been written
+                    }
+
+                    output.close();
                     writeMetadata(editor, metadata);
 
                     editor.commit();
+                    committed = true;
+                } catch (IOException e) {
+                    failure = e;
+                    throw e;
                 } finally {
-                    editor.abortUnlessCommitted();
+                    finished = true;
+                    close();
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to update metadata", e);
             }
 
-            manager.deliverNotMotified(metadata);
-        }
+            @Override
+            public void close() {
+                if (closed) {
+                    return;
+                }
 
-        @Override
-        public void onError(Throwable t) {
-            manager.deliverError(t);
-        }
+                closed = true;
 
-        private void writeMetadata(Editor editor, Metadata metadata) throws IOException {
-            OutputStream os = new BufferedOutputStream(editor.newOutputStream(INPUT_METADATA), BUFFER_SIZE);
-            try {
-                metadata.writeTo(os);
-            } finally {
-                IOUtil.closeQuietly(os);
+                if (failure instanceof InterruptedIOException && source instanceof AbortableInputSupplier) {
+                    // Cancelled or timed out, make sure closing the stream
+                    // doesn't read the rest of it
+                    ((AbortableInputSupplier) source).abort();
+                }
+
+                IOUtil.closeQuietly(input);
+                IOUtil.closeQuietly(output);
+
+                editor.abortUnlessCommitted();
             }
-        }
 
-        private void writeBitmap(Editor editor, Bitmap b, Bitmap.CompressFormat format) throws IOException {
-            OutputStream os = new BufferedOutputStream(editor.newOutputStream(INPUT_IMAGE), BUFFER_SIZE);
-            try {
-                b.compress(format, Constants.DEFAULT_COMPRESS_QUALITY, os);
-            } finally {
-                IOUtil.closeQuietly(os);
+            private void open() throws IOException {
+                length = source.getLength();
+                input = new BufferedInputStream(source.getInput(), BUFFER_SIZE);
+                output = new BufferedOutputStream(editor.newImageOutputStream(), BUFFER_SIZE);
+
+                if (length != -1) {
+                    manager.publishProgress(0f);
+                }
+            }
+
+            private int read(byte[] buffer, int offset, int count) throws IOException {
+                if (failure != null) {
+                    throw failure;
+                }
+
+                try {
+                    int i = input.read(buffer, offset, count);
+                    if (i == -1) {
+                        return -1;
+                    }
+
+                    if (length != -1) {
+                        progress += i;
+
+                        float value = Math.min(1f, (float) progress / length);
+                        if (manager.isCancelled() && value < finishThreshold) {
+                            throw cancelled();
+                        }
+
+                        manager.publishProgress(value);
+                    } else if (manager.isCancelled()) {
+                        throw cancelled();
+                    }
+
+                    output.write(buffer, offset, i);
+
+                    return i;
+                } catch (IOException e) {
+                    failure = e;
+                    throw e;
+                }
             }
         }
     }
 
-    private class DiskInputSupplier implements InputSupplier {
+    /**
+     * Thrown when reading a download which is no longer needed, unlike other
+     * interruptions such as timeouts it's not an error
+     */
+    private static class CancelledException extends InterruptedIOException {
+        CancelledException() {
+            super("Request was cancelled");
+        }
+    }
+
+    private class DiskInputSupplier implements HeaderInputSupplier {
         private String key;
         private Snapshot snapshot;
+        private ImageHeaderParser.Header header;
 
         public DiskInputSupplier(LoaderRequest request) {
-            this(request, null);
+            this(request, null, null);
         }
 
-        public DiskInputSupplier(LoaderRequest request, Snapshot snapshot) {
+        public DiskInputSupplier(LoaderRequest request, Snapshot snapshot, ImageHeaderParser.Header header) {
             this.key = hashKeyForDisk(request);
             this.snapshot = snapshot;
+            this.header = header;
+        }
+
+        @Override
+        public ImageHeaderParser.Header getImageHeader() {
+            return header;
         }
 
         @Override
         public long getLength() throws IOException {
-            return cache.get(key).getLength(INPUT_IMAGE);
+            if (snapshot != null) {
+                return snapshot.getImageLength();
+            }
+
+            Snapshot s = cache.get(key);
+            if (s == null) {
+                throw new IOException("Snapshot not available");
+            }
+
+            try {
+                return s.getImageLength();
+            } finally {
+                s.close();
+            }
         }
 
         @Override
@@ -317,8 +1335,21 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
                 }
             }
 
+            InputStream is = snapshot.getImage();
+            if (mappedReads && is instanceof FileInputStream) {
+                try {
+                    return readFile((FileInputStream) is);
+                } finally {
+                    // Everything has been read or mapped, the file isn't needed anymore
+                    is.close();
+
+                    snapshot.close();
+                    snapshot = null;
+                }
+            }
+
             // Wrap input stream so we can close the snapshot
-            return new FilterInputStream(snapshot.getInputStream(INPUT_IMAGE)) {
+            return new FilterInputStream(is) {
                 @Override
                 public void close() throws IOException {
                     super.close();
@@ -328,5 +1359,22 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
                 }
             };
         }
+
+        private InputStream readFile(FileInputStream is) throws IOException {
+            FileChannel channel = is.getChannel();
+            long size = channel.size();
+
+            if (size <= SMALL_FILE_SIZE) {
+                // Mapping isn't worth it for small files
+                ByteBuffer buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                    // Keep reading until the buffer is full
+                }
+
+                return new ByteArrayInputStream(buffer.array(), 0, buffer.position());
+            }
+
+            return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
     }
 }
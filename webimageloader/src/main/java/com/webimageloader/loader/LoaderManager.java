@@ -1,14 +1,35 @@
 package com.webimageloader.loader;
 
+import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.webimageloader.Constants;
+import com.webimageloader.ImageLoader;
+import com.webimageloader.ImageLoader.Logger;
+import com.webimageloader.Request;
 import com.webimageloader.transformation.Transformation;
+import com.webimageloader.util.BitmapPool;
+import com.webimageloader.util.InputSupplier;
+import com.webimageloader.util.PriorityThreadFactory;
 
 import android.graphics.Bitmap;
+import android.os.Process;
+import android.util.Log;
 
 public class LoaderManager {
+    private static final String TAG = "LoaderManager";
+
     private static final LoaderManager.Listener EMPTY_LISTENER = new LoaderManager.Listener() {
         @Override
         public void onLoaded(Bitmap b) {}
@@ -19,17 +40,55 @@ public class LoaderManager {
         @Override
         public void onProgress(float value) {}
     };
+
+    private static final ImageLoader.ProgressListener EMPTY_PROGRESS_LISTENER = new ImageLoader.ProgressListener() {
+        @Override
+        public void onProgress(float value) {}
+    };
     
+    public static class DebugInfo {
+        public final int droppedCount;
+        public final int rejectedCount;
+        // Background revalidations answered by another one of the same url
+        public final int dedupedRevalidationCount;
+
+        // Saving transformed images to the disk cache
+        public final int encodeCount;
+        public final int skippedEncodeCount;
+        public final long encodeTime;
+        public final long encodedSize;
+
+        private DebugInfo(int droppedCount, int rejectedCount, int dedupedRevalidationCount, int encodeCount,
+                int skippedEncodeCount, long encodeTime, long encodedSize) {
+            this.droppedCount = droppedCount;
+            this.rejectedCount = rejectedCount;
+            this.dedupedRevalidationCount = dedupedRevalidationCount;
+            this.encodeCount = encodeCount;
+            this.skippedEncodeCount = skippedEncodeCount;
+            this.encodeTime = encodeTime;
+            this.encodedSize = encodedSize;
+        }
+    }
+
     private MemoryCache memoryCache;
+    private BitmapPool bitmapPool;
 
     private DiskLoader diskLoader;
+    private NetworkLoader networkLoader;
     private TransformingLoader transformingLoader;
     private MemoryLoader memoryLoader;
 
     private List<Loader> standardChain;
     private List<Loader> transformationChain;
+    private List<Loader> revalidationChain;
 
     private PendingRequests pendingRequests;
+    private volatile WorkLimiter limiter;
+
+    // Runs one revalidation batch at a time, waiting for checks to finish
+    private final ExecutorService batchExecutor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new PriorityThreadFactory("Revalidation batch", Process.THREAD_PRIORITY_LOWEST));
+    private volatile int revalidationConcurrency = Constants.DEFAULT_REVALIDATION_CONCURRENCY;
 
     public interface Listener {
         void onLoaded(Bitmap b);
@@ -37,11 +96,13 @@ public class LoaderManager {
         void onProgress(float value);
     }
 
-    public LoaderManager(MemoryCache memoryCache, DiskLoader diskLoader, NetworkLoader networkLoader) {
+    public LoaderManager(MemoryCache memoryCache, BitmapPool bitmapPool, DiskLoader diskLoader, NetworkLoader networkLoader) {
         this.memoryCache = memoryCache;
+        this.bitmapPool = bitmapPool;
         this.diskLoader = diskLoader;
+        this.networkLoader = networkLoader;
 
-        transformingLoader = new TransformingLoader();
+        transformingLoader = new TransformingLoader(bitmapPool);
         if (memoryCache != null) {
             memoryLoader = new MemoryLoader(memoryCache);
         }
@@ -59,18 +120,141 @@ public class LoaderManager {
         add(transformationChain, diskLoader);
         add(transformationChain, networkLoader);
 
+        // Create revalidation chain, only used with a disk cache
+        revalidationChain = new ArrayList<Loader>();
+        if (diskLoader != null) {
+            add(revalidationChain, diskLoader.getRevalidationLoader());
+            add(revalidationChain, networkLoader);
+        }
+
         // Ensure the chains are not modified and is safe to iterate
         // over in multiple threads
         standardChain = Collections.unmodifiableList(standardChain);
         transformationChain = Collections.unmodifiableList(transformationChain);
+        revalidationChain = Collections.unmodifiableList(revalidationChain);
 
-        pendingRequests = new PendingRequests(memoryCache);
+        pendingRequests = new PendingRequests(memoryCache, bitmapPool);
     }
 
     public MemoryCache getMemoryCache() {
         return memoryCache;
     }
 
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    public DebugInfo getDebugInfo() {
+        WorkLimiter l = limiter;
+        int droppedCount = l != null ? l.getDroppedCount() : 0;
+        int rejectedCount = l != null ? l.getRejectedCount() : 0;
+        int encodeCount = 0;
+        int skippedEncodeCount = 0;
+        long encodeTime = 0;
+        long encodedSize = 0;
+
+        if (diskLoader != null) {
+            encodeCount = diskLoader.getEncodeCount();
+            skippedEncodeCount = diskLoader.getSkippedEncodeCount();
+            encodeTime = diskLoader.getEncodeTime();
+            encodedSize = diskLoader.getEncodedSize();
+        }
+
+        return new DebugInfo(droppedCount, rejectedCount, networkLoader.getDedupedRevalidationCount(), encodeCount,
+                skippedEncodeCount, encodeTime, encodedSize);
+    }
+
+    /**
+     * Limit how many requests can be pending at once. Revalidation batches
+     * are limited on their own and don't count.
+     *
+     * @param maxPending max number of pending requests
+     * @param policy what to do with new requests when the limit is reached
+     */
+    public void setQueueLimit(int maxPending, OverflowPolicy policy) {
+        limiter = new WorkLimiter(maxPending, policy);
+    }
+
+    /**
+     * Set how many images of a revalidation batch are checked at once
+     *
+     * @param concurrency max number of checks running at once
+     */
+    public void setRevalidationConcurrency(int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("concurrency <= 0");
+        }
+
+        revalidationConcurrency = concurrency;
+    }
+
+    /**
+     * Check the cached images of these urls in the background, updating
+     * those which have expired. Does nothing without a disk cache.
+     *
+     * @param urls the urls to check
+     */
+    public void revalidate(Collection<String> urls) {
+        if (diskLoader == null) {
+            return;
+        }
+
+        final List<String> batch = new ArrayList<String>(urls);
+        batchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                revalidateBatch(batch);
+            }
+        });
+    }
+
+    /**
+     * Check the cached images of the most recently loaded urls in the
+     * background, updating those which have expired. Does nothing without
+     * a disk cache.
+     *
+     * @param count max number of urls to check
+     */
+    public void revalidateRecent(final int count) {
+        if (diskLoader == null) {
+            return;
+        }
+
+        batchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                revalidateBatch(diskLoader.getRecentUrls(count));
+            }
+        });
+    }
+
+    private void revalidateBatch(List<String> urls) {
+        int concurrency = revalidationConcurrency;
+        Semaphore permits = new Semaphore(concurrency);
+        AtomicInteger failed = new AtomicInteger();
+
+        try {
+            for (String url : urls) {
+                permits.acquire();
+
+                LoaderRequest request = new LoaderRequest(url, null, EnumSet.noneOf(Request.Flag.class),
+                        null, Request.Priority.BACKGROUND);
+                LoaderWork work = new LoaderWork(new BatchListener(permits, failed),
+                        EMPTY_PROGRESS_LISTENER, Request.Priority.BACKGROUND);
+
+                work.start(revalidationChain, request);
+            }
+
+            // Wait for the last checks
+            permits.acquire(concurrency);
+
+            if (Logger.DEBUG) Log.d(TAG, "Revalidated " + urls.size() + " images, " + failed.get() + " failed");
+        } catch (InterruptedException e) {
+            // Closed, the loaders have stopped as well
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public Bitmap load(Object tag, LoaderRequest request, Listener listener) {
         Bitmap b = pendingRequests.getBitmap(tag, request);
         if (b != null) {
@@ -93,7 +277,12 @@ public class LoaderManager {
         Transformation t = request.getTransformation();
         List<Loader> chain = t == null ? standardChain : transformationChain;
 
-        work.start(chain, request);
+        WorkLimiter l = limiter;
+        if (l != null) {
+            l.start(work, chain, request);
+        } else {
+            work.start(chain, request);
+        }
 
         return null;
     }
@@ -103,11 +292,59 @@ public class LoaderManager {
     }
 
     public void close() {
+        batchExecutor.shutdownNow();
+
         if (diskLoader != null) {
             diskLoader.close();
         }
     }
 
+    /**
+     * Gives back the permit of a revalidation once it's done. Any new image
+     * has already been saved by the disk loader.
+     */
+    private static class BatchListener implements Loader.Listener {
+        private final Semaphore permits;
+        private final AtomicInteger failed;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        BatchListener(Semaphore permits, AtomicInteger failed) {
+            this.permits = permits;
+            this.failed = failed;
+        }
+
+        @Override
+        public void onStreamLoaded(InputSupplier input, Metadata metadata) {
+            finish();
+        }
+
+        @Override
+        public void onBitmapLoaded(Bitmap b, Metadata metadata) {
+            finish();
+        }
+
+        @Override
+        public void onNotModified(Metadata metadata) {
+            finish();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            // Images which are missing, from the cache or the server, aren't failures
+            if (!(t instanceof FileNotFoundException)) {
+                failed.incrementAndGet();
+            }
+
+            finish();
+        }
+
+        private void finish() {
+            if (done.compareAndSet(false, true)) {
+                permits.release();
+            }
+        }
+    }
+
     private static <T> void add(List<T> list, T item) {
         if (item != null) {
             list.add(item);
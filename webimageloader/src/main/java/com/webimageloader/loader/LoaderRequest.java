@@ -2,6 +2,7 @@ package com.webimageloader.loader;
 
 import com.webimageloader.Request;
 import com.webimageloader.transformation.Transformation;
+import com.webimageloader.util.Hasher;
 
 import java.util.EnumSet;
 
@@ -9,11 +10,25 @@ public class LoaderRequest {
     private String url;
     private Transformation transformation;
     private Metadata metadata;
+    private boolean blockingRevalidation;
     private EnumSet<Request.Flag> flags;
+    private String memoryCachePartition;
+    private Request.Priority priority = Request.Priority.VISIBLE;
 
-    private String cacheKey;
+    private CacheKey cacheKey;
 
     public LoaderRequest(String url, Transformation transformation, EnumSet<Request.Flag> flags) {
+        this(url, transformation, flags, null, Request.Priority.VISIBLE);
+    }
+
+    public LoaderRequest(String url, Transformation transformation, EnumSet<Request.Flag> flags,
+            String memoryCachePartition, Request.Priority priority) {
+        this(url, transformation, flags, memoryCachePartition, priority,
+                new CacheKey(url, transformation != null ? transformation.getIdentifier() : null));
+    }
+
+    private LoaderRequest(String url, Transformation transformation, EnumSet<Request.Flag> flags,
+            String memoryCachePartition, Request.Priority priority, CacheKey cacheKey) {
         if (url == null) {
             throw new IllegalArgumentException("url may not be null");
         }
@@ -21,21 +36,39 @@ public class LoaderRequest {
         this.url = url;
         this.transformation = transformation;
         this.flags = flags;
-
-        if (transformation != null) {
-            cacheKey = url + transformation.getIdentifier();
-        } else {
-            cacheKey = url;
-        }
+        this.memoryCachePartition = memoryCachePartition;
+        this.priority = priority;
+        this.cacheKey = cacheKey;
     }
 
     public LoaderRequest withoutTransformation() {
-        return new LoaderRequest(url, null, flags);
+        // The partition was chosen for the transformed image
+        return new LoaderRequest(url, null, flags, null, priority, cacheKey.withoutTransformation());
     }
 
+    /**
+     * Create a request to check if a cached image is still valid, after the
+     * cached image has been delivered
+     *
+     * @param metadata metadata of the cached image
+     * @return the new request
+     */
     public LoaderRequest withMetadata(Metadata metadata) {
-        LoaderRequest r = new LoaderRequest(url, transformation, flags);
+        return withMetadata(metadata, false);
+    }
+
+    /**
+     * Create a request to check if a cached image is still valid
+     *
+     * @param metadata metadata of the cached image
+     * @param blocking true if the cached image is only delivered after
+     *     checking, the check is then done like a regular load
+     * @return the new request
+     */
+    public LoaderRequest withMetadata(Metadata metadata, boolean blocking) {
+        LoaderRequest r = new LoaderRequest(url, transformation, flags, memoryCachePartition, priority, cacheKey);
         r.metadata = metadata;
+        r.blockingRevalidation = blocking;
 
         return r;
     }
@@ -52,10 +85,33 @@ public class LoaderRequest {
         return metadata;
     }
 
-    public String getCacheKey() {
+    public boolean isBlockingRevalidation() {
+        return blockingRevalidation;
+    }
+
+    public String getMemoryCachePartition() {
+        return memoryCachePartition;
+    }
+
+    public Request.Priority getPriority() {
+        return priority;
+    }
+
+    public CacheKey getCacheKey() {
         return cacheKey;
     }
 
+    /**
+     * Get the cache key hashed for use as a disk filename
+     *
+     * @param hasher hasher used the first time
+     * @return the hashed key
+     * @see CacheKey#getDiskKey(Hasher)
+     */
+    public String getDiskKey(Hasher hasher) {
+        return cacheKey.getDiskKey(hasher);
+    }
+
     public boolean hasFlag(Request.Flag flag) {
         return flags.contains(flag);
     }
@@ -1,13 +1,18 @@
 package com.webimageloader.loader;
 
 import android.graphics.Bitmap;
+import android.os.SystemClock;
+import com.webimageloader.Constants;
 import com.webimageloader.ImageLoader;
+import com.webimageloader.Request;
 import com.webimageloader.util.InputSupplier;
 
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class LoaderWork {
     private final Loader.Listener listener;
@@ -15,10 +20,23 @@ public class LoaderWork {
     private final List<Future<?>> futures;
 
     private volatile boolean cancelled = false;
+    private volatile Request.Priority priority;
 
-    public LoaderWork(Loader.Listener listener, ImageLoader.ProgressListener progressListener) {
+    // Tasks queued or running on a loader, the place in the limiter (if
+    // any) is given back once there are none left
+    private final AtomicInteger activeTasks = new AtomicInteger();
+    private final AtomicReference<WorkLimiter> limiter = new AtomicReference<WorkLimiter>();
+    private volatile WorkLimiter waitingFor;
+    long sequence;
+
+    // Guarded by this, used to throttle progress updates
+    private float lastProgress = -1f;
+    private long lastProgressTime;
+
+    public LoaderWork(Loader.Listener listener, ImageLoader.ProgressListener progressListener, Request.Priority priority) {
         this.listener = listener;
         this.progressListener = progressListener;
+        this.priority = priority;
         this.futures = new ArrayList<Future<?>>();
     }
 
@@ -32,11 +50,196 @@ public class LoaderWork {
         }
     }
 
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public Request.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Returns true if this work should be dropped before {@code other}
+     */
+    boolean isLessUrgentThan(LoaderWork other) {
+        Request.Priority p1 = priority;
+        Request.Priority p2 = other.priority;
+        if (p1 != p2) {
+            // Priorities are declared from most to least urgent
+            return p1.ordinal() > p2.ordinal();
+        }
+
+        return sequence < other.sequence;
+    }
+
+    /**
+     * Fail this work without starting it
+     */
+    void fail(Throwable t) {
+        if (!cancelled) {
+            listener.onError(t);
+        }
+    }
+
+    /**
+     * Hold a place in the limiter until no task of this work is left
+     */
+    void admit(WorkLimiter limiter) {
+        waitingFor = null;
+        this.limiter.set(limiter);
+    }
+
+    /**
+     * Wait for a place in the limiter, which is told when the priority is
+     * raised
+     */
+    void waitFor(WorkLimiter limiter) {
+        waitingFor = limiter;
+    }
+
+    /**
+     * Cancel this work with an error if none of its tasks have started
+     * running yet. Work which is still queuing tasks, like during
+     * {@link #start(List, LoaderRequest)}, is left alone.
+     *
+     * @param reason the error delivered to the listener
+     * @return true if it was cancelled and has no tasks left
+     */
+    boolean dropIfQueued(Throwable reason) {
+        List<PrioritizedTask> removed = new ArrayList<PrioritizedTask>();
+        boolean dropped = false;
+
+        synchronized (futures) {
+            int queued = 0;
+            for (Future<?> future : futures) {
+                if (future.isDone()) {
+                    continue;
+                }
+
+                if (!(future instanceof PrioritizedTask) || ((PrioritizedTask) future).isStarted()) {
+                    return false;
+                }
+
+                queued++;
+            }
+
+            if (queued == 0 || activeTasks.get() != queued) {
+                return false;
+            }
+
+            for (Future<?> future : futures) {
+                if (!future.isDone()) {
+                    PrioritizedTask task = (PrioritizedTask) future;
+                    if (!task.dequeue()) {
+                        // Started after all
+                        break;
+                    }
+
+                    removed.add(task);
+                }
+            }
+
+            // Nothing else may be holding the work once its tasks are out
+            // of the queue, otherwise it's still queuing more
+            dropped = removed.size() == queued && activeTasks.get() == queued;
+        }
+
+        if (!dropped) {
+            // Leave the work as it was
+            for (PrioritizedTask task : removed) {
+                task.enqueue();
+            }
+
+            return false;
+        }
+
+        fail(reason);
+        cancel();
+
+        // The last one gives back the place
+        for (PrioritizedTask task : removed) {
+            task.discard();
+        }
+
+        return true;
+    }
+
+    /**
+     * Raise the priority of this work, for example when a visible request
+     * joins a pending prefetch. Tasks which are already queued are queued
+     * again as the newest ones with the new priority, so is the work itself if
+     * it's waiting for a place in the limiter.
+     *
+     * @param priority the new priority
+     */
+    public void raisePriority(Request.Priority priority) {
+        synchronized (this) {
+            if (priority.ordinal() >= this.priority.ordinal()) {
+                return;
+            }
+
+            this.priority = priority;
+        }
+
+        WorkLimiter l = waitingFor;
+        if (l != null) {
+            l.priorityRaised(this);
+        }
+
+        synchronized (futures) {
+            for (Future<?> future : futures) {
+                if (future instanceof PrioritizedTask && !future.isDone()) {
+                    ((PrioritizedTask) future).requeue();
+                }
+            }
+        }
+    }
+
     public void start(List<Loader> loaderChain, LoaderRequest request) {
         Iterator<Loader> it = loaderChain.iterator();
         Loader loader = it.next();
 
-        loader.load(new Manager(it, listener), request);
+        // Counts as a task until the first loader has queued its own
+        activeTasks.incrementAndGet();
+        try {
+            loader.load(new Manager(it, listener), request);
+        } finally {
+            taskFinished();
+        }
+    }
+
+    private void taskFinished() {
+        if (activeTasks.decrementAndGet() == 0) {
+            // Work continued later on, for example by a revalidation
+            // it was waiting for, doesn't take a place again
+            WorkLimiter l = limiter.getAndSet(null);
+            if (l != null) {
+                l.release(this);
+            }
+        }
+    }
+
+    /**
+     * Only let through progress updates which are large enough and not too
+     * frequent, the first and last update are always published.
+     */
+    private synchronized boolean shouldPublishProgress(float value) {
+        long now = SystemClock.uptimeMillis();
+
+        if (value != 0f && value != 1f) {
+            if (value - lastProgress < Constants.PROGRESS_MIN_DELTA) {
+                return false;
+            }
+
+            if (now - lastProgressTime < Constants.PROGRESS_MIN_INTERVAL) {
+                return false;
+            }
+        }
+
+        lastProgress = value;
+        lastProgressTime = now;
+
+        return true;
     }
 
     public class Manager {
@@ -58,9 +261,31 @@ public class LoaderWork {
             return cancelled;
         }
 
+        public Request.Priority getPriority() {
+            return priority;
+        }
+
+        void taskQueued() {
+            activeTasks.incrementAndGet();
+        }
+
+        void taskFinished() {
+            LoaderWork.this.taskFinished();
+        }
+
         public void addFuture(Future<?> future) {
             synchronized (futures) {
                 futures.add(future);
+
+                // Priority raised while it was being queued
+                if (future instanceof PrioritizedTask && ((PrioritizedTask) future).priority != priority) {
+                    ((PrioritizedTask) future).requeue();
+                }
+            }
+
+            // Cancelled while it was being queued
+            if (cancelled) {
+                future.cancel(false);
             }
         }
 
@@ -77,7 +302,7 @@ public class LoaderWork {
         }
 
         public void publishProgress(float value) {
-            if (!cancelled) {
+            if (!cancelled && shouldPublishProgress(value)) {
                 progressListener.onProgress(value);
             }
         }
@@ -0,0 +1,126 @@
+package com.webimageloader.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+
+/**
+ * The default {@link DiskCache}, stores every image and metadata record in
+ * its own file using {@link DiskLruCache}. Opening reads the whole journal of
+ * {@link DiskLruCache}, there is no index snapshot like the one of
+ * {@link SegmentDiskCache}.
+ */
+public class LruDiskCache implements DiskCache {
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public DiskCache open(File directory, long maxSize) throws IOException {
+            return new LruDiskCache(DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, maxSize));
+        }
+    };
+
+    private static final int APP_VERSION = 2;
+
+    private static final int INPUT_IMAGE = 0;
+    private static final int INPUT_METADATA = 1;
+    private static final int VALUE_COUNT = 2;
+
+    private final DiskLruCache cache;
+
+    private LruDiskCache(DiskLruCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public DiskCache.Snapshot get(String key) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        if (snapshot == null) {
+            return null;
+        }
+
+        return new Snapshot(snapshot);
+    }
+
+    @Override
+    public DiskCache.Editor edit(String key) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        if (editor == null) {
+            return null;
+        }
+
+        return new Editor(editor);
+    }
+
+    @Override
+    public boolean remove(String key) throws IOException {
+        return cache.remove(key);
+    }
+
+    @Override
+    public void close() throws IOException {
+        cache.close();
+    }
+
+    private static class Snapshot implements DiskCache.Snapshot {
+        private final DiskLruCache.Snapshot snapshot;
+
+        public Snapshot(DiskLruCache.Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public InputStream getImage() {
+            return snapshot.getInputStream(INPUT_IMAGE);
+        }
+
+        @Override
+        public long getImageLength() {
+            return snapshot.getLength(INPUT_IMAGE);
+        }
+
+        @Override
+        public InputStream getMetadata() {
+            return snapshot.getInputStream(INPUT_METADATA);
+        }
+
+        @Override
+        public void close() {
+            snapshot.close();
+        }
+    }
+
+    private static class Editor implements DiskCache.Editor {
+        private final DiskLruCache.Editor editor;
+
+        public Editor(DiskLruCache.Editor editor) {
+            this.editor = editor;
+        }
+
+        @Override
+        public OutputStream newImageOutputStream() throws IOException {
+            return editor.newOutputStream(INPUT_IMAGE);
+        }
+
+        @Override
+        public OutputStream newMetadataOutputStream() throws IOException {
+            return editor.newOutputStream(INPUT_METADATA);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            editor.commit();
+        }
+
+        @Override
+        public void abort() throws IOException {
+            editor.abort();
+        }
+
+        @Override
+        public void abortUnlessCommitted() {
+            editor.abortUnlessCommitted();
+        }
+    }
+}
@@ -2,18 +2,21 @@ package com.webimageloader.loader;
 
 import com.webimageloader.ImageLoader.Logger;
 import com.webimageloader.Request;
-import com.webimageloader.util.Android;
-import com.webimageloader.util.LruCache;
+import com.webimageloader.transformation.Transformation;
+import com.webimageloader.util.BitmapPool;
+import com.webimageloader.util.BitmapUtils;
+import com.webimageloader.util.ConcurrentLruCache;
+import com.webimageloader.util.FrequencySketch;
 
-import android.annotation.TargetApi;
 import android.graphics.Bitmap;
 import android.util.Log;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MemoryCache {
     private static final String TAG = "MemoryLoader";
@@ -28,17 +31,19 @@ public class MemoryCache {
         }
     }
 
-    private static class WeakEntry {
-        public final WeakReference<Bitmap> reference;
+    private static class WeakEntry extends WeakReference<Bitmap> {
+        public final CacheKey key;
         public final Metadata metadata;
 
-        private WeakEntry(Entry entry) {
-            this.reference = new WeakReference<Bitmap>(entry.bitmap);
+        private WeakEntry(CacheKey key, Entry entry, ReferenceQueue<Bitmap> queue) {
+            super(entry.bitmap, queue);
+
+            this.key = key;
             this.metadata = entry.metadata;
         }
 
         public Entry toEntry() {
-            Bitmap b = reference.get();
+            Bitmap b = get();
             if (b == null) {
                 return null;
             } else {
@@ -53,38 +58,148 @@ public class MemoryCache {
         public final int putCount;
         public final int evictionCount;
         public final int numImages;
+        public final int numExpiredImages;
+        public final int size;
+        public final int maxSize;
 
-        private DebugInfo(int hitCount, int missCount, int putCount, int evictionCount, int numImages) {
+        private DebugInfo(int hitCount, int missCount, int putCount, int evictionCount, int numImages,
+                int numExpiredImages, int size, int maxSize) {
             this.hitCount = hitCount;
             this.missCount = missCount;
             this.putCount = putCount;
             this.evictionCount = evictionCount;
             this.numImages = numImages;
+            this.numExpiredImages = numExpiredImages;
+            this.size = size;
+            this.maxSize = maxSize;
         }
     }
 
-    private LruCache<String, Entry> cache;
-    private Map<String, WeakEntry> expired;
+    // Max number of cleared references to purge on each access, this
+    // keeps the cost of purging low while still keeping up with the GC
+    private static final int MAX_PURGE_COUNT = 16;
+
+    // Used to estimate how many images fit in the cache when sizing the
+    // frequency sketch, it should sample roughly ten accesses per image
+    private static final int ESTIMATED_IMAGE_SIZE = 32 * 1024;
+    private static final int SAMPLES_PER_IMAGE = 10;
+
+    private BitmapPool bitmapPool;
+    private int windowPercent;
+
+    // Requests not assigned to a named partition end up here
+    private Partition defaultPartition;
+    private ConcurrentHashMap<String, Partition> partitions;
+
+    // Evicted bitmaps that might still be in use elsewhere, cleared
+    // entries are purged using the reference queue
+    private ConcurrentHashMap<CacheKey, WeakEntry> expired;
+    private ReferenceQueue<Bitmap> expiredQueue;
 
     public MemoryCache(int maxSize) {
-        cache = new BitmapCache(maxSize);
-        expired = Collections.synchronizedMap(new HashMap<String, WeakEntry>());
+        this(maxSize, null, 0);
+    }
+
+    /**
+     * Create a memory cache which hands evicted bitmaps to a pool once
+     * they're no longer shown, see {@link BitmapPool#bind(Bitmap)}. Other
+     * evicted bitmaps are kept as weak references.
+     *
+     * @param maxSize max size of the cache in bytes
+     * @param bitmapPool the pool, may be null
+     */
+    public MemoryCache(int maxSize, BitmapPool bitmapPool) {
+        this(maxSize, bitmapPool, 0);
+    }
+
+    /**
+     * Create a memory cache with an admission policy. New images are added to
+     * a window taking up the specified percentage of the cache. Once evicted
+     * from the window an image only stays cached if it has been requested more
+     * often than the least recently used image in the rest of the cache.
+     *
+     * @param maxSize max size of the cache in bytes
+     * @param bitmapPool the pool, may be null
+     * @param windowPercent size of the admission window in percent, 0 disables admission
+     */
+    public MemoryCache(int maxSize, BitmapPool bitmapPool, int windowPercent) {
+        if (windowPercent < 0 || windowPercent >= 100) {
+            throw new IllegalArgumentException("windowPercent must be in the range 0-99");
+        }
+
+        this.bitmapPool = bitmapPool;
+        this.windowPercent = windowPercent;
+
+        defaultPartition = new Partition(maxSize);
+        partitions = new ConcurrentHashMap<String, Partition>();
+
+        expired = new ConcurrentHashMap<CacheKey, WeakEntry>();
+        expiredQueue = new ReferenceQueue<Bitmap>();
+    }
+
+    /**
+     * Add a partition with its own budget, in addition to the size of this
+     * cache. Images in a partition are only evicted to make room for other
+     * images in the same partition. A request goes into a partition if it was
+     * assigned to it with {@link Request#setMemoryCachePartition(String)}, or
+     * if the identifier of its transformation matches the partition name.
+     *
+     * @param name name of the partition
+     * @param maxSize max size of the partition in bytes
+     */
+    public void addPartition(String name, int maxSize) {
+        if (name == null) {
+            throw new IllegalArgumentException("name may not be null");
+        }
+
+        if (partitions.putIfAbsent(name, new Partition(maxSize)) != null) {
+            throw new IllegalArgumentException("Partition " + name + " already exists");
+        }
+    }
+
+    /**
+     * Get the names of all partitions added to this cache
+     *
+     * @return the partition names
+     */
+    public Set<String> getPartitions() {
+        return Collections.unmodifiableSet(partitions.keySet());
     }
 
     public int size() {
-        return cache.size();
+        int size = defaultPartition.size();
+        for (Partition partition : partitions.values()) {
+            size += partition.size();
+        }
+
+        return size;
     }
 
     public int maxSize() {
-        return cache.maxSize();
+        int maxSize = defaultPartition.maxSize();
+        for (Partition partition : partitions.values()) {
+            maxSize += partition.maxSize();
+        }
+
+        return maxSize;
     }
 
     public void trimToSize(int maxSize) {
-        cache.trimToSize(maxSize);
+        // Every partition keeps its share of the total size
+        int totalMaxSize = maxSize();
+
+        defaultPartition.trimToSize(scale(maxSize, defaultPartition.maxSize(), totalMaxSize));
+        for (Partition partition : partitions.values()) {
+            partition.trimToSize(scale(maxSize, partition.maxSize(), totalMaxSize));
+        }
     }
 
     public void evictAll() {
-        cache.evictAll();
+        defaultPartition.evictAll();
+        for (Partition partition : partitions.values()) {
+            partition.evictAll();
+        }
+
         expired.clear();
     }
 
@@ -93,18 +208,33 @@ public class MemoryCache {
             return null;
         }
 
-        String cacheKey = request.getCacheKey();
-        Entry entry = cache.get(cacheKey);
+        CacheKey cacheKey = request.getCacheKey();
+        Partition partition = getPartition(request);
+
+        Entry entry = partition.get(cacheKey);
         if (entry != null) {
             if (Logger.VERBOSE) Log.v(TAG, "Loaded " + request + " from memory");
         } else {
+            purgeExpired();
+
             WeakEntry weakEntry = expired.remove(cacheKey);
             if (weakEntry != null && (entry = weakEntry.toEntry()) != null) {
-                cache.put(cacheKey, entry);
+                partition.put(cacheKey, entry);
                 if (Logger.VERBOSE) Log.v(TAG, "Loaded " + request + " from expired memory");
             }
         }
 
+        if (entry != null && bitmapPool != null) {
+            // Keep it out of the pool until it's bound, this only works if
+            // it's still cached afterwards as it's pooled once evicted
+            bitmapPool.claim(entry.bitmap);
+
+            if (!partition.contains(cacheKey, entry)) {
+                if (Logger.VERBOSE) Log.v(TAG, "Evicted " + request + " while loading it from memory");
+                return null;
+            }
+        }
+
         return entry;
     }
 
@@ -113,50 +243,307 @@ public class MemoryCache {
             return;
         }
 
+        Partition partition = getPartition(request);
+
         // Add the bitmap to the cache if we can fit at least six images of this size,
         // this way we avoid caching large images that will evict all other entries
-        if (sizeOf(b) < cache.maxSize() / 6) {
-            cache.put(request.getCacheKey(), new Entry(b, metadata));
+        if (BitmapUtils.getByteCount(b) < partition.maxSize() / 6) {
+            partition.put(request.getCacheKey(), new Entry(b, metadata));
         }
     }
 
     public void updateMetadata(LoaderRequest request, Metadata metadata) {
-        String cacheKey = request.getCacheKey();
-        Entry entry = cache.get(cacheKey);
-        if (entry != null) {
-            cache.put(cacheKey, new Entry(entry.bitmap, metadata));
-        }
+        getPartition(request).updateMetadata(request.getCacheKey(), metadata);
     }
 
+    /**
+     * Get debug info for the whole cache
+     *
+     * @return the debug info
+     */
     public DebugInfo getDebugInfo() {
-        return new DebugInfo(cache.hitCount(), cache.missCount(), cache.putCount(), cache.evictionCount(), cache.snapshot().size());
+        purgeExpired();
+
+        int hitCount = defaultPartition.hitCount();
+        int missCount = defaultPartition.missCount();
+        int putCount = defaultPartition.putCount();
+        int evictionCount = defaultPartition.evictionCount();
+        int numImages = defaultPartition.numImages();
+        int size = defaultPartition.size();
+        int maxSize = defaultPartition.maxSize();
+
+        for (Partition partition : partitions.values()) {
+            hitCount += partition.hitCount();
+            missCount += partition.missCount();
+            putCount += partition.putCount();
+            evictionCount += partition.evictionCount();
+            numImages += partition.numImages();
+            size += partition.size();
+            maxSize += partition.maxSize();
+        }
+
+        return new DebugInfo(hitCount, missCount, putCount, evictionCount, numImages,
+                expired.size(), size, maxSize);
     }
 
-    @TargetApi(12)
-    private static int sizeOf(Bitmap b) {
-        if (Android.isAPI(12)) {
-            return b.getByteCount();
-        } else {
-            return b.getRowBytes() * b.getHeight();
+    /**
+     * Get debug info for a single partition, expired images are shared
+     * between all partitions
+     *
+     * @param name name of the partition, null for images not in a partition
+     * @return the debug info or null if there is no such partition
+     */
+    public DebugInfo getDebugInfo(String name) {
+        Partition partition = name == null ? defaultPartition : partitions.get(name);
+        if (partition == null) {
+            return null;
+        }
+
+        purgeExpired();
+
+        return new DebugInfo(partition.hitCount(), partition.missCount(), partition.putCount(),
+                partition.evictionCount(), partition.numImages(), expired.size(),
+                partition.size(), partition.maxSize());
+    }
+
+    private Partition getPartition(LoaderRequest request) {
+        if (partitions.isEmpty()) {
+            return defaultPartition;
         }
+
+        String name = request.getMemoryCachePartition();
+        if (name == null) {
+            Transformation transformation = request.getTransformation();
+            if (transformation != null) {
+                name = transformation.getIdentifier();
+            }
+        }
+
+        Partition partition = name != null ? partitions.get(name) : null;
+        return partition != null ? partition : defaultPartition;
     }
 
-    private class BitmapCache extends LruCache<String, Entry> {
-        public BitmapCache(int maxSize) {
+    private static int scale(int maxSize, int partSize, int totalSize) {
+        if (maxSize < 0) {
+            // Keep the special meaning of -1
+            return maxSize;
+        }
+
+        return (int) ((long) maxSize * partSize / totalSize);
+    }
+
+    private void addExpired(CacheKey key, Entry entry) {
+        purgeExpired();
+
+        expired.put(key, new WeakEntry(key, entry, expiredQueue));
+    }
+
+    private void purgeExpired() {
+        for (int i = 0; i < MAX_PURGE_COUNT; i++) {
+            Reference<? extends Bitmap> reference = expiredQueue.poll();
+            if (reference == null) {
+                break;
+            }
+
+            // Only remove it if it hasn't been replaced by a newer entry
+            WeakEntry entry = (WeakEntry) reference;
+            expired.remove(entry.key, entry);
+        }
+    }
+
+    /**
+     * Part of the cache with its own budget and LRU order
+     */
+    private class Partition {
+        private ConcurrentLruCache<CacheKey, Entry> cache;
+
+        // Only used with admission, new images start out here and have to
+        // be used more often than the images they replace to enter the cache
+        private ConcurrentLruCache<CacheKey, Entry> window;
+        private FrequencySketch sketch;
+
+        public Partition(int maxSize) {
+            if (windowPercent > 0) {
+                int windowSize = Math.max(1, (int) ((long) maxSize * windowPercent / 100));
+
+                int estimatedImages = Math.max(maxSize / ESTIMATED_IMAGE_SIZE, 100);
+                sketch = new FrequencySketch(estimatedImages * SAMPLES_PER_IMAGE);
+
+                cache = new BitmapCache(Math.max(1, maxSize - windowSize), sketch);
+                window = new WindowCache(windowSize, cache);
+            } else {
+                cache = new BitmapCache(maxSize, null);
+            }
+        }
+
+        public Entry get(CacheKey key) {
+            if (sketch != null) {
+                sketch.increment(key);
+            }
+
+            if (window != null) {
+                Entry entry = window.get(key);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+
+            return cache.get(key);
+        }
+
+        /**
+         * Check if the entry is still cached, without counting it as an access
+         */
+        public boolean contains(CacheKey key, Entry entry) {
+            if (window != null && window.peek(key) == entry) {
+                return true;
+            }
+
+            return cache.peek(key) == entry;
+        }
+
+        public void put(CacheKey key, Entry entry) {
+            // Images already past the window are simply replaced
+            if (window != null && !cache.containsKey(key)) {
+                window.put(key, entry);
+            } else {
+                cache.put(key, entry);
+            }
+        }
+
+        public void updateMetadata(CacheKey key, Metadata metadata) {
+            if (window != null) {
+                Entry entry = window.get(key);
+                if (entry != null) {
+                    window.put(key, new Entry(entry.bitmap, metadata));
+                    return;
+                }
+            }
+
+            Entry entry = cache.get(key);
+            if (entry != null) {
+                cache.put(key, new Entry(entry.bitmap, metadata));
+            }
+        }
+
+        public int size() {
+            if (window != null) {
+                return window.size() + cache.size();
+            } else {
+                return cache.size();
+            }
+        }
+
+        public int maxSize() {
+            if (window != null) {
+                return window.maxSize() + cache.maxSize();
+            } else {
+                return cache.maxSize();
+            }
+        }
+
+        public void trimToSize(int maxSize) {
+            if (window != null) {
+                // Keep the proportions between the window and the rest of the cache
+                int windowSize = scale(maxSize, window.maxSize(), maxSize());
+
+                window.trimToSize(windowSize);
+                cache.trimToSize(maxSize < 0 ? maxSize : maxSize - windowSize);
+            } else {
+                cache.trimToSize(maxSize);
+            }
+        }
+
+        public void evictAll() {
+            if (window != null) {
+                window.evictAll();
+            }
+
+            cache.evictAll();
+        }
+
+        public int hitCount() {
+            if (window != null) {
+                return window.hitCount() + cache.hitCount();
+            } else {
+                return cache.hitCount();
+            }
+        }
+
+        public int missCount() {
+            // Everything missing the window is looked up in the cache, so only its misses count
+            return cache.missCount();
+        }
+
+        public int putCount() {
+            if (window != null) {
+                return window.putCount();
+            } else {
+                return cache.putCount();
+            }
+        }
+
+        public int evictionCount() {
+            return cache.evictionCount();
+        }
+
+        public int numImages() {
+            if (window != null) {
+                return window.snapshot().size() + cache.snapshot().size();
+            } else {
+                return cache.snapshot().size();
+            }
+        }
+    }
+
+    private class BitmapCache extends ConcurrentLruCache<CacheKey, Entry> {
+        private FrequencySketch sketch;
+
+        public BitmapCache(int maxSize, FrequencySketch sketch) {
             super(maxSize);
+
+            this.sketch = sketch;
         }
 
         @Override
-        protected int sizeOf(String key, Entry value) {
+        protected int sizeOf(CacheKey key, Entry value) {
             Bitmap b = value.bitmap;
 
-            return MemoryCache.sizeOf(b);
+            return BitmapUtils.getByteCount(b);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, CacheKey key, Entry oldValue, Entry newValue) {
+            if (evicted) {
+                // Reuse the bitmap if nobody shows it anymore, otherwise keep
+                // it around for as long as someone holds a reference to it
+                if (bitmapPool == null || !bitmapPool.putReleased(oldValue.bitmap)) {
+                    addExpired(key, oldValue);
+                }
+            }
+        }
+
+        @Override
+        protected boolean admit(CacheKey candidateKey, CacheKey victimKey) {
+            return sketch == null || sketch.frequency(candidateKey) > sketch.frequency(victimKey);
+        }
+    }
+
+    private class WindowCache extends BitmapCache {
+        private ConcurrentLruCache<CacheKey, Entry> cache;
+
+        public WindowCache(int maxSize, ConcurrentLruCache<CacheKey, Entry> cache) {
+            super(maxSize, null);
+
+            this.cache = cache;
         }
 
         @Override
-        protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+        protected void entryRemoved(boolean evicted, CacheKey key, Entry oldValue, Entry newValue) {
             if (evicted) {
-                expired.put(key, new WeakEntry(oldValue));
+                // Try to get into the main cache, if it's rejected
+                // it will be handled like any other eviction
+                cache.put(key, oldValue);
             }
         }
     }
@@ -1,22 +1,85 @@
 package com.webimageloader.loader;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import com.webimageloader.util.HeaderParser;
+import com.webimageloader.util.ImageHeaderParser;
+
 public class Metadata {
     public static final long NEVER_EXPIRES = -1;
-    
+    public static final long STALE_NOT_SET = -1;
+
+    // Can't be mistaken for the length of a content type, which is
+    // how records written before versioning start
+    private static final int VERSION_MARKER = 0xffff;
+    private static final int VERSION = 3;
+    // Version 2 didn't have any cache control directives
+    private static final int VERSION_IMAGE_HEADER = 2;
+
+    private static final int FLAG_MUST_REVALIDATE = 1;
+    private static final int FLAG_NO_STORE = 1 << 1;
+
     private String contentType;
     private long lastModified;
     private long expires;
     private String etag;
+    private ImageHeaderParser.Header imageHeader;
+
+    private boolean mustRevalidate;
+    private boolean noStore;
+    private long staleWhileRevalidate = STALE_NOT_SET;
 
     public static Metadata from(InputStream is) throws IOException {
+        if (!is.markSupported()) {
+            is = new BufferedInputStream(is);
+        }
+
         DataInputStream stream = new DataInputStream(is);
 
+        // Records without a version start with the length of the content type
+        stream.mark(3);
+        int version = stream.readUnsignedShort() == VERSION_MARKER ? stream.readUnsignedByte() : 0;
+        if (version < VERSION_IMAGE_HEADER || version > VERSION) {
+            stream.reset();
+
+            return readUnversioned(stream);
+        }
+
+        String contentType = stream.readUTF();
+        long lastModified = stream.readLong();
+        long expires = stream.readLong();
+        String etag = stream.readUTF();
+
+        ImageHeaderParser.Header imageHeader = null;
+        if (stream.readBoolean()) {
+            String mimeType = stream.readUTF();
+            int width = stream.readInt();
+            int height = stream.readInt();
+            int orientation = stream.readInt();
+            boolean progressive = stream.readBoolean();
+            boolean animated = stream.readBoolean();
+
+            imageHeader = new ImageHeaderParser.Header(mimeType, width, height, orientation, progressive, animated);
+        }
+
+        Metadata metadata = new Metadata(contentType, lastModified, expires, etag, imageHeader);
+
+        if (version >= 3) {
+            int flags = stream.readUnsignedByte();
+            metadata.mustRevalidate = (flags & FLAG_MUST_REVALIDATE) != 0;
+            metadata.noStore = (flags & FLAG_NO_STORE) != 0;
+            metadata.staleWhileRevalidate = stream.readLong();
+        }
+
+        return metadata;
+    }
+
+    private static Metadata readUnversioned(DataInputStream stream) throws IOException {
         String contentType = stream.readUTF();
         long lastModified = stream.readLong();
         long expires = stream.readLong();
@@ -28,13 +91,41 @@ public class Metadata {
     public void writeTo(OutputStream os) throws IOException {
         DataOutputStream stream = new DataOutputStream(os);
 
+        stream.writeShort(VERSION_MARKER);
+        stream.writeByte(VERSION);
+
         stream.writeUTF(contentType);
         stream.writeLong(lastModified);
         stream.writeLong(expires);
         stream.writeUTF(etag);
+
+        stream.writeBoolean(imageHeader != null);
+        if (imageHeader != null) {
+            stream.writeUTF(imageHeader.mimeType);
+            stream.writeInt(imageHeader.width);
+            stream.writeInt(imageHeader.height);
+            stream.writeInt(imageHeader.orientation);
+            stream.writeBoolean(imageHeader.progressive);
+            stream.writeBoolean(imageHeader.animated);
+        }
+
+        int flags = 0;
+        if (mustRevalidate) {
+            flags |= FLAG_MUST_REVALIDATE;
+        }
+        if (noStore) {
+            flags |= FLAG_NO_STORE;
+        }
+
+        stream.writeByte(flags);
+        stream.writeLong(staleWhileRevalidate);
     }
 
     public Metadata(String contentType, long lastModified, long expires, String etag) {
+        this(contentType, lastModified, expires, etag, null);
+    }
+
+    public Metadata(String contentType, long lastModified, long expires, String etag, ImageHeaderParser.Header imageHeader) {
         // Don't allow strings to be null, this causes errors
         // when we write it to the outputstream later on
         if (contentType == null) {
@@ -49,6 +140,59 @@ public class Metadata {
         this.lastModified = lastModified;
         this.expires = expires;
         this.etag = etag;
+        this.imageHeader = imageHeader;
+    }
+
+    /**
+     * Get a copy of this metadata with information parsed from the image
+     * itself, the content type is replaced with the actual format
+     *
+     * @param imageHeader the parsed header
+     * @return the new metadata
+     */
+    public Metadata withImageHeader(ImageHeaderParser.Header imageHeader) {
+        return copy(imageHeader.mimeType, imageHeader);
+    }
+
+    /**
+     * Get a copy of this metadata for a different image, for example the
+     * result of a transformation. Any image header is left out as it
+     * described the old image.
+     *
+     * @param contentType the new content type
+     * @return the new metadata
+     */
+    public Metadata withContentType(String contentType) {
+        return copy(contentType, null);
+    }
+
+    /**
+     * Get a copy of this metadata with the Cache-Control directives which
+     * affect how the image is cached, the expiry time should already be
+     * based on them
+     *
+     * @param cacheControl the directives of the response
+     * @return the new metadata
+     */
+    public Metadata withCacheControl(HeaderParser.CacheControl cacheControl) {
+        Metadata metadata = copy(contentType, imageHeader);
+
+        // no-cache means it has to be checked every time, like an expired must-revalidate
+        metadata.mustRevalidate = cacheControl.mustRevalidate || cacheControl.noCache;
+        metadata.noStore = cacheControl.noStore;
+        metadata.staleWhileRevalidate = cacheControl.staleWhileRevalidate != HeaderParser.CacheControl.NOT_SET
+                ? cacheControl.staleWhileRevalidate * 1000 : STALE_NOT_SET;
+
+        return metadata;
+    }
+
+    private Metadata copy(String contentType, ImageHeaderParser.Header imageHeader) {
+        Metadata metadata = new Metadata(contentType, lastModified, expires, etag, imageHeader);
+        metadata.mustRevalidate = mustRevalidate;
+        metadata.noStore = noStore;
+        metadata.staleWhileRevalidate = staleWhileRevalidate;
+
+        return metadata;
     }
 
     public String getContentType() {
@@ -66,4 +210,38 @@ public class Metadata {
     public String getEtag() {
         return etag;
     }
+
+    /**
+     * @return true if the image may not be used after expiring without
+     *     checking it first
+     */
+    public boolean isMustRevalidate() {
+        return mustRevalidate;
+    }
+
+    /**
+     * @return true if the image may not be saved to disk
+     */
+    public boolean isNoStore() {
+        return noStore;
+    }
+
+    /**
+     * Get how long after expiring the image may be used while it's checked
+     * in the background
+     *
+     * @return time in milliseconds, or {@link #STALE_NOT_SET}
+     */
+    public long getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * Get the format, size and flags of the image if they are known
+     *
+     * @return the image header, or null if the image hasn't been parsed
+     */
+    public ImageHeaderParser.Header getImageHeader() {
+        return imageHeader;
+    }
 }
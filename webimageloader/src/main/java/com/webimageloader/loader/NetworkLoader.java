@@ -7,13 +7,18 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.annotation.TargetApi;
 import android.net.TrafficStats;
 import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -21,10 +26,12 @@ import com.webimageloader.ConnectionFactory;
 import com.webimageloader.ConnectionHandler;
 import com.webimageloader.Constants;
 import com.webimageloader.ImageLoader.Logger;
+import com.webimageloader.util.AbortableInputSupplier;
 import com.webimageloader.util.Android;
 import com.webimageloader.util.FlushedInputStream;
 import com.webimageloader.util.HeaderParser;
 import com.webimageloader.util.InputSupplier;
+import com.webimageloader.util.LruCache;
 
 public class NetworkLoader implements Loader, Closeable {
     private static final String TAG = "NetworkLoader";
@@ -32,6 +39,9 @@ public class NetworkLoader implements Loader, Closeable {
     private static final int TAG_REGULAR = 0x7eb00000;
     private static final int TAG_CONDITIONAL = 0x7eb0000c;
 
+    // Number of urls to remember the last revalidation of
+    private static final int RECENT_REVALIDATIONS = 64;
+
     private Map<String, URLStreamHandler> streamHandlers;
     private ConnectionFactory connectionFactory;
     private ConnectionHandler connectionHandler;
@@ -43,6 +53,15 @@ public class NetworkLoader implements Loader, Closeable {
     private BackgroundLoader regularLoader;
     private BackgroundLoader conditionalLoader;
 
+    // Revalidations currently running, and the results of recent ones, by url
+    private ConcurrentHashMap<String, Revalidation> revalidations = new ConcurrentHashMap<String, Revalidation>();
+    private LruCache<String, RevalidationResult> recentRevalidations = new LruCache<String, RevalidationResult>(RECENT_REVALIDATIONS);
+    private AtomicInteger dedupedRevalidationCount = new AtomicInteger();
+
+    // Minimum time between starting revalidations, guarded by revalidations
+    private long revalidationInterval;
+    private long nextRevalidation;
+
     public NetworkLoader(Builder builder) {
         this.streamHandlers = Collections.unmodifiableMap(builder.streamHandlers);
         this.connectionFactory = builder.connectionFactory;
@@ -52,16 +71,94 @@ public class NetworkLoader implements Loader, Closeable {
         this.defaultMaxAge = builder.defaultMaxAge;
         this.forcedMaxAge = builder.forcedMaxAge;
 
-        regularLoader = new NetworkLoaderImpl("Network", Process.THREAD_PRIORITY_BACKGROUND, builder.threadCount);
-        conditionalLoader = new NetworkLoaderImpl("Network, cache check", Process.THREAD_PRIORITY_LOWEST, 1);
+        if (builder.revalidationRate > 0) {
+            revalidationInterval = 1000 / builder.revalidationRate;
+        }
+
+        regularLoader = new NetworkLoaderImpl("Network", Process.THREAD_PRIORITY_BACKGROUND, builder.threadCount, builder.schedulingPolicy);
+        conditionalLoader = new RevalidationLoader(builder.revalidationThreadCount, builder.schedulingPolicy);
     }
 
     @Override
     public void load(LoaderWork.Manager manager, LoaderRequest request) {
-        if (request.getMetadata() != null) {
+        if (request.getMetadata() == null || request.isBlockingRevalidation()) {
+            // Someone is waiting for this one
+            regularLoader.load(manager, request);
+        } else if (!joinRevalidation(manager, request)) {
             conditionalLoader.load(manager, request);
+        }
+    }
+
+    /**
+     * @return number of revalidations answered by another revalidation of
+     *     the same url, for example for another transformation
+     */
+    public int getDedupedRevalidationCount() {
+        return dedupedRevalidationCount.get();
+    }
+
+    /**
+     * Try to answer a revalidation without checking with the server, by
+     * waiting for a running revalidation of the same url or using the
+     * result of a recent one.
+     *
+     * @return true if the request was taken care of
+     */
+    private boolean joinRevalidation(LoaderWork.Manager manager, LoaderRequest request) {
+        String url = request.getUrl();
+
+        Revalidation running = revalidations.get(url);
+        if (running != null && running.join(manager, request)) {
+            if (Logger.VERBOSE) Log.v(TAG, "Waiting for running revalidation of " + request);
+            dedupedRevalidationCount.incrementAndGet();
+
+            return true;
+        }
+
+        // Only an unmodified image can be answered for others, they
+        // need the new image otherwise
+        RevalidationResult recent = recentRevalidations.get(url);
+        if (recent != null && !recent.modified && !recent.isExpired()) {
+            if (Logger.VERBOSE) Log.v(TAG, request + " was recently revalidated");
+            dedupedRevalidationCount.incrementAndGet();
+
+            manager.deliverNotMotified(withCachedHeader(recent.metadata, request));
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Wait until we're allowed to start another revalidation
+     */
+    private void throttleRevalidation() throws InterruptedException {
+        if (revalidationInterval <= 0) {
+            return;
+        }
+
+        long delay;
+        synchronized (revalidations) {
+            long now = SystemClock.elapsedRealtime();
+            long start = Math.max(now, nextRevalidation);
+
+            nextRevalidation = start + revalidationInterval;
+            delay = start - now;
+        }
+
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+    }
+
+    private static Metadata withCachedHeader(Metadata metadata, LoaderRequest request) {
+        // The image is the same, so is its header
+        Metadata cachedMetadata = request.getMetadata();
+        if (cachedMetadata.getImageHeader() != null) {
+            return metadata.withImageHeader(cachedMetadata.getImageHeader());
         } else {
-            regularLoader.load(manager, request);
+            return metadata;
         }
     }
 
@@ -72,54 +169,174 @@ public class NetworkLoader implements Loader, Closeable {
     }
 
     private class NetworkLoaderImpl extends SimpleBackgroundLoader {
-        public NetworkLoaderImpl(String name, int priority, int threadCount) {
-            super(name, priority, threadCount);
+        public NetworkLoaderImpl(String name, int priority, int threadCount, SchedulingPolicy policy) {
+            super(name, priority, threadCount, policy);
         }
 
         @Override
         protected void loadInBackground(LoaderWork.Manager manager, LoaderRequest request) throws Exception {
-            String url = request.getUrl();
+            fetch(manager, request);
+        }
+    }
 
-            String protocol = getProtocol(url);
-            URLStreamHandler streamHandler = getURLStreamHandler(protocol);
+    /**
+     * Checks cached images in the background, with its own threads so a
+     * wave of expired images doesn't hold up regular loads. Revalidations
+     * of the same url are only done once.
+     */
+    private class RevalidationLoader extends SimpleBackgroundLoader {
+        public RevalidationLoader(int threadCount, SchedulingPolicy policy) {
+            super("Network, cache check", Process.THREAD_PRIORITY_LOWEST, threadCount, policy);
+        }
 
-            URLConnection urlConnection = openConnection(new URL(null, url, streamHandler));
+        @Override
+        protected void loadInBackground(LoaderWork.Manager manager, LoaderRequest request) throws Exception {
+            String url = request.getUrl();
+            Revalidation revalidation = new Revalidation();
 
-            Metadata metadata = request.getMetadata();
-            if (metadata != null) {
-                tag(TAG_CONDITIONAL);
+            while (true) {
+                // Something similar might have been done while we were queued
+                if (joinRevalidation(manager, request)) {
+                    return;
+                }
 
-                // We have some information available
-                long modifiedSince = metadata.getLastModified();
-                if (modifiedSince != 0) {
-                    urlConnection.setIfModifiedSince(modifiedSince);
+                if (revalidations.putIfAbsent(url, revalidation) == null) {
+                    break;
                 }
+            }
 
-                String etag = metadata.getEtag();
-                if (!TextUtils.isEmpty(etag)) {
-                    urlConnection.addRequestProperty("If-None-Match", etag);
+            RevalidationResult result = null;
+            Exception error = null;
+            try {
+                throttleRevalidation();
+
+                result = fetch(manager, request);
+            } catch (Exception e) {
+                error = e;
+                throw e;
+            } finally {
+                if (result != null) {
+                    recentRevalidations.put(url, result);
+                }
+
+                revalidations.remove(url, revalidation);
+
+                // Everyone waiting gets exactly one answer
+                for (Revalidation.Waiting waiting : revalidation.finish()) {
+                    if (result == null) {
+                        waiting.manager.deliverError(error != null ? error : new IOException("Revalidation failed"));
+                    } else if (!result.modified) {
+                        waiting.manager.deliverNotMotified(withCachedHeader(result.metadata, waiting.request));
+                    } else {
+                        // Needs the new image, check again on its own
+                        load(waiting.manager, waiting.request);
+                    }
                 }
-            } else {
-                tag(TAG_REGULAR);
             }
+        }
+    }
 
-            String contentType = urlConnection.getContentType();
-            long lastModified = urlConnection.getLastModified();
-            long expires = getExpires(urlConnection);
-            String etag = urlConnection.getHeaderField("ETag");
+    /**
+     * Load the request, delivering the result to the manager
+     *
+     * @return the new metadata and whether the cached image was modified
+     */
+    private RevalidationResult fetch(LoaderWork.Manager manager, LoaderRequest request) throws Exception {
+        String url = request.getUrl();
 
-            // Update metadata
-            metadata = new Metadata(contentType, lastModified, expires, etag);
+        String protocol = getProtocol(url);
+        URLStreamHandler streamHandler = getURLStreamHandler(protocol);
 
-            if (getResponseCode(urlConnection) == HttpURLConnection.HTTP_NOT_MODIFIED) {
-                if (Logger.VERBOSE) Log.v(TAG, request + " was not modified since last fetch");
+        URLConnection urlConnection = openConnection(new URL(null, url, streamHandler));
 
-                manager.deliverNotMotified(metadata);
-            } else {
-                if (Logger.VERBOSE) Log.v(TAG, "Loaded " + request + " from network");
+        Metadata metadata = request.getMetadata();
+        if (metadata != null) {
+            tag(TAG_CONDITIONAL);
+
+            // We have some information available
+            long modifiedSince = metadata.getLastModified();
+            if (modifiedSince != 0) {
+                urlConnection.setIfModifiedSince(modifiedSince);
+            }
 
-                manager.deliverStream(new NetworkInputSupplier(urlConnection), metadata);
+            String etag = metadata.getEtag();
+            if (!TextUtils.isEmpty(etag)) {
+                urlConnection.addRequestProperty("If-None-Match", etag);
             }
+        } else {
+            tag(TAG_REGULAR);
+        }
+
+        HeaderParser.CacheControl cacheControl = HeaderParser.getCacheControl(urlConnection);
+
+        String contentType = urlConnection.getContentType();
+        long lastModified = urlConnection.getLastModified();
+        long expires = getExpires(urlConnection, cacheControl);
+        String etag = urlConnection.getHeaderField("ETag");
+
+        // Update metadata
+        metadata = new Metadata(contentType, lastModified, expires, etag).withCacheControl(cacheControl);
+
+        if (getResponseCode(urlConnection) == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            if (Logger.VERBOSE) Log.v(TAG, request + " was not modified since last fetch");
+
+            manager.deliverNotMotified(withCachedHeader(metadata, request));
+
+            return new RevalidationResult(metadata, false);
+        } else {
+            if (Logger.VERBOSE) Log.v(TAG, "Loaded " + request + " from network");
+
+            manager.deliverStream(new NetworkInputSupplier(urlConnection), metadata);
+
+            return new RevalidationResult(metadata, true);
+        }
+    }
+
+    /**
+     * A running revalidation, others revalidating the same url wait for it
+     */
+    private static class Revalidation {
+        private static class Waiting {
+            final LoaderWork.Manager manager;
+            final LoaderRequest request;
+
+            Waiting(LoaderWork.Manager manager, LoaderRequest request) {
+                this.manager = manager;
+                this.request = request;
+            }
+        }
+
+        // Guarded by this
+        private List<Waiting> waiting = new ArrayList<Waiting>();
+        private boolean finished;
+
+        public synchronized boolean join(LoaderWork.Manager manager, LoaderRequest request) {
+            if (finished) {
+                return false;
+            }
+
+            waiting.add(new Waiting(manager, request));
+            return true;
+        }
+
+        public synchronized List<Waiting> finish() {
+            finished = true;
+            return waiting;
+        }
+    }
+
+    private static class RevalidationResult {
+        final Metadata metadata;
+        final boolean modified;
+
+        RevalidationResult(Metadata metadata, boolean modified) {
+            this.metadata = metadata;
+            this.modified = modified;
+        }
+
+        boolean isExpired() {
+            long expires = metadata.getExpires();
+            return expires != Metadata.NEVER_EXPIRES && System.currentTimeMillis() > expires;
         }
     }
 
@@ -133,16 +350,25 @@ public class NetworkLoader implements Loader, Closeable {
         }
     }
 
-    private long getExpires(URLConnection urlConnection) {
+    private long getExpires(URLConnection urlConnection, HeaderParser.CacheControl cacheControl) {
         if (forcedMaxAge > 0) {
             return System.currentTimeMillis() + forcedMaxAge;
         } else if (forcedMaxAge == Constants.MAX_AGE_INFINITY) {
             return Metadata.NEVER_EXPIRES;
         }
 
-        // Prefer "max-age" before "expires"
-        long maxAge = HeaderParser.getMaxAge(urlConnection);
-        if (maxAge > 0) {
+        if (cacheControl.noCache) {
+            // Has to be checked before every use
+            return System.currentTimeMillis();
+        } else if (cacheControl.immutable) {
+            // Will never change, no need to ever check it
+            return Metadata.NEVER_EXPIRES;
+        }
+
+        // Prefer "max-age" before "expires", it's small enough to be
+        // converted to milliseconds without overflowing
+        long maxAge = cacheControl.maxAge;
+        if (maxAge != HeaderParser.CacheControl.NOT_SET) {
             return System.currentTimeMillis() + maxAge * 1000;
         }
 
@@ -213,11 +439,14 @@ public class NetworkLoader implements Loader, Closeable {
         return streamHandlers.get(protocol);
     }
 
-    private class NetworkInputSupplier implements InputSupplier {
+    private class NetworkInputSupplier implements AbortableInputSupplier {
         private URLConnection connection;
         private URL url;
         private long length;
 
+        // The connection of the last opened stream
+        private volatile URLConnection openConnection;
+
         public NetworkInputSupplier(URLConnection connection) {
             this.connection = connection;
 
@@ -234,6 +463,7 @@ public class NetworkLoader implements Loader, Closeable {
         @Override
         public InputStream getInput() throws IOException {
             if (connection != null) {
+                openConnection = connection;
                 InputStream is = connection.getInputStream();
                 connection = null;
 
@@ -245,10 +475,18 @@ public class NetworkLoader implements Loader, Closeable {
 
                 return is;
             } else {
-                return openConnection(url).getInputStream();
+                openConnection = openConnection(url);
+                return openConnection.getInputStream();
             }
         }
 
+        @Override
+        public void abort() {
+            URLConnection c = openConnection;
+            if (c instanceof HttpURLConnection) {
+                ((HttpURLConnection) c).disconnect();
+            }
+        }
     }
 
     public static class Builder {
@@ -258,6 +496,10 @@ public class NetworkLoader implements Loader, Closeable {
         private ConnectionHandler connectionHandler;
 
         private int threadCount = Constants.DEFAULT_NETWORK_THREADS;
+        private SchedulingPolicy schedulingPolicy = SchedulingPolicy.FIFO;
+
+        private int revalidationThreadCount = Constants.DEFAULT_REVALIDATION_THREADS;
+        private int revalidationRate;
 
         private int connectionTimeout = Constants.DEFAULT_CONNECTION_TIMEOUT;
         private int readTimeout = Constants.DEFAULT_READ_TIMEOUT;
@@ -293,6 +535,24 @@ public class NetworkLoader implements Loader, Closeable {
             return this;
         }
 
+        public Builder setSchedulingPolicy(SchedulingPolicy policy) {
+            this.schedulingPolicy = policy;
+
+            return this;
+        }
+
+        public Builder setRevalidationThreadCount(int count) {
+            this.revalidationThreadCount = count;
+
+            return this;
+        }
+
+        public Builder setRevalidationRate(int perSecond) {
+            this.revalidationRate = perSecond;
+
+            return this;
+        }
+
         public Builder setConnectionTimeout(int connectionTimeout) {
             this.connectionTimeout = connectionTimeout;
 
@@ -0,0 +1,25 @@
+package com.webimageloader.loader;
+
+/**
+ * What to do with new requests when the limit of pending requests is reached
+ */
+public enum OverflowPolicy {
+    /**
+     * Fail the new request with a {@link java.util.concurrent.RejectedExecutionException}
+     */
+    REJECT,
+    /**
+     * Drop the oldest of the least urgent requests which haven't started
+     * yet to make room, the new request is rejected if all of them are more
+     * urgent than it
+     */
+    DROP_OLDEST,
+    /**
+     * Keep the new request waiting until there is room, the most urgent
+     * waiting request is started first. No thread is blocked while waiting.
+     * At most as many requests wait as may be pending, once full the least
+     * urgent waiting request is dropped to make room, the new request is
+     * rejected if all of them are more urgent than it.
+     */
+    WAIT
+}
@@ -1,46 +1,52 @@
 package com.webimageloader.loader;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.webimageloader.ImageLoader;
 import com.webimageloader.ImageLoader.Logger;
+import com.webimageloader.util.BitmapPool;
 import com.webimageloader.util.BitmapUtils;
 import com.webimageloader.util.InputSupplier;
+import com.webimageloader.util.WeakConcurrentMap;
 
 import android.graphics.Bitmap;
 import android.util.Log;
 
+/**
+ * Keeps track of pending requests so that several requests for the same
+ * image share the same work. There is no global lock, each request moves
+ * from pending to either done or cancelled exactly once, guarded by its own
+ * monitor, and the maps are only updated using conditional operations.
+ */
 public class PendingRequests {
     private static final String TAG = "PendingRequests";
 
     private MemoryCache memoryCache;
+    private BitmapPool bitmapPool;
 
-    // Don't remove tags at all, this means both of these should be weakhashmaps
-    //
-    private Map<Object, PendingListeners> pendingTags;
-    private Map<LoaderRequest, PendingListeners> pendingRequests;
+    private WeakConcurrentMap<Object, PendingListeners> pendingTags;
+    private ConcurrentHashMap<LoaderRequest, PendingListeners> pendingRequests;
 
-    public PendingRequests(MemoryCache memoryCache) {
+    public PendingRequests(MemoryCache memoryCache, BitmapPool bitmapPool) {
         this.memoryCache = memoryCache;
+        this.bitmapPool = bitmapPool;
 
-        // Use WeakHashMap to ensure tags can be GC'd
-        pendingTags = new WeakHashMap<Object, PendingListeners>();
-        pendingRequests = new HashMap<LoaderRequest, PendingListeners>();
+        // Use weak keys to ensure tags can be GC'd
+        pendingTags = new WeakConcurrentMap<Object, PendingListeners>();
+        pendingRequests = new ConcurrentHashMap<LoaderRequest, PendingListeners>();
     }
 
-    public synchronized Bitmap getBitmap(Object tag, LoaderRequest request) {
+    public Bitmap getBitmap(Object tag, LoaderRequest request) {
         if (memoryCache != null) {
             MemoryCache.Entry entry = memoryCache.get(request);
             if (entry != null) {
                 // We got this bitmap, cancel old pending work
-                cancelPotentialWork(tag);
+                cancel(tag);
                 return entry.bitmap;
             }
         }
@@ -48,76 +54,94 @@ public class PendingRequests {
         return null;
     }
 
-    public synchronized LoaderWork addRequest(Object tag, final LoaderRequest request, LoaderManager.Listener listener) {
-        if (tag != null && stillPending(tag, request)) {
-            return null;
-        }
-
+    public LoaderWork addRequest(Object tag, LoaderRequest request, LoaderManager.Listener listener) {
         if (tag != null) {
+            if (stillPending(tag, request)) {
+                return null;
+            }
+
             cancelPotentialWork(tag);
         }
 
-        PendingListeners listeners = pendingRequests.get(request);
-        LoaderWork work = null;
+        while (true) {
+            PendingListeners listeners = pendingRequests.get(request);
 
-        if (listeners == null) {
-            work = new LoaderWork(new RequestListener(request), new ImageLoader.ProgressListener() {
-                @Override
-                public void onProgress(float value) {
-                    publishProgress(request, value);
+            if (listeners == null) {
+                listeners = new PendingListeners(request, tag, listener);
+                LoaderWork work = new LoaderWork(new RequestListener(listeners), listeners, request.getPriority());
+                listeners.setWork(work);
+
+                if (pendingRequests.putIfAbsent(request, listeners) == null) {
+                    addTag(tag, listeners);
+                    return work;
                 }
-            });
+            } else if (listeners.add(tag, listener)) {
+                if (Logger.VERBOSE) Log.v(TAG, "Reusing request: " + request);
 
-            listeners = new PendingListeners(request, tag, listener, work);
-            pendingRequests.put(request, listeners);
-        } else {
-            if (Logger.VERBOSE) Log.v(TAG, "Reusing request: " + request);
-            listeners.add(tag, listener);
+                listeners.getWork().raisePriority(request.getPriority());
+                addTag(tag, listeners);
+                return null;
+            } else {
+                // Finished while we were looking at it, replace it
+                pendingRequests.remove(request, listeners);
+            }
         }
+    }
 
+    public void cancel(Object tag) {
         if (tag != null) {
-            pendingTags.put(tag, listeners);
+            cancelPotentialWork(tag);
         }
-
-        return work;
     }
 
-    public synchronized void cancel(Object tag) {
-        cancelPotentialWork(tag);
+    private void deliverResult(PendingListeners listeners, Bitmap b, Metadata metadata) {
+        List<LoaderManager.Listener> l = finish(listeners);
+        if (l != null) {
+            saveToMemoryCache(listeners.getRequest(), b, metadata);
+
+            for (LoaderManager.Listener listener : l) {
+                listener.onLoaded(b);
+            }
+        }
     }
 
-    protected synchronized void publishProgress(LoaderRequest request, float value) {
-        PendingListeners listeners = pendingRequests.get(request);
-        if (listeners != null) {
-            listeners.publishProgress(value);
+    private void deliverError(PendingListeners listeners, Throwable t) {
+        List<LoaderManager.Listener> l = finish(listeners);
+        if (l != null) {
+            for (LoaderManager.Listener listener : l) {
+                listener.onError(t);
+            }
         }
     }
 
-    protected synchronized void deliverResult(LoaderRequest request, Bitmap b, Metadata metadata) {
-        PendingListeners listeners = removeRequest(request);
-        if (listeners != null) {
-            saveToMemoryCache(request, b, metadata);
+    private List<LoaderManager.Listener> finish(PendingListeners listeners) {
+        LoaderRequest request = listeners.getRequest();
 
-            listeners.deliverResult(b);
+        List<LoaderManager.Listener> l = listeners.finish();
+        if (l == null) {
+            if (Logger.VERBOSE) Log.v(TAG, "Request no longer pending: " + request);
+            return null;
         }
-    }
 
-    protected synchronized void deliverError(LoaderRequest request, Throwable t) {
-        PendingListeners listeners = removeRequest(request);
-        if (listeners != null) {
-            listeners.deliverError(t);
+        pendingRequests.remove(request, listeners);
+        for (Object tag : listeners.getTags()) {
+            pendingTags.remove(tag, listeners);
         }
+
+        return l;
     }
 
-    private PendingListeners removeRequest(LoaderRequest request) {
-        PendingListeners listeners = pendingRequests.remove(request);
-        if (listeners == null) {
-            if (Logger.VERBOSE) Log.v(TAG, "Request no longer pending: " + request);
-        } else {
-            pendingTags.keySet().removeAll(listeners.getTags());
+    private void addTag(Object tag, PendingListeners listeners) {
+        if (tag == null) {
+            return;
         }
 
-        return listeners;
+        pendingTags.put(tag, listeners);
+
+        // The request might have finished before the tag was added
+        if (!listeners.isPending()) {
+            pendingTags.remove(tag, listeners);
+        }
     }
 
     private void cancelPotentialWork(Object tag) {
@@ -126,10 +150,9 @@ public class PendingRequests {
             return;
         }
 
-        listeners.remove(tag);
-        if (listeners.isEmpty()) {
-            LoaderRequest request = listeners.getRequest();
-            pendingRequests.remove(request);
+        if (listeners.remove(tag)) {
+            // That was the last listener
+            pendingRequests.remove(listeners.getRequest(), listeners);
             listeners.cancel();
         }
     }
@@ -143,28 +166,22 @@ public class PendingRequests {
     private boolean stillPending(Object tag, LoaderRequest request) {
         PendingListeners listeners = pendingTags.get(tag);
 
-        return listeners != null && request.equals(listeners.getRequest());
-     }
+        return listeners != null && listeners.isPending() && request.equals(listeners.getRequest());
+    }
 
     private class RequestListener implements Loader.Listener {
-        private LoaderRequest request;
+        private PendingListeners listeners;
 
-        public RequestListener(LoaderRequest request) {
-            this.request = request;
+        public RequestListener(PendingListeners listeners) {
+            this.listeners = listeners;
         }
 
         @Override
         public void onStreamLoaded(InputSupplier input, Metadata metadata) {
             try {
-                InputStream is = input.getInput();
-                
-                try {
-                    Bitmap b = BitmapUtils.decodeStream(is);
-                    
-                    onBitmapLoaded(b, metadata);
-                } finally {
-                    is.close();
-                }
+                Bitmap b = BitmapUtils.decodeStream(input, bitmapPool);
+
+                onBitmapLoaded(b, metadata);
             } catch (IOException e) {
                 onError(e);
             }
@@ -172,97 +189,144 @@ public class PendingRequests {
 
         @Override
         public void onBitmapLoaded(Bitmap b, Metadata metadata) {
-            deliverResult(request, b, metadata);
+            deliverResult(listeners, b, metadata);
         }
 
         @Override
         public void onNotModified(Metadata metadata) {
             // Nothing changed, we don't need to notify any listeners
-            memoryCache.updateMetadata(request, metadata);
+            memoryCache.updateMetadata(listeners.getRequest(), metadata);
         }
 
         @Override
         public void onError(Throwable t) {
-            deliverError(request, t);
+            deliverError(listeners, t);
         }
     }
 
-    private static class PendingListeners {
-        private LoaderRequest request;
+    private static class PendingListeners implements ImageLoader.ProgressListener {
+        private static final int STATE_PENDING = 0;
+        private static final int STATE_DONE = 1;
+        private static final int STATE_CANCELLED = 2;
+
+        private final LoaderRequest request;
+        private LoaderWork work;
+
+        // Guarded by this
+        private int state = STATE_PENDING;
         private Map<Object, LoaderManager.Listener> listeners;
         private List<LoaderManager.Listener> extraListeners;
-        private LoaderWork work;
 
-        public PendingListeners(LoaderRequest request, Object tag, LoaderManager.Listener listener, LoaderWork work) {
+        public PendingListeners(LoaderRequest request, Object tag, LoaderManager.Listener listener) {
             this.request = request;
-            this.work = work;
 
             // Use a WeakHashMap to ensure tags can be GC'd, also use 1 a initial
             // capacity as we expect a low number of listeners per request
             listeners = new WeakHashMap<Object, LoaderManager.Listener>(1);
             extraListeners = new ArrayList<LoaderManager.Listener>(1);
 
-            add(tag, listener);
+            addListener(tag, listener);
         }
 
-        public void add(Object tag, LoaderManager.Listener listener) {
-            if (tag == null) {
-                extraListeners.add(listener);
-            } else {
-                listeners.put(tag, listener);
+        public void setWork(LoaderWork work) {
+            this.work = work;
+        }
+
+        public LoaderWork getWork() {
+            return work;
+        }
+
+        public LoaderRequest getRequest() {
+            return request;
+        }
+
+        /**
+         * @return false if the request is no longer pending
+         */
+        public synchronized boolean add(Object tag, LoaderManager.Listener listener) {
+            if (state != STATE_PENDING) {
+                return false;
             }
+
+            addListener(tag, listener);
+
+            return true;
         }
 
-        public void remove(Object tag) {
+        /**
+         * @return true if this was the last listener and the request was cancelled
+         */
+        public synchronized boolean remove(Object tag) {
+            if (state != STATE_PENDING) {
+                return false;
+            }
+
             listeners.remove(tag);
+            if (listeners.isEmpty() && extraListeners.isEmpty()) {
+                state = STATE_CANCELLED;
+                return true;
+            }
+
+            return false;
         }
 
-        public boolean isEmpty() {
-            return listeners.isEmpty() && extraListeners.isEmpty();
+        public synchronized boolean isPending() {
+            return state == STATE_PENDING;
         }
 
         public void cancel() {
             work.cancel();
         }
 
-        public LoaderRequest getRequest() {
-            return request;
+        /**
+         * Mark the request as done, after this no listeners can be added or removed
+         *
+         * @return the listeners to notify or null if the request was no longer pending
+         */
+        public synchronized List<LoaderManager.Listener> finish() {
+            if (state != STATE_PENDING) {
+                return null;
+            }
+
+            state = STATE_DONE;
+
+            return getListeners();
         }
 
-        public Set<Object> getTags() {
-            return listeners.keySet();
+        public synchronized List<Object> getTags() {
+            return new ArrayList<Object>(listeners.keySet());
         }
 
-        public void publishProgress(float value) {
-            for (LoaderManager.Listener listener : listeners.values()) {
-                listener.onProgress(value);
+        @Override
+        public void onProgress(float value) {
+            List<LoaderManager.Listener> l;
+            synchronized (this) {
+                if (state != STATE_PENDING) {
+                    return;
+                }
+
+                l = getListeners();
             }
 
-            for (LoaderManager.Listener listener : extraListeners) {
+            for (LoaderManager.Listener listener : l) {
                 listener.onProgress(value);
             }
         }
 
-        public void deliverResult(Bitmap b) {
-            for (LoaderManager.Listener listener : listeners.values()) {
-                listener.onLoaded(b);
-            }
-
-            for (LoaderManager.Listener listener : extraListeners) {
-                listener.onLoaded(b);
+        private void addListener(Object tag, LoaderManager.Listener listener) {
+            if (tag == null) {
+                extraListeners.add(listener);
+            } else {
+                listeners.put(tag, listener);
             }
         }
 
-        public void deliverError(Throwable t) {
-            for (LoaderManager.Listener listener : listeners.values()) {
-                listener.onError(t);
-            }
+        private List<LoaderManager.Listener> getListeners() {
+            List<LoaderManager.Listener> l = new ArrayList<LoaderManager.Listener>(listeners.size() + extraListeners.size());
+            l.addAll(listeners.values());
+            l.addAll(extraListeners);
 
-            for (LoaderManager.Listener listener : extraListeners) {
-                listener.onError(t);
-            }
+            return l;
         }
-
-
     }
 }
@@ -0,0 +1,98 @@
+package com.webimageloader.loader;
+
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.webimageloader.Request;
+
+/**
+ * Work queued on a {@link BackgroundLoader}, ordered by the {@link SchedulingPolicy}
+ */
+class PrioritizedTask extends FutureTask<Void> {
+    final LoaderWork.Manager manager;
+
+    // Only changed while the task is out of the queue
+    Request.Priority priority;
+    long sequence;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequences;
+    private volatile boolean started;
+
+    public PrioritizedTask(Runnable runnable, LoaderWork.Manager manager, ThreadPoolExecutor executor, AtomicLong sequences) {
+        super(runnable, null);
+
+        this.manager = manager;
+        this.priority = manager.getPriority();
+        this.executor = executor;
+        this.sequences = sequences;
+        this.sequence = sequences.getAndIncrement();
+    }
+
+    @Override
+    public void run() {
+        started = true;
+
+        try {
+            super.run();
+        } finally {
+            // Also reached if it was cancelled while queued, cancelling
+            // doesn't stop a running task so only now is it really done
+            manager.taskFinished();
+        }
+    }
+
+    boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Queue this task again as the newest one, with the current priority of
+     * its work. Only has an effect on tasks which haven't started and on
+     * queues ordered by the {@link SchedulingPolicy}, a FIFO queue would
+     * only move it to the back.
+     */
+    void requeue() {
+        if (!(executor.getQueue() instanceof PriorityBlockingQueue) || !dequeue()) {
+            return;
+        }
+
+        priority = manager.getPriority();
+        sequence = sequences.getAndIncrement();
+
+        enqueue();
+    }
+
+    /**
+     * Take this task out of the queue before it has started, it still
+     * counts as a task of its work until it's queued again or discarded
+     *
+     * @return true if it was removed
+     */
+    boolean dequeue() {
+        return executor.remove(this);
+    }
+
+    /**
+     * Queue a task again after {@link #dequeue()}
+     */
+    void enqueue() {
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            // Shut down while it was out of the queue
+            discard();
+        }
+    }
+
+    /**
+     * Give up a task after {@link #dequeue()}, it will never run
+     */
+    void discard() {
+        cancel(false);
+        manager.taskFinished();
+    }
+}
@@ -0,0 +1,64 @@
+package com.webimageloader.loader;
+
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * Decides in which order queued work is picked up by the disk and network threads
+ */
+public enum SchedulingPolicy {
+    /**
+     * Oldest work first
+     */
+    FIFO,
+    /**
+     * Newest work first, useful when scrolling quickly as
+     * the images just scrolled into view are loaded first
+     */
+    LIFO,
+    /**
+     * Work with the highest {@link com.webimageloader.Request.Priority} first,
+     * newest work first within the same priority
+     */
+    PRIORITY;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    BlockingQueue<Runnable> createQueue() {
+        switch (this) {
+            case LIFO:
+                return new PriorityBlockingQueue<Runnable>(INITIAL_CAPACITY, new TaskComparator(false));
+            case PRIORITY:
+                return new PriorityBlockingQueue<Runnable>(INITIAL_CAPACITY, new TaskComparator(true));
+            default:
+                return new LinkedBlockingQueue<Runnable>();
+        }
+    }
+
+    private static class TaskComparator implements Comparator<Runnable> {
+        private boolean usePriority;
+
+        public TaskComparator(boolean usePriority) {
+            this.usePriority = usePriority;
+        }
+
+        @Override
+        public int compare(Runnable lhs, Runnable rhs) {
+            PrioritizedTask t1 = (PrioritizedTask) lhs;
+            PrioritizedTask t2 = (PrioritizedTask) rhs;
+
+            if (usePriority && t1.priority != t2.priority) {
+                // Priorities are declared from most to least urgent
+                return t1.priority.ordinal() < t2.priority.ordinal() ? -1 : 1;
+            }
+
+            if (t1.sequence == t2.sequence) {
+                return 0;
+            }
+
+            return t1.sequence > t2.sequence ? -1 : 1;
+        }
+    }
+}
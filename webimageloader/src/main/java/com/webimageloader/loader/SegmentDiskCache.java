@@ -0,0 +1,1289 @@
+package com.webimageloader.loader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.webimageloader.ImageLoader.Logger;
+import com.webimageloader.util.IOUtil;
+import com.webimageloader.util.PriorityThreadFactory;
+
+/**
+ * A {@link DiskCache} which packs images and their metadata into a few large
+ * append-only segment files, with an in-memory index of where every entry is.
+ * This saves a lot of files and file opens for caches with many small images,
+ * like avatars and thumbnails. Entries are read into memory in full and
+ * buffered in memory while being written, entries larger than a quarter of a
+ * segment are not saved. Caches of large images are better off in a
+ * {@link LruDiskCache}.
+ * <p>
+ * Entries are read without holding the lock of the cache, and only one
+ * entry is appended at a time without blocking readers.
+ * <p>
+ * Every record has a checksum of its key and values. Records which don't
+ * match, for example because only part of them reached the disk before a
+ * crash, are truncated when replayed and removed when read.
+ * <p>
+ * Replaced and evicted entries leave dead records behind, once more than
+ * half of the stored bytes are dead the oldest segments are compacted in the
+ * background by copying their live entries to a new segment.
+ * <p>
+ * The index is saved to a binary snapshot from time to time, opening the
+ * cache loads the snapshot and only replays records written after it.
+ */
+public class SegmentDiskCache implements DiskCache {
+    private static final String TAG = "SegmentDiskCache";
+
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public DiskCache open(File directory, long maxSize) throws IOException {
+            return SegmentDiskCache.open(directory, maxSize, DEFAULT_SEGMENT_SIZE);
+        }
+    };
+
+    private static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment.";
+    private static final String INDEX_FILE = "index";
+    private static final String INDEX_FILE_TMP = "index.tmp";
+    private static final String COMPACT_FILE_TMP = "compact.tmp";
+
+    private static final int MAGIC = 0x57494c53;
+    // Version 1 didn't have checksums
+    private static final int VERSION = 2;
+    private static final int FILE_HEADER_SIZE = 8;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // Largest entry saved, as a fraction of the segment size
+    private static final int MAX_ENTRY_FRACTION = 4;
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    private final File directory;
+    private final long maxSize;
+    private final long segmentSize;
+    private final long maxEntrySize;
+
+    // Oldest segment first, the last one is written to
+    private final List<Segment> segments = new ArrayList<Segment>();
+    // In access order, used for eviction
+    private final LinkedHashMap<String, Location> index = new LinkedHashMap<String, Location>(16, 0.75f, true);
+    private final Set<String> editing = new HashSet<String>();
+
+    // Size of live images and metadata
+    private long size;
+    // Size of all records pointed to by the index
+    private long liveBytes;
+    // Size of all segment files
+    private long totalBytes;
+
+    // Bytes appended since the index snapshot was written
+    private long unsavedBytes;
+
+    private boolean maintenanceScheduled;
+    private boolean closed;
+
+    // Held while appending to the newest segment, which is done outside
+    // the lock of the cache. Always taken before the lock of the cache.
+    private final Object writeLock = new Object();
+
+    // Held while writing the index snapshot, which is done outside the
+    // lock of the cache. Never wait for the cache while holding it.
+    private final Object indexLock = new Object();
+
+    private final ExecutorService maintenanceExecutor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new PriorityThreadFactory("Disk cache maintenance", Process.THREAD_PRIORITY_LOWEST));
+
+    private final Runnable maintenance = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SegmentDiskCache.this) {
+                maintenanceScheduled = false;
+            }
+
+            try {
+                boolean compacted = false;
+                while (compactOldestSegments()) {
+                    compacted = true;
+                }
+
+                IndexSnapshot snapshot = null;
+                synchronized (SegmentDiskCache.this) {
+                    // The snapshot points to the deleted segments, save a new one
+                    if (!closed && (compacted || unsavedBytes >= segmentSize)) {
+                        snapshot = captureIndex();
+                    }
+                }
+
+                if (snapshot != null) {
+                    writeIndex(snapshot);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed maintaining disk cache", e);
+            }
+        }
+    };
+
+    private static class Segment {
+        final long id;
+        final File file;
+        // Replaced if the channel was closed by an interrupt, the channel
+        // is read from without holding the lock
+        RandomAccessFile raf;
+        volatile FileChannel channel;
+        long length;
+
+        Segment(long id, File file, RandomAccessFile raf, long length) {
+            this.id = id;
+            this.file = file;
+            this.raf = raf;
+            this.channel = raf.getChannel();
+            this.length = length;
+        }
+
+        void close() {
+            IOUtil.closeQuietly(raf);
+        }
+    }
+
+    private static class IndexSnapshot {
+        final long[] segmentIds;
+        final long[] segmentLengths;
+        final String[] keys;
+        final Location[] locations;
+        final long unsavedBytes;
+
+        IndexSnapshot(int segmentCount, int entryCount, long unsavedBytes) {
+            segmentIds = new long[segmentCount];
+            segmentLengths = new long[segmentCount];
+            keys = new String[entryCount];
+            locations = new Location[entryCount];
+            this.unsavedBytes = unsavedBytes;
+        }
+    }
+
+    private static class Location {
+        final Segment segment;
+        final long offset;
+        final int recordLength;
+        final int imageLength;
+        final int metadataLength;
+        final int checksum;
+
+        Location(Segment segment, long offset, int recordLength, int imageLength, int metadataLength, int checksum) {
+            this.segment = segment;
+            this.offset = offset;
+            this.recordLength = recordLength;
+            this.imageLength = imageLength;
+            this.metadataLength = metadataLength;
+            this.checksum = checksum;
+        }
+
+        long getImageOffset() {
+            return offset + recordLength - imageLength - metadataLength;
+        }
+    }
+
+    /**
+     * Open the cache, loading the index snapshot and replaying whatever
+     * was written after it
+     *
+     * @param directory directory to keep the segments in
+     * @param maxSize max size of all images and metadata
+     * @param segmentSize size at which a new segment is started
+     * @return the opened cache
+     * @throws IOException if the cache could not be opened
+     */
+    public static SegmentDiskCache open(File directory, long maxSize, long segmentSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        SegmentDiskCache cache = new SegmentDiskCache(directory, maxSize, segmentSize);
+        synchronized (cache) {
+            cache.load();
+        }
+
+        return cache;
+    }
+
+    private SegmentDiskCache(File directory, long maxSize, long segmentSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+        this.maxEntrySize = segmentSize / MAX_ENTRY_FRACTION;
+    }
+
+    @Override
+    public DiskCache.Snapshot get(String key) throws IOException {
+        return read(key);
+    }
+
+    private Snapshot read(String key) throws IOException {
+        while (true) {
+            Location location;
+            synchronized (this) {
+                checkNotClosed();
+
+                location = index.get(key);
+            }
+
+            if (location == null) {
+                return null;
+            }
+
+            byte[] values;
+            try {
+                values = readValues(location);
+            } catch (ClosedChannelException e) {
+                handleClosedChannel(key, location, e);
+                continue;
+            }
+
+            if (checksum(key, values, 0, location.imageLength, location.imageLength, location.metadataLength) != location.checksum) {
+                Log.w(TAG, "Removing broken record from disk cache segment " + location.segment.id);
+                removeBroken(key, location);
+
+                return null;
+            }
+
+            return new Snapshot(values, location.imageLength);
+        }
+    }
+
+    private void removeBroken(String key, Location location) throws IOException {
+        synchronized (writeLock) {
+            synchronized (this) {
+                if (!closed && index.get(key) == location) {
+                    removeLocation(key);
+                    appendRemove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the image and metadata of an entry without holding the lock.
+     * Segments never change once written, but compaction might delete the
+     * segment, which shows up as a closed channel.
+     *
+     * @return the image followed by the metadata
+     */
+    private byte[] readValues(Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.imageLength + location.metadataLength);
+        long position = location.getImageOffset();
+
+        FileChannel channel = location.segment.channel;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("Disk cache segment " + location.segment.id + " is too short");
+            }
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * Find out why reading an entry failed with a closed channel, returns
+     * if it's worth trying again
+     */
+    private synchronized void handleClosedChannel(String key, Location location, ClosedChannelException e) throws IOException {
+        if (closed) {
+            throw e;
+        }
+
+        if (segments.contains(location.segment)) {
+            // An interrupt closes the channel for everyone, open it again
+            if (!location.segment.channel.isOpen()) {
+                reopenSegment(location.segment);
+            }
+        } else if (index.get(key) == location) {
+            throw e;
+        }
+
+        if (e instanceof ClosedByInterruptException) {
+            throw e;
+        }
+
+        // Compacted or reopened, read the entry again
+    }
+
+    private void reopenSegment(Segment segment) throws IOException {
+        if (Logger.DEBUG) Log.d(TAG, "Reopening disk cache segment " + segment.id);
+
+        segment.close();
+        segment.raf = new RandomAccessFile(segment.file, "rw");
+        segment.channel = segment.raf.getChannel();
+    }
+
+    @Override
+    public synchronized DiskCache.Editor edit(String key) throws IOException {
+        checkNotClosed();
+
+        if (!editing.add(key)) {
+            return null;
+        }
+
+        return new Editor(key);
+    }
+
+    @Override
+    public boolean remove(String key) throws IOException {
+        synchronized (writeLock) {
+            synchronized (this) {
+                checkNotClosed();
+
+                if (editing.contains(key) || !index.containsKey(key)) {
+                    return false;
+                }
+
+                removeLocation(key);
+                appendRemove(key);
+                scheduleMaintenanceIfNeeded();
+
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Wait for the entry being appended
+        synchronized (writeLock) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+
+                closed = true;
+                maintenanceExecutor.shutdown();
+
+                if (unsavedBytes > 0) {
+                    try {
+                        writeIndex(captureIndex());
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed saving disk cache index", e);
+                    }
+                }
+
+                for (Segment segment : segments) {
+                    segment.close();
+                }
+            }
+        }
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("Cache is closed");
+        }
+    }
+
+    private void load() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + directory);
+        }
+
+        List<Long> ids = new ArrayList<Long>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX)) {
+                try {
+                    ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not ours
+                }
+            }
+        }
+
+        Long[] sorted = ids.toArray(new Long[ids.size()]);
+        Arrays.sort(sorted);
+
+        for (long id : sorted) {
+            Segment segment = openSegment(id);
+            if (segment == null) {
+                // Written by another version, start over
+                Log.w(TAG, "Disk cache segment " + id + " has an unknown format, clearing cache");
+                clear();
+                break;
+            }
+
+            segments.add(segment);
+            totalBytes += segment.length;
+        }
+
+        // Where to start replaying each segment, everything before is in the snapshot
+        Map<Segment, Long> replayOffsets = readIndex();
+        if (replayOffsets == null) {
+            resetIndex();
+        }
+
+        for (Segment segment : segments) {
+            Long offset = replayOffsets != null ? replayOffsets.get(segment) : null;
+            replay(segment, offset != null ? offset : FILE_HEADER_SIZE);
+        }
+
+        if (segments.isEmpty()) {
+            startSegment();
+        }
+
+        if (Logger.DEBUG) Log.d(TAG, "Loaded " + index.size() + " entries from " + segments.size() + " segments");
+
+        trimToSize();
+        scheduleMaintenanceIfNeeded();
+    }
+
+    /**
+     * Load the index snapshot if it matches the segments
+     *
+     * @return offset to replay from for every segment in the snapshot, or
+     *     null if the snapshot could not be used
+     */
+    private Map<Segment, Long> readIndex() {
+        File file = new File(directory, INDEX_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+
+        Map<Long, Segment> segmentsById = new HashMap<Long, Segment>();
+        for (Segment segment : segments) {
+            segmentsById.put(segment.id, segment);
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+
+            Map<Segment, Long> replayOffsets = new HashMap<Segment, Long>();
+
+            long lastId = -1;
+            int segmentCount = in.readInt();
+            for (int i = 0; i < segmentCount; i++) {
+                long id = in.readLong();
+                long length = in.readLong();
+
+                // Must not have been compacted or truncated since
+                Segment segment = segmentsById.get(id);
+                if (segment == null || segment.length < length) {
+                    return null;
+                }
+
+                replayOffsets.put(segment, length);
+                lastId = Math.max(lastId, id);
+            }
+
+            // Any older segment must have been in the snapshot
+            for (Segment segment : segments) {
+                if (segment.id <= lastId && !replayOffsets.containsKey(segment)) {
+                    return null;
+                }
+            }
+
+            // Eldest first
+            int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                String key = in.readUTF();
+                Segment segment = segmentsById.get(in.readLong());
+                long offset = in.readLong();
+                int recordLength = in.readInt();
+                int imageLength = in.readInt();
+                int metadataLength = in.readInt();
+                int checksum = in.readInt();
+
+                if (segment == null) {
+                    return null;
+                }
+
+                put(key, new Location(segment, offset, recordLength, imageLength, metadataLength, checksum));
+            }
+
+            return replayOffsets;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed reading disk cache index, replaying segments", e);
+
+            return null;
+        } finally {
+            IOUtil.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Copy what's needed to write the index snapshot, so it can be written
+     * without holding the lock. Locations never change once created.
+     */
+    private IndexSnapshot captureIndex() {
+        IndexSnapshot snapshot = new IndexSnapshot(segments.size(), index.size(), unsavedBytes);
+
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            snapshot.segmentIds[i] = segment.id;
+            snapshot.segmentLengths[i] = segment.length;
+        }
+
+        int i = 0;
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            snapshot.keys[i] = entry.getKey();
+            snapshot.locations[i] = entry.getValue();
+            i++;
+        }
+
+        return snapshot;
+    }
+
+    private void writeIndex(IndexSnapshot snapshot) throws IOException {
+        synchronized (indexLock) {
+            File tmp = new File(directory, INDEX_FILE_TMP);
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+
+                out.writeInt(snapshot.segmentIds.length);
+                for (int i = 0; i < snapshot.segmentIds.length; i++) {
+                    out.writeLong(snapshot.segmentIds[i]);
+                    out.writeLong(snapshot.segmentLengths[i]);
+                }
+
+                out.writeInt(snapshot.keys.length);
+                for (int i = 0; i < snapshot.keys.length; i++) {
+                    Location location = snapshot.locations[i];
+
+                    out.writeUTF(snapshot.keys[i]);
+                    out.writeLong(location.segment.id);
+                    out.writeLong(location.offset);
+                    out.writeInt(location.recordLength);
+                    out.writeInt(location.imageLength);
+                    out.writeInt(location.metadataLength);
+                    out.writeInt(location.checksum);
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(new File(directory, INDEX_FILE))) {
+                throw new IOException("Could not save disk cache index");
+            }
+        }
+
+        synchronized (this) {
+            unsavedBytes -= snapshot.unsavedBytes;
+        }
+    }
+
+    private void resetIndex() {
+        index.clear();
+        size = 0;
+        liveBytes = 0;
+    }
+
+    private void clear() throws IOException {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+
+        segments.clear();
+        resetIndex();
+        totalBytes = 0;
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                boolean ours = name.startsWith(SEGMENT_PREFIX) || name.equals(INDEX_FILE) || name.equals(INDEX_FILE_TMP)
+                        || name.equals(COMPACT_FILE_TMP);
+                if (ours && !file.delete()) {
+                    throw new IOException("Could not delete " + file);
+                }
+            }
+        }
+    }
+
+    private Segment openSegment(long id) throws IOException {
+        File file = new File(directory, SEGMENT_PREFIX + id);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                raf.close();
+                return null;
+            }
+        } catch (EOFException e) {
+            raf.close();
+            return null;
+        }
+
+        return new Segment(id, file, raf, raf.length());
+    }
+
+    /**
+     * Add all records of a segment starting at {@code offset} to the index, a
+     * broken record at the end of the segment (from a crash while writing)
+     * is truncated together with anything after it
+     */
+    private void replay(Segment segment, long offset) throws IOException {
+        RandomAccessFile raf = segment.raf;
+        byte[] values = new byte[0];
+
+        try {
+            while (offset < segment.length) {
+                raf.seek(offset);
+
+                byte type = raf.readByte();
+                String key = raf.readUTF();
+                int imageLength = raf.readInt();
+                int metadataLength = raf.readInt();
+                int checksum = raf.readInt();
+
+                long end = raf.getFilePointer() + imageLength + metadataLength;
+                if ((type != RECORD_PUT && type != RECORD_REMOVE) || imageLength < 0 || metadataLength < 0 || end > segment.length) {
+                    break;
+                }
+
+                // The lengths might have been written without the values
+                int valuesLength = imageLength + metadataLength;
+                if (values.length < valuesLength) {
+                    values = new byte[valuesLength];
+                }
+
+                raf.readFully(values, 0, valuesLength);
+                if (checksum(key, values, 0, imageLength, imageLength, metadataLength) != checksum) {
+                    break;
+                }
+
+                int recordLength = (int) (end - offset);
+                if (type == RECORD_PUT) {
+                    put(key, new Location(segment, offset, recordLength, imageLength, metadataLength, checksum));
+                } else {
+                    removeLocation(key);
+                }
+
+                offset = end;
+            }
+        } catch (EOFException e) {
+            // Broken record, handled below
+        }
+
+        if (offset < segment.length) {
+            Log.w(TAG, "Truncating broken record in disk cache segment " + segment.id);
+
+            raf.setLength(offset);
+            totalBytes -= segment.length - offset;
+            segment.length = offset;
+        }
+    }
+
+    private void startSegment() throws IOException {
+        long id = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).id + 1;
+
+        File file = new File(directory, SEGMENT_PREFIX + id);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+
+        segments.add(new Segment(id, file, raf, FILE_HEADER_SIZE));
+        totalBytes += FILE_HEADER_SIZE;
+    }
+
+    /**
+     * Get the segment to append to, starting a new one if it's full. Must
+     * hold both the write lock and the lock of the cache.
+     */
+    private Segment getAppendSegment() throws IOException {
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.length >= segmentSize) {
+            startSegment();
+            segment = segments.get(segments.size() - 1);
+        } else if (!segment.channel.isOpen()) {
+            reopenSegment(segment);
+        }
+
+        return segment;
+    }
+
+    /**
+     * Write a record at the end of a segment, the values are written
+     * straight from the buffers they were given in. Must hold the write
+     * lock, the lock of the cache isn't needed.
+     *
+     * @return the location of the record, not yet accounted for
+     */
+    private Location writeRecord(Segment segment, long offset, byte type, String key, ByteBuffer image, ByteBuffer metadata)
+            throws IOException {
+        int imageLength = image.remaining();
+        int metadataLength = metadata.remaining();
+        int checksum = checksum(key, image.array(), image.arrayOffset() + image.position(), imageLength,
+                metadata.array(), metadata.arrayOffset() + metadata.position(), metadataLength);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeByte(type);
+        out.writeUTF(key);
+        out.writeInt(imageLength);
+        out.writeInt(metadataLength);
+        out.writeInt(checksum);
+
+        ByteBuffer[] buffers = { ByteBuffer.wrap(header.toByteArray()), image, metadata };
+
+        long position = offset;
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                position += segment.channel.write(buffer, position);
+            }
+        }
+
+        return new Location(segment, offset, (int) (position - offset), imageLength, metadataLength, checksum);
+    }
+
+    private static int checksum(String key, byte[] values, int imageOffset, int imageLength, int metadataOffset,
+            int metadataLength) throws IOException {
+        return checksum(key, values, imageOffset, imageLength, values, metadataOffset, metadataLength);
+    }
+
+    /**
+     * Checksum of the key and values of a record
+     */
+    private static int checksum(String key, byte[] image, int imageOffset, int imageLength, byte[] metadata,
+            int metadataOffset, int metadataLength) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(key.getBytes("UTF-8"));
+        crc.update(image, imageOffset, imageLength);
+        crc.update(metadata, metadataOffset, metadataLength);
+
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Account for a record which has been written at the end of a segment
+     */
+    private void appended(Location location) {
+        location.segment.length += location.recordLength;
+        totalBytes += location.recordLength;
+        unsavedBytes += location.recordLength;
+    }
+
+    /**
+     * Append a record while holding both the write lock and the lock of the
+     * cache, only used for small records or rarely
+     */
+    private Location append(byte type, String key, ByteBuffer image, ByteBuffer metadata) throws IOException {
+        Segment segment = getAppendSegment();
+
+        Location location = writeRecord(segment, segment.length, type, key, image, metadata);
+        appended(location);
+
+        return location;
+    }
+
+    private void appendRemove(String key) throws IOException {
+        append(RECORD_REMOVE, key, ByteBuffer.allocate(0), ByteBuffer.allocate(0));
+    }
+
+    private void put(String key, Location location) {
+        removeLocation(key);
+
+        index.put(key, location);
+        size += location.imageLength + location.metadataLength;
+        liveBytes += location.recordLength;
+    }
+
+    private void removeLocation(String key) {
+        Location old = index.remove(key);
+        if (old != null) {
+            size -= old.imageLength + old.metadataLength;
+            liveBytes -= old.recordLength;
+        }
+    }
+
+    private void trimToSize() throws IOException {
+        Iterator<Map.Entry<String, Location>> it = index.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Location> entry = it.next();
+            String key = entry.getKey();
+            Location location = entry.getValue();
+
+            if (editing.contains(key)) {
+                continue;
+            }
+
+            it.remove();
+            size -= location.imageLength + location.metadataLength;
+            liveBytes -= location.recordLength;
+
+            // Make sure it stays gone when the segments are replayed
+            appendRemove(key);
+        }
+    }
+
+    private boolean needsCompaction() {
+        return segments.size() > 1 && totalBytes - liveBytes > totalBytes / 2;
+    }
+
+    private void scheduleMaintenanceIfNeeded() {
+        if (!maintenanceScheduled && (needsCompaction() || unsavedBytes >= segmentSize)) {
+            maintenanceScheduled = true;
+            maintenanceExecutor.execute(maintenance);
+        }
+    }
+
+    /**
+     * Copy all live entries of the oldest segments to a new segment and
+     * delete them. Only the oldest segments are compacted, that way the
+     * remove records they contain never have an older record left to hide.
+     * As many segments are merged as fit in a new segment.
+     * <p>
+     * Segments other than the newest are never written to, so the entries
+     * are copied without holding the lock. Only swapping in the new segment
+     * does, together with the write lock as it becomes the newest segment.
+     *
+     * @return true if any segments were compacted
+     */
+    private boolean compactOldestSegments() throws IOException {
+        Set<Segment> compacted = new HashSet<Segment>();
+        List<String> keys = new ArrayList<String>();
+        List<Location> live = new ArrayList<Location>();
+
+        synchronized (this) {
+            if (closed || !needsCompaction()) {
+                return false;
+            }
+
+            Map<Segment, Long> liveBytesBySegment = new HashMap<Segment, Long>();
+            for (Location location : index.values()) {
+                Long bytes = liveBytesBySegment.get(location.segment);
+                liveBytesBySegment.put(location.segment, (bytes != null ? bytes : 0) + location.recordLength);
+            }
+
+            long copiedBytes = 0;
+            for (int i = 0; i < segments.size() - 1; i++) {
+                Segment segment = segments.get(i);
+                Long bytes = liveBytesBySegment.get(segment);
+                long segmentLiveBytes = bytes != null ? bytes : 0;
+
+                if (!compacted.isEmpty() && copiedBytes + segmentLiveBytes > segmentSize) {
+                    break;
+                }
+
+                compacted.add(segment);
+                copiedBytes += segmentLiveBytes;
+            }
+
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                if (compacted.contains(entry.getValue().segment)) {
+                    keys.add(entry.getKey());
+                    live.add(entry.getValue());
+                }
+            }
+        }
+
+        File tmp = new File(directory, COMPACT_FILE_TMP);
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        // Read with files of our own, the ones of the segments are seeked by readers
+        Map<Segment, RandomAccessFile> inputs = new HashMap<Segment, RandomAccessFile>();
+        boolean swapped = false;
+
+        try {
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            // Records are copied as they are, only their offset changes
+            long[] offsets = new long[live.size()];
+            for (int i = 0; i < live.size(); i++) {
+                Location location = live.get(i);
+
+                RandomAccessFile in = inputs.get(location.segment);
+                if (in == null) {
+                    in = new RandomAccessFile(location.segment.file, "r");
+                    inputs.put(location.segment, in);
+                }
+
+                byte[] record = new byte[location.recordLength];
+                in.seek(location.offset);
+                in.readFully(record);
+
+                offsets[i] = out.getFilePointer();
+                out.write(record);
+            }
+
+            synchronized (writeLock) {
+                synchronized (this) {
+                    if (closed) {
+                        return false;
+                    }
+
+                    swapSegments(compacted, tmp, out, keys, live, offsets);
+                    swapped = true;
+                }
+            }
+        } finally {
+            for (RandomAccessFile in : inputs.values()) {
+                IOUtil.closeQuietly(in);
+            }
+
+            if (!swapped) {
+                IOUtil.closeQuietly(out);
+                tmp.delete();
+            }
+        }
+
+        if (Logger.VERBOSE) Log.v(TAG, "Compacted " + compacted.size() + " disk cache segments");
+
+        return true;
+    }
+
+    /**
+     * Replace the compacted segments with their copy, which becomes the
+     * newest segment
+     */
+    private void swapSegments(Set<Segment> compacted, File tmp, RandomAccessFile raf, List<String> keys,
+            List<Location> copied, long[] offsets) throws IOException {
+        long id = segments.get(segments.size() - 1).id + 1;
+        File file = new File(directory, SEGMENT_PREFIX + id);
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not save compacted disk cache segment");
+        }
+
+        Segment segment = new Segment(id, file, raf, raf.length());
+        for (Segment old : compacted) {
+            totalBytes -= old.length;
+        }
+        segments.removeAll(compacted);
+        segments.add(segment);
+        totalBytes += segment.length;
+
+        Map<Location, Integer> copies = new HashMap<Location, Integer>();
+        for (int i = 0; i < copied.size(); i++) {
+            copies.put(copied.get(i), i);
+        }
+
+        // Updating values doesn't change the access order. Nothing can have
+        // been added to the compacted segments since they were copied.
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            Location location = entry.getValue();
+            if (compacted.contains(location.segment)) {
+                int i = copies.remove(location);
+                entry.setValue(new Location(segment, offsets[i], location.recordLength,
+                        location.imageLength, location.metadataLength, location.checksum));
+            }
+        }
+
+        // Whatever is left was replaced or removed while being copied. The
+        // copy is now newer than what replaced it, so write the current state
+        // again for replaying the segments to get it right.
+        if (!copies.isEmpty()) {
+            Set<String> stale = new HashSet<String>();
+            for (int i : copies.values()) {
+                stale.add(keys.get(i));
+            }
+
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                if (stale.remove(entry.getKey())) {
+                    entry.setValue(copyRecord(entry.getKey(), entry.getValue()));
+                }
+            }
+
+            for (String key : stale) {
+                appendRemove(key);
+            }
+        }
+
+        // Readers of the old segments see a closed channel and look again
+        for (Segment old : compacted) {
+            old.close();
+            if (!old.file.delete()) {
+                Log.w(TAG, "Could not delete disk cache segment " + old.id);
+            }
+        }
+    }
+
+    private Location copyRecord(String key, Location location) throws IOException {
+        Snapshot snapshot = new Snapshot(readValues(location), location.imageLength);
+
+        return append(RECORD_PUT, key, snapshot.getImageBuffer(), snapshot.getMetadataBuffer());
+    }
+
+    private void complete(Editor editor, boolean success) throws IOException {
+        String key = editor.key;
+
+        if (!success) {
+            synchronized (this) {
+                editing.remove(key);
+            }
+
+            return;
+        }
+
+        if (editor.tooLarge) {
+            synchronized (writeLock) {
+                synchronized (this) {
+                    editing.remove(key);
+
+                    // Replaced by something which can't be saved, the old
+                    // entry is out of date
+                    if (!closed && index.containsKey(key)) {
+                        removeLocation(key);
+                        appendRemove(key);
+                    }
+                }
+            }
+
+            throw new IOException("Entry is larger than " + maxEntrySize + " bytes");
+        }
+
+        try {
+            ByteBuffer image = editor.image != null ? editor.image.toByteBuffer() : null;
+            ByteBuffer metadata = editor.metadata != null ? editor.metadata.toByteBuffer() : null;
+
+            // Values which weren't written are kept from the old entry,
+            // nobody else can replace it while we're editing
+            if (image == null || metadata == null) {
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                }
+
+                Snapshot old = read(key);
+                if (old == null) {
+                    throw new IOException("New entry must have both image and metadata");
+                }
+
+                if (image == null) {
+                    image = old.getImageBuffer();
+                }
+
+                if (metadata == null) {
+                    metadata = old.getMetadataBuffer();
+                }
+            }
+
+            synchronized (writeLock) {
+                Segment segment;
+                long offset;
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+
+                    segment = getAppendSegment();
+                    offset = segment.length;
+                }
+
+                // Only appending waits for this, readers don't
+                Location location = writeRecord(segment, offset, RECORD_PUT, key, image, metadata);
+
+                synchronized (this) {
+                    appended(location);
+                    put(key, location);
+
+                    editing.remove(key);
+                    trimToSize();
+                    scheduleMaintenanceIfNeeded();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                editing.remove(key);
+            }
+        }
+    }
+
+    private static class Snapshot implements DiskCache.Snapshot {
+        // The image followed by the metadata
+        private final byte[] values;
+        private final int imageLength;
+
+        public Snapshot(byte[] values, int imageLength) {
+            this.values = values;
+            this.imageLength = imageLength;
+        }
+
+        @Override
+        public InputStream getImage() {
+            return new ByteArrayInputStream(values, 0, imageLength);
+        }
+
+        @Override
+        public long getImageLength() {
+            return imageLength;
+        }
+
+        @Override
+        public InputStream getMetadata() {
+            return new ByteArrayInputStream(values, imageLength, values.length - imageLength);
+        }
+
+        ByteBuffer getImageBuffer() {
+            return ByteBuffer.wrap(values, 0, imageLength);
+        }
+
+        ByteBuffer getMetadataBuffer() {
+            return ByteBuffer.wrap(values, imageLength, values.length - imageLength);
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    private class Editor implements DiskCache.Editor {
+        private final String key;
+
+        private ValueOutputStream image;
+        private ValueOutputStream metadata;
+
+        // Set once the values get too large, nothing more is buffered
+        private boolean tooLarge;
+
+        private boolean done;
+
+        public Editor(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public OutputStream newImageOutputStream() {
+            image = new ValueOutputStream(this);
+            return image;
+        }
+
+        @Override
+        public OutputStream newMetadataOutputStream() {
+            metadata = new ValueOutputStream(this);
+            return metadata;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            checkNotDone();
+            done = true;
+
+            complete(this, true);
+        }
+
+        @Override
+        public void abort() throws IOException {
+            checkNotDone();
+            done = true;
+
+            complete(this, false);
+        }
+
+        @Override
+        public void abortUnlessCommitted() {
+            if (!done) {
+                try {
+                    abort();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void checkNotDone() {
+            if (done) {
+                throw new IllegalStateException("Edit already completed");
+            }
+        }
+
+        /**
+         * Check if more bytes can be buffered, once the values are too large
+         * what's been buffered is thrown away and the commit fails
+         */
+        boolean reserve(int length) {
+            if (!tooLarge && size(image) + size(metadata) + length > maxEntrySize) {
+                tooLarge = true;
+
+                if (image != null) {
+                    image.discard();
+                }
+                if (metadata != null) {
+                    metadata.discard();
+                }
+            }
+
+            return !tooLarge;
+        }
+
+        private int size(ValueOutputStream stream) {
+            return stream != null ? stream.size() : 0;
+        }
+    }
+
+    /**
+     * Buffers a value until it's committed, the buffer is written to the
+     * segment as it is without being copied
+     */
+    private static class ValueOutputStream extends ByteArrayOutputStream {
+        private final Editor editor;
+
+        ValueOutputStream(Editor editor) {
+            this.editor = editor;
+        }
+
+        @Override
+        public void write(int b) {
+            if (editor.reserve(1)) {
+                super.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) {
+            if (editor.reserve(length)) {
+                super.write(b, offset, length);
+            }
+        }
+
+        void discard() {
+            buf = new byte[0];
+            count = 0;
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
@@ -1,16 +1,21 @@
 package com.webimageloader.loader;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.webimageloader.util.PriorityThreadFactory;
 
 public abstract class SimpleBackgroundLoader extends BackgroundLoader {
     public SimpleBackgroundLoader(String name, int priority, int threadCount) {
-        super(createExecutor(name, priority, threadCount));
+        this(name, priority, threadCount, SchedulingPolicy.FIFO);
     }
 
-    private static ExecutorService createExecutor(String name, int priority, int threadCount) {
-        return Executors.newFixedThreadPool(threadCount, new PriorityThreadFactory(name, priority));
+    public SimpleBackgroundLoader(String name, int priority, int threadCount, SchedulingPolicy policy) {
+        super(createExecutor(name, priority, threadCount, policy));
+    }
+
+    private static ThreadPoolExecutor createExecutor(String name, int priority, int threadCount, SchedulingPolicy policy) {
+        return new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                policy.createQueue(), new PriorityThreadFactory(name, priority));
     }
 }
@@ -4,7 +4,9 @@ import android.graphics.Bitmap;
 import android.util.Log;
 
 import com.webimageloader.ImageLoader.Logger;
+import com.webimageloader.transformation.PoolAwareTransformation;
 import com.webimageloader.transformation.Transformation;
+import com.webimageloader.util.BitmapPool;
 import com.webimageloader.util.BitmapUtils;
 import com.webimageloader.util.InputSupplier;
 
@@ -13,6 +15,12 @@ import java.io.IOException;
 public class TransformingLoader implements Loader {
     private static final String TAG = "TransformingLoader";
 
+    private BitmapPool bitmapPool;
+
+    public TransformingLoader(BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+    }
+
     @Override
     public void load(final LoaderWork.Manager manager, LoaderRequest request) {
         if (Logger.VERBOSE) Log.v(TAG, "Transforming " + request);
@@ -25,7 +33,7 @@ public class TransformingLoader implements Loader {
             @Override
             public void onStreamLoaded(InputSupplier input, Metadata metadata) {
                 try {
-                    Bitmap transformedBitmap = transformation.transform(input);
+                    Bitmap transformedBitmap = transform(transformation, input);
                     Metadata transformedMetadata = getTransformedMetadata(metadata, transformation);
 
                     deliverResult(transformedBitmap, transformedMetadata);
@@ -60,14 +68,26 @@ public class TransformingLoader implements Loader {
         });
     }
 
+    private Bitmap transform(Transformation transformation, InputSupplier input) throws IOException {
+        if (bitmapPool != null && transformation instanceof PoolAwareTransformation) {
+            return ((PoolAwareTransformation) transformation).transform(input, bitmapPool);
+        } else {
+            return transformation.transform(input);
+        }
+    }
+
     private Metadata getTransformedMetadata(Metadata metadata, Transformation transformation) {
         Bitmap.CompressFormat format = transformation.getCompressFormat();
+
+        String contentType;
         if (format == null) {
             // Transformed loader doesn't care about format, use the same
-            return metadata;
+            contentType = metadata.getContentType();
+        } else {
+            contentType = BitmapUtils.getContentType(format);
         }
 
-        String contentType = BitmapUtils.getContentType(format);
-        return new Metadata(contentType, metadata.getLastModified(), metadata.getExpires(), metadata.getEtag());
+        // The image header described the original image, leave it out
+        return metadata.withContentType(contentType);
     }
 }
\ No newline at end of file
@@ -0,0 +1,307 @@
+package com.webimageloader.loader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+import com.webimageloader.ImageLoader.Logger;
+import com.webimageloader.Request;
+
+/**
+ * Limits how much work is pending at once. Only new work is limited, once
+ * started the work can always move on to the next loader so a half done
+ * request never has to wait for room. A work holds its place until none of
+ * its tasks is queued or running anymore. No thread is ever blocked, and at
+ * most as much work waits for a place as may be pending.
+ */
+public class WorkLimiter {
+    private static final String TAG = "WorkLimiter";
+
+    private static final Comparator<LoaderWork> LEAST_URGENT_FIRST = new Comparator<LoaderWork>() {
+        @Override
+        public int compare(LoaderWork lhs, LoaderWork rhs) {
+            if (lhs.isLessUrgentThan(rhs)) {
+                return -1;
+            } else if (rhs.isLessUrgentThan(lhs)) {
+                return 1;
+            } else {
+                return 0;
+            }
+        }
+    };
+
+    private static final Comparator<Waiting> MOST_URGENT_FIRST = new Comparator<Waiting>() {
+        @Override
+        public int compare(Waiting lhs, Waiting rhs) {
+            if (lhs.priority != rhs.priority) {
+                // Priorities are declared from most to least urgent
+                return lhs.priority.ordinal() - rhs.priority.ordinal();
+            }
+
+            // Newest first
+            return lhs.sequence > rhs.sequence ? -1 : (lhs.sequence < rhs.sequence ? 1 : 0);
+        }
+    };
+
+    private final int maxPending;
+    private final OverflowPolicy policy;
+
+    // Guarded by this
+    private final Set<LoaderWork> pending = new HashSet<LoaderWork>();
+    private final TreeSet<Waiting> waiting = new TreeSet<Waiting>(MOST_URGENT_FIRST);
+    private final Map<LoaderWork, Waiting> waitingWork = new HashMap<LoaderWork, Waiting>();
+    private long sequence;
+
+    private final AtomicInteger droppedCount = new AtomicInteger();
+    private final AtomicInteger rejectedCount = new AtomicInteger();
+
+    public WorkLimiter(int maxPending, OverflowPolicy policy) {
+        if (maxPending <= 0) {
+            throw new IllegalArgumentException("maxPending <= 0");
+        }
+
+        if (policy == null) {
+            throw new IllegalArgumentException("policy may not be null");
+        }
+
+        this.maxPending = maxPending;
+        this.policy = policy;
+    }
+
+    /**
+     * @return number of requests dropped to make room for more urgent ones
+     */
+    public int getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return number of requests rejected because too many were pending
+     */
+    public int getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Start new work now, or once there is room if the policy allows it
+     */
+    public void start(LoaderWork work, List<Loader> chain, LoaderRequest request) {
+        synchronized (this) {
+            work.sequence = sequence++;
+        }
+
+        if (policy == OverflowPolicy.WAIT) {
+            startOrWait(work, chain, request);
+            return;
+        }
+
+        while (true) {
+            List<LoaderWork> victims;
+            synchronized (this) {
+                if (pending.size() < maxPending) {
+                    admit(work);
+                    break;
+                }
+
+                victims = policy == OverflowPolicy.DROP_OLDEST ? getLessUrgent(work) : Collections.<LoaderWork>emptyList();
+            }
+
+            // Drop outside the lock as the listeners are called
+            if (!drop(victims)) {
+                rejectedCount.incrementAndGet();
+                work.fail(new RejectedExecutionException("Too many pending requests"));
+                return;
+            }
+        }
+
+        work.start(chain, request);
+    }
+
+    private void startOrWait(LoaderWork work, List<Loader> chain, LoaderRequest request) {
+        Waiting dropped = null;
+        synchronized (this) {
+            if (pending.size() < maxPending) {
+                admit(work);
+            } else {
+                dropped = addWaiting(new Waiting(work, chain, request));
+                if (dropped == null) {
+                    return;
+                }
+            }
+        }
+
+        if (dropped == null) {
+            work.start(chain, request);
+        } else if (dropped.work == work) {
+            rejectedCount.incrementAndGet();
+            work.fail(new RejectedExecutionException("Too many pending requests"));
+        } else {
+            if (Logger.VERBOSE) Log.v(TAG, "Too many waiting requests, dropped waiting work");
+
+            droppedCount.incrementAndGet();
+            dropped.work.fail(new RejectedExecutionException("Dropped to make room for more urgent work"));
+        }
+    }
+
+    /**
+     * Called when the priority of a work was raised
+     */
+    synchronized void priorityRaised(LoaderWork work) {
+        Waiting w = waitingWork.get(work);
+        if (w == null) {
+            return;
+        }
+
+        // Waits as the newest work with the new priority
+        waiting.remove(w);
+        work.sequence = sequence++;
+        w.update();
+        waiting.add(w);
+    }
+
+    /**
+     * Called when a work no longer has any tasks queued or running
+     */
+    void release(LoaderWork work) {
+        Waiting next = null;
+        synchronized (this) {
+            pending.remove(work);
+
+            next = pollMostUrgent();
+            if (next != null) {
+                admit(next.work);
+            }
+        }
+
+        if (next != null) {
+            next.work.start(next.chain, next.request);
+        }
+    }
+
+    private void admit(LoaderWork work) {
+        pending.add(work);
+        work.admit(this);
+    }
+
+    /**
+     * @return true if a victim was dropped and gave back its place
+     */
+    private boolean drop(List<LoaderWork> victims) {
+        for (LoaderWork victim : victims) {
+            if (victim.dropIfQueued(new RejectedExecutionException("Dropped to make room for more urgent work"))) {
+                if (Logger.VERBOSE) Log.v(TAG, "Too many pending requests, dropped queued work");
+
+                droppedCount.incrementAndGet();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private List<LoaderWork> getLessUrgent(LoaderWork work) {
+        List<LoaderWork> victims = new ArrayList<LoaderWork>();
+        for (LoaderWork w : pending) {
+            if (w.isLessUrgentThan(work)) {
+                victims.add(w);
+            }
+        }
+
+        Collections.sort(victims, LEAST_URGENT_FIRST);
+
+        return victims;
+    }
+
+    /**
+     * Keep a work waiting, if too many are waiting already the least urgent
+     * one gives up its place
+     *
+     * @return the waiting work which gave up its place, the new one itself
+     *         if all others are more urgent, or null
+     */
+    private Waiting addWaiting(Waiting w) {
+        // Before the priority is taken, a later raise reorders it
+        w.work.waitFor(this);
+        w.update();
+
+        if (waiting.size() >= maxPending) {
+            removeCancelled();
+        }
+
+        Waiting dropped = null;
+        if (waiting.size() >= maxPending) {
+            dropped = waiting.last();
+            if (MOST_URGENT_FIRST.compare(w, dropped) > 0) {
+                return w;
+            }
+
+            removeWaiting(dropped);
+        }
+
+        waiting.add(w);
+        waitingWork.put(w.work, w);
+
+        return dropped;
+    }
+
+    private Waiting pollMostUrgent() {
+        while (!waiting.isEmpty()) {
+            Waiting w = waiting.first();
+            removeWaiting(w);
+
+            if (!w.work.isCancelled()) {
+                return w;
+            }
+        }
+
+        return null;
+    }
+
+    private void removeCancelled() {
+        for (Iterator<Waiting> it = waiting.iterator(); it.hasNext();) {
+            Waiting w = it.next();
+            if (w.work.isCancelled()) {
+                // Nobody wants it anymore
+                it.remove();
+                waitingWork.remove(w.work);
+            }
+        }
+    }
+
+    private void removeWaiting(Waiting w) {
+        waiting.remove(w);
+        waitingWork.remove(w.work);
+    }
+
+    private static class Waiting {
+        final LoaderWork work;
+        final List<Loader> chain;
+        final LoaderRequest request;
+
+        // Only changed while out of the waiting set
+        Request.Priority priority;
+        long sequence;
+
+        Waiting(LoaderWork work, List<Loader> chain, LoaderRequest request) {
+            this.work = work;
+            this.chain = chain;
+            this.request = request;
+        }
+
+        void update() {
+            priority = work.getPriority();
+            sequence = work.sequence;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.webimageloader.transformation;
+
+import android.graphics.Bitmap;
+
+import com.webimageloader.Constants;
+
+/**
+ * How the result of a transformation is saved to the disk cache
+ *
+ * @see EncodingAwareTransformation
+ */
+public final class Encoding {
+    private static final Encoding ORIGINAL = new Encoding(true, null, Constants.DEFAULT_COMPRESS_QUALITY);
+
+    /**
+     * Don't save the result, it's transformed again from the cached original
+     * image instead. Useful for transformations which are about as cheap as
+     * decoding a saved copy, like a sampled decode.
+     */
+    public static final Encoding NONE = new Encoding(false, null, 0);
+
+    private final boolean stored;
+    private final Bitmap.CompressFormat format;
+    private final int quality;
+
+    /**
+     * Save the result in the same format as the original image when
+     * possible, using the default quality
+     *
+     * @return the encoding
+     */
+    public static Encoding original() {
+        return ORIGINAL;
+    }
+
+    /**
+     * Save the result in the same format as the original image when
+     * possible
+     *
+     * @param quality compress quality in the range 0-100, ignored by lossless
+     *     formats
+     * @return the encoding
+     */
+    public static Encoding original(int quality) {
+        return new Encoding(true, null, checkQuality(quality));
+    }
+
+    /**
+     * Save the result in the specified format
+     *
+     * @param format the format
+     * @param quality compress quality in the range 0-100, ignored by lossless
+     *     formats
+     * @return the encoding
+     */
+    public static Encoding of(Bitmap.CompressFormat format, int quality) {
+        if (format == null) {
+            throw new IllegalArgumentException("format == null");
+        }
+
+        return new Encoding(true, format, checkQuality(quality));
+    }
+
+    /**
+     * Save the result losslessly, using lossless WebP where the platform
+     * supports it and PNG otherwise
+     *
+     * @return the encoding
+     */
+    public static Encoding lossless() {
+        Bitmap.CompressFormat format;
+        try {
+            // Only available on newer platforms
+            format = Bitmap.CompressFormat.valueOf("WEBP_LOSSLESS");
+        } catch (IllegalArgumentException e) {
+            format = Bitmap.CompressFormat.PNG;
+        }
+
+        return new Encoding(true, format, 100);
+    }
+
+    private static int checkQuality(int quality) {
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("quality must be in the range 0-100");
+        }
+
+        return quality;
+    }
+
+    private Encoding(boolean stored, Bitmap.CompressFormat format, int quality) {
+        this.stored = stored;
+        this.format = format;
+        this.quality = quality;
+    }
+
+    /**
+     * @return false if the result shouldn't be saved at all
+     */
+    public boolean isStored() {
+        return stored;
+    }
+
+    /**
+     * @return the format, or null to use the format of the original image
+     */
+    public Bitmap.CompressFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the compress quality
+     */
+    public int getQuality() {
+        return quality;
+    }
+
+    @Override
+    public String toString() {
+        if (!stored) {
+            return "Encoding[none]";
+        }
+
+        return "Encoding[" + (format == null ? "original" : format) + ", quality " + quality + "]";
+    }
+}
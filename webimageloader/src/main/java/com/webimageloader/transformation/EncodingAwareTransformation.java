@@ -0,0 +1,16 @@
+package com.webimageloader.transformation;
+
+/**
+ * A {@link Transformation} which decides how its result is saved to the disk
+ * cache. Other transformations use {@link Encoding#original()}.
+ */
+public interface EncodingAwareTransformation extends Transformation {
+    /**
+     * Get the encoding used when saving the result of this transformation.
+     * A format set here takes precedence over
+     * {@link Transformation#getCompressFormat()}.
+     *
+     * @return the encoding
+     */
+    Encoding getEncoding();
+}
@@ -0,0 +1,26 @@
+package com.webimageloader.transformation;
+
+import java.io.IOException;
+
+import com.webimageloader.util.BitmapPool;
+import com.webimageloader.util.InputSupplier;
+
+import android.graphics.Bitmap;
+
+/**
+ * A {@link Transformation} which can decode into bitmaps from a
+ * {@link BitmapPool}, this is used instead of
+ * {@link Transformation#transform(InputSupplier)} when a pool is enabled.
+ */
+public interface PoolAwareTransformation extends Transformation {
+    /**
+     * Transform this {@link InputSupplier} to a {@link Bitmap}, reusing bitmaps
+     * from the pool when possible.
+     *
+     * @param input original {@link InputSupplier}
+     * @param pool pool to take bitmaps from and return intermediate bitmaps to
+     * @return transformed {@link Bitmap}
+     * @throws IOException if the conversion failed
+     */
+    Bitmap transform(InputSupplier input, BitmapPool pool) throws IOException;
+}
@@ -1,11 +1,11 @@
 package com.webimageloader.transformation;
 
 import java.io.IOException;
-import java.io.InputStream;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 
+import com.webimageloader.util.BitmapPool;
+import com.webimageloader.util.BitmapUtils;
 import com.webimageloader.util.InputSupplier;
 
 /**
@@ -18,6 +18,7 @@ import com.webimageloader.util.InputSupplier;
 public class ScaleTransformation extends SimpleTransformation {
     private int reqWidth;
     private int reqHeight;
+    private Encoding encoding;
 
     /**
      * Create a new scale transformation which will scale the image to
@@ -28,8 +29,22 @@ public class ScaleTransformation extends SimpleTransformation {
      * @param reqHeight required height, the image will not be smaller than this
      */
     public ScaleTransformation(int reqWidth, int reqHeight) {
+        this(reqWidth, reqHeight, Encoding.original());
+    }
+
+    /**
+     * Create a new scale transformation which saves its result with the
+     * specified encoding. As the image is decoded with a sample size
+     * {@link Encoding#NONE} is often cheaper than compressing the result.
+     *
+     * @param reqWidth required width, the image will not be smaller than this
+     * @param reqHeight required height, the image will not be smaller than this
+     * @param encoding how to save the result
+     */
+    public ScaleTransformation(int reqWidth, int reqHeight, Encoding encoding) {
         this.reqWidth = reqWidth;
         this.reqHeight = reqHeight;
+        this.encoding = encoding;
     }
 
     @Override
@@ -38,54 +53,27 @@ public class ScaleTransformation extends SimpleTransformation {
     }
 
     @Override
-    public Bitmap transform(InputSupplier input) throws IOException {
-        return decodeSampledBitmap(input);
+    public Encoding getEncoding() {
+        return encoding;
     }
 
     @Override
-    public Bitmap transform(Bitmap b) {
-        return Bitmap.createScaledBitmap(b, reqWidth, reqHeight, true);
+    public Bitmap transform(InputSupplier input) throws IOException {
+        return decodeSampledBitmap(input, null);
     }
 
-    private Bitmap decodeSampledBitmap(InputSupplier input) throws IOException {
-        // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-
-        InputStream is = input.getInput();
-        try {
-            BitmapFactory.decodeStream(is, null, options);
-        } finally {
-            is.close();
-        }
-
-        // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
-
-        // Decode bitmap with inSampleSize set
-        options.inJustDecodeBounds = false;
-
-        is = input.getInput();
-        try {
-            return BitmapFactory.decodeStream(is, null, options);
-        } finally {
-            is.close();
-        }
+    @Override
+    public Bitmap transform(InputSupplier input, BitmapPool pool) throws IOException {
+        return decodeSampledBitmap(input, pool);
     }
 
-    private static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
-        // Raw height and width of image
-        final int height = options.outHeight;
-        final int width = options.outWidth;
-        int inSampleSize = 1;
+    @Override
+    public Bitmap transform(Bitmap b) {
+        return Bitmap.createScaledBitmap(b, reqWidth, reqHeight, true);
+    }
 
-        if (height > reqHeight || width > reqWidth) {
-            if (width > height) {
-                inSampleSize = Math.round((float) height / (float) reqHeight);
-            } else {
-                inSampleSize = Math.round((float) width / (float) reqWidth);
-            }
-        }
-        return inSampleSize;
+    private Bitmap decodeSampledBitmap(InputSupplier input, BitmapPool pool) throws IOException {
+        // Reads the bounds and decodes from the same stream
+        return BitmapUtils.decodeSampledStream(input, reqWidth, reqHeight, pool);
     }
 }
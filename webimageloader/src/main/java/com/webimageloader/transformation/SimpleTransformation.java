@@ -3,6 +3,7 @@ package com.webimageloader.transformation;
 import java.io.IOException;
 import java.io.InputStream;
 
+import com.webimageloader.util.BitmapPool;
 import com.webimageloader.util.BitmapUtils;
 import com.webimageloader.util.InputSupplier;
 
@@ -15,7 +16,7 @@ import android.graphics.Bitmap.CompressFormat;
  *
  * @author Alexander Blom <alexanderblom.se>
  */
-public abstract class SimpleTransformation implements Transformation {
+public abstract class SimpleTransformation implements PoolAwareTransformation, EncodingAwareTransformation {
     /**
      * {@inheritDoc}
      *
@@ -26,6 +27,16 @@ public abstract class SimpleTransformation implements Transformation {
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * @return {@link Encoding#original()}
+     */
+    @Override
+    public Encoding getEncoding() {
+        return Encoding.original();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -41,4 +52,23 @@ public abstract class SimpleTransformation implements Transformation {
             is.close();
         }
     }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The decoded bitmap is returned to the pool if {@link #transform(Bitmap)}
+     * returns a new bitmap.
+     */
+    @Override
+    public Bitmap transform(InputSupplier input, BitmapPool pool) throws IOException {
+        Bitmap b = BitmapUtils.decodeStream(input, pool);
+        Bitmap transformed = transform(b);
+
+        // The original was only used as input to the transformation
+        if (transformed != b) {
+            pool.put(b);
+        }
+
+        return transformed;
+    }
 }
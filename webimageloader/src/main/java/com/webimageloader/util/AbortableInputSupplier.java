@@ -0,0 +1,13 @@
+package com.webimageloader.util;
+
+/**
+ * An {@link InputSupplier} whose streams can be aborted before they have
+ * been fully read, for example by disconnecting the underlying connection
+ */
+public interface AbortableInputSupplier extends InputSupplier {
+    /**
+     * Abort the currently open stream, any further reads from it will fail.
+     * Should be called before closing the stream to avoid it being drained.
+     */
+    void abort();
+}
@@ -0,0 +1,352 @@
+package com.webimageloader.util;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+
+/**
+ * Pool of bitmaps which are no longer used and can be decoded into, see
+ * {@link android.graphics.BitmapFactory.Options#inBitmap}. Bitmaps are
+ * grouped by size and config, when the pool grows larger than its max
+ * size the least recently used group is trimmed first. From KitKat any bitmap
+ * large enough can be decoded into, so there they're grouped by byte count.
+ * <p>
+ * Bitmaps evicted from the memory cache are only pooled once they're known
+ * not to be shown anymore, see {@link #bind(Bitmap)}. A bitmap handed out by
+ * the memory cache again is claimed, see {@link #claim(Bitmap)}.
+ */
+public class BitmapPool {
+    public static class DebugInfo {
+        public final int hitCount;
+        public final int missCount;
+        public final int putCount;
+        public final int evictionCount;
+        public final int numBitmaps;
+        public final int size;
+
+        private DebugInfo(int hitCount, int missCount, int putCount, int evictionCount, int numBitmaps, int size) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.putCount = putCount;
+            this.evictionCount = evictionCount;
+            this.numBitmaps = numBitmaps;
+            this.size = size;
+        }
+    }
+
+    private static class Key {
+        private final int width;
+        private final int height;
+        private final Bitmap.Config config;
+
+        public Key(int width, int height, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        public Key(int byteCount) {
+            this(byteCount, 0, null);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * width + height) + (config != null ? config.hashCode() : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (obj instanceof Key) {
+                Key key = (Key) obj;
+                return width == key.width && height == key.height && config == key.config;
+            } else {
+                return false;
+            }
+        }
+    }
+
+    // Don't hand out bitmaps more than this many times larger than needed
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private final int maxSize;
+
+    // Group by byte count instead of dimensions and config
+    private final boolean bySize = Android.isAPI(19);
+    // Byte counts of all groups, only used when grouping by size
+    private final TreeSet<Integer> sizes = new TreeSet<Integer>();
+
+    // Access ordered so the least recently used group comes first
+    private final LinkedHashMap<Key, LinkedList<Bitmap>> groups;
+    // Bitmaps which are still in use and must not be pooled, with a count
+    private final Map<Bitmap, Integer> held = new IdentityHashMap<Bitmap, Integer>();
+    // Bitmaps being shown, with a count
+    private final Map<Bitmap, Integer> bound = new IdentityHashMap<Bitmap, Integer>();
+    // Bitmaps which have been shown but no longer are. Weak so they can still
+    // be collected, Bitmap doesn't override equals() so this is by identity.
+    private final Map<Bitmap, Boolean> released = new WeakHashMap<Bitmap, Boolean>();
+    private int size;
+    private int numBitmaps;
+
+    private int hitCount;
+    private int missCount;
+    private int putCount;
+    private int evictionCount;
+
+    /**
+     * Check if bitmaps can be reused on this device
+     *
+     * @return true if the platform supports decoding into existing bitmaps
+     */
+    public static boolean isSupported() {
+        return Android.isAPI(11);
+    }
+
+    /**
+     * Create a new pool
+     *
+     * @param maxSize max size of the bitmaps in this pool in bytes
+     */
+    public BitmapPool(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        this.maxSize = maxSize;
+        groups = new LinkedHashMap<Key, LinkedList<Bitmap>>(16, 0.75f, true);
+    }
+
+    /**
+     * Get a bitmap with the specified size and config, the bitmap is removed
+     * from the pool and its contents are undefined. From KitKat the bitmap
+     * may instead be somewhat larger and have a different config, it has to
+     * be reconfigured before use like {@link android.graphics.BitmapFactory}
+     * does.
+     *
+     * @return a bitmap or null if none is available
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Key key;
+        if (bySize) {
+            long byteCount = (long) width * height * BitmapUtils.getBytesPerPixel(config);
+            Integer size = byteCount <= Integer.MAX_VALUE ? sizes.ceiling((int) byteCount) : null;
+            if (size == null || size > byteCount * MAX_SIZE_MULTIPLE) {
+                missCount++;
+                return null;
+            }
+
+            key = new Key(size);
+        } else {
+            key = new Key(width, height, config);
+        }
+
+        LinkedList<Bitmap> group = groups.get(key);
+        if (group == null) {
+            missCount++;
+            return null;
+        }
+
+        Bitmap b = group.removeLast();
+        if (group.isEmpty()) {
+            removeGroup(key);
+        }
+
+        size -= BitmapUtils.getByteCount(b);
+        numBitmaps--;
+        hitCount++;
+
+        return b;
+    }
+
+    /**
+     * Offer a bitmap to the pool. The caller must make sure the bitmap isn't
+     * used anywhere else as its contents will be overwritten.
+     *
+     * @param b the bitmap
+     * @return true if the bitmap was added to the pool
+     */
+    @TargetApi(11)
+    public synchronized boolean put(Bitmap b) {
+        if (!isSupported() || !b.isMutable() || b.isRecycled() || b.getConfig() == null || held.containsKey(b)) {
+            return false;
+        }
+
+        int bitmapSize = BitmapUtils.getByteCount(b);
+        if (bitmapSize > maxSize) {
+            return false;
+        }
+
+        Key key = bySize ? new Key(bitmapSize) : new Key(b.getWidth(), b.getHeight(), b.getConfig());
+
+        LinkedList<Bitmap> group = groups.get(key);
+        if (group == null) {
+            group = new LinkedList<Bitmap>();
+            groups.put(key, group);
+
+            if (bySize) {
+                sizes.add(bitmapSize);
+            }
+        }
+
+        group.addLast(b);
+        size += bitmapSize;
+        numBitmaps++;
+        putCount++;
+
+        trimToSize(maxSize);
+
+        return true;
+    }
+
+    /**
+     * Offer a bitmap evicted from the memory cache. It's only added if it
+     * has been bound and has since been unbound everywhere, otherwise it
+     * might still be shown somewhere.
+     *
+     * @param b the bitmap
+     * @return true if the bitmap was added to the pool
+     */
+    public synchronized boolean putReleased(Bitmap b) {
+        if (released.remove(b) == null) {
+            return false;
+        }
+
+        return put(b);
+    }
+
+    /**
+     * Tell the pool a bitmap is being shown, for example in an
+     * {@link android.widget.ImageView}. Calls can be nested, each has to be
+     * matched by a call to {@link #unbind(Bitmap)} once it's no longer shown.
+     * Bitmaps which have never been bound are never reused.
+     *
+     * @param b the bitmap
+     */
+    public synchronized void bind(Bitmap b) {
+        Integer count = bound.get(b);
+        bound.put(b, count == null ? 1 : count + 1);
+        released.remove(b);
+    }
+
+    /**
+     * Tell the pool a bitmap previously bound with {@link #bind(Bitmap)} is
+     * no longer shown. Once it's unbound everywhere it can be reused after
+     * it has been evicted from the memory cache.
+     *
+     * @param b the bitmap
+     */
+    public synchronized void unbind(Bitmap b) {
+        Integer count = bound.remove(b);
+        if (count == null) {
+            return;
+        }
+
+        if (count > 1) {
+            bound.put(b, count - 1);
+        } else {
+            released.put(b, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Tell the pool a bitmap was just handed out by the memory cache. It
+     * won't be reused after being evicted until it has been bound and
+     * unbound again, otherwise it could be pooled before whoever got it has
+     * had a chance to bind it.
+     *
+     * @param b the bitmap
+     */
+    public synchronized void claim(Bitmap b) {
+        released.remove(b);
+    }
+
+    /**
+     * Keep a bitmap out of the pool until it's released, for example while
+     * it's being written to disk in the background. Calls can be nested.
+     *
+     * @param b the bitmap
+     */
+    public synchronized void hold(Bitmap b) {
+        Integer count = held.get(b);
+        held.put(b, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Release a bitmap previously held with {@link #hold(Bitmap)}
+     *
+     * @param b the bitmap
+     */
+    public synchronized void release(Bitmap b) {
+        Integer count = held.remove(b);
+        if (count != null && count > 1) {
+            held.put(b, count - 1);
+        }
+    }
+
+    /**
+     * Remove bitmaps until the pool is below the specified size
+     *
+     * @param maxSize the size in bytes
+     */
+    public synchronized void trimToSize(int maxSize) {
+        Iterator<Map.Entry<Key, LinkedList<Bitmap>>> it = groups.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<Key, LinkedList<Bitmap>> entry = it.next();
+            LinkedList<Bitmap> group = entry.getValue();
+
+            // Drop the oldest bitmaps of this group first
+            while (size > maxSize && !group.isEmpty()) {
+                Bitmap b = group.removeFirst();
+
+                size -= BitmapUtils.getByteCount(b);
+                numBitmaps--;
+                evictionCount++;
+            }
+
+            if (group.isEmpty()) {
+                it.remove();
+
+                if (bySize) {
+                    sizes.remove(entry.getKey().width);
+                }
+            }
+        }
+    }
+
+    private void removeGroup(Key key) {
+        groups.remove(key);
+
+        if (bySize) {
+            sizes.remove(key.width);
+        }
+    }
+
+    /**
+     * Clear the pool
+     */
+    public void evictAll() {
+        trimToSize(-1);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    public synchronized DebugInfo getDebugInfo() {
+        return new DebugInfo(hitCount, missCount, putCount, evictionCount, numBitmaps, size);
+    }
+}
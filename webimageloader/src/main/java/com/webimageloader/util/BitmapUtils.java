@@ -1,5 +1,7 @@
 package com.webimageloader.util;
 
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -10,11 +12,19 @@ import android.graphics.BitmapFactory;
 import com.webimageloader.Constants;
 
 public class BitmapUtils {
+    private static final int BUFFER_SIZE = 8192;
+
+    // How much we're willing to buffer while reading the bounds of an image
+    private static final int MARK_LIMIT = 64 * 1024;
+
+    @TargetApi(14)
     public static Bitmap.CompressFormat getCompressFormat(String contentType) {
         if ("image/png".equals(contentType)) {
             return Bitmap.CompressFormat.PNG;
         } else if ("image/jpeg".equals(contentType)) {
             return Bitmap.CompressFormat.JPEG;
+        } else if ("image/webp".equals(contentType) && Android.isAPI(14)) {
+            return Bitmap.CompressFormat.WEBP;
         } else {
             // Unknown format, use default
             return Constants.DEFAULT_COMPRESS_FORMAT;
@@ -31,11 +41,41 @@ public class BitmapUtils {
             case WEBP:
                 return "image/webp";
             default:
+                // Newer platforms have lossy and lossless variants
+                if (format.name().startsWith("WEBP")) {
+                    return "image/webp";
+                }
+
                 // Unknown format, use default
                 return getContentType(Constants.DEFAULT_COMPRESS_FORMAT);
         }
     }
 
+    @TargetApi(12)
+    public static int getByteCount(Bitmap b) {
+        if (Android.isAPI(12)) {
+            return b.getByteCount();
+        } else {
+            return b.getRowBytes() * b.getHeight();
+        }
+    }
+
+    /**
+     * Get the number of bytes used for each pixel with this config
+     *
+     * @param config the config, null means {@link Bitmap.Config#ARGB_8888}
+     * @return bytes per pixel
+     */
+    public static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else {
+            return 4;
+        }
+    }
+
     public static Bitmap decodeStream(InputStream is) throws IOException {
         Bitmap b = BitmapFactory.decodeStream(is);
         if (b == null) {
@@ -45,5 +85,302 @@ public class BitmapUtils {
         return b;
     }
 
+    /**
+     * Decode an image, reusing a bitmap from the pool if there is one of the
+     * right size. The bounds are read from a buffered stream which is then
+     * reset, so the input is only opened once unless the header is very large.
+     *
+     * @param input the image
+     * @param pool the pool to use, may be null
+     * @return the decoded bitmap
+     * @throws IOException if the image could not be decoded
+     */
+    public static Bitmap decodeStream(InputSupplier input, BitmapPool pool) throws IOException {
+        if (pool == null || !BitmapPool.isSupported()) {
+            InputStream is = input.getInput();
+            try {
+                return decodeStream(is);
+            } finally {
+                is.close();
+            }
+        }
+
+        return decodeSampledStream(input, 0, 0, pool);
+    }
+
+    /**
+     * Decode an image using a sample size so that it's not much larger than
+     * the required size, reusing a bitmap from the pool if there is one of
+     * the right size. Like {@link #decodeStream(InputSupplier, BitmapPool)}
+     * the input is only opened once unless the header is very large.
+     *
+     * @param input the image
+     * @param reqWidth required width, 0 to not sample the image
+     * @param reqHeight required height, 0 to not sample the image
+     * @param pool the pool to use, may be null
+     * @return the decoded bitmap
+     * @throws IOException if the image could not be decoded
+     */
+    public static Bitmap decodeSampledStream(InputSupplier input, int reqWidth, int reqHeight, BitmapPool pool) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+
+        ImageHeaderParser.Header header = getImageHeader(input);
+        if (header != null) {
+            // No need to look at the stream before decoding
+            setBounds(options, header);
+
+            if (reqWidth > 0 && reqHeight > 0) {
+                options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+            }
+
+            return decodeStream(input, options, pool);
+        }
+
+        InputStream is = buffer(input.getInput());
+        try {
+            is = readBounds(input, is, options);
+
+            if (reqWidth > 0 && reqHeight > 0) {
+                options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+            }
+
+            Bitmap b;
+            if (pool != null && BitmapPool.isSupported()) {
+                b = decodeReusing(is, options, pool);
+            } else {
+                b = BitmapFactory.decodeStream(is, null, options);
+                if (b == null) {
+                    throw new IOException("Failed to create bitmap, decodeStream() returned null");
+                }
+            }
+
+            if (b != null) {
+                return b;
+            }
+        } finally {
+            is.close();
+        }
+
+        return decodeStream(input, options);
+    }
+
+    /**
+     * Calculate the largest sample size which keeps the image at least as
+     * large as the required size, as described in Android Training
+     *
+     * @param options options containing the bounds of the image
+     * @param reqWidth required width
+     * @param reqHeight required height
+     * @return the sample size to use
+     */
+    public static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
+        // Raw height and width of image
+        final int height = options.outHeight;
+        final int width = options.outWidth;
+        int inSampleSize = 1;
+
+        if (height > reqHeight || width > reqWidth) {
+            if (width > height) {
+                inSampleSize = Math.round((float) height / (float) reqHeight);
+            } else {
+                inSampleSize = Math.round((float) width / (float) reqWidth);
+            }
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Decode an image using options which already contain the bounds of the
+     * image and the sample size to use, reusing a bitmap from the pool if
+     * there is one of the right size.
+     *
+     * @param input the image
+     * @param options decoding options
+     * @param pool the pool to use, may be null
+     * @return the decoded bitmap
+     * @throws IOException if the image could not be decoded
+     */
+    public static Bitmap decodeStream(InputSupplier input, BitmapFactory.Options options, BitmapPool pool) throws IOException {
+        if (pool != null && BitmapPool.isSupported()) {
+            InputStream is = input.getInput();
+            try {
+                Bitmap b = decodeReusing(is, options, pool);
+                if (b != null) {
+                    return b;
+                }
+            } finally {
+                is.close();
+            }
+        }
+
+        return decodeStream(input, options);
+    }
+
+    private static Bitmap decodeStream(InputSupplier input, BitmapFactory.Options options) throws IOException {
+        InputStream is = input.getInput();
+        try {
+            Bitmap b = BitmapFactory.decodeStream(is, null, options);
+            if (b == null) {
+                throw new IOException("Failed to create bitmap, decodeStream() returned null");
+            }
+
+            return b;
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Read the bounds of the image into {@code options}, returns a stream
+     * positioned at the start of the image. The header is parsed by
+     * {@link ImageHeaderParser} if possible, falling back to a bounds decode.
+     */
+    private static InputStream readBounds(InputSupplier input, InputStream is, BitmapFactory.Options options) throws IOException {
+        is.mark(MARK_LIMIT);
+        ImageHeaderParser.Header header = ImageHeaderParser.parse(is, MARK_LIMIT);
+        is = reset(input, is);
+
+        if (header != null) {
+            setBounds(options, header);
+
+            return is;
+        }
+
+        is.mark(MARK_LIMIT);
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(new UnmarkableInputStream(is), null, options);
+        options.inJustDecodeBounds = false;
+
+        return reset(input, is);
+    }
+
+    private static ImageHeaderParser.Header getImageHeader(InputSupplier input) {
+        if (input instanceof HeaderInputSupplier) {
+            return ((HeaderInputSupplier) input).getImageHeader();
+        }
+
+        return null;
+    }
+
+    private static void setBounds(BitmapFactory.Options options, ImageHeaderParser.Header header) {
+        options.outWidth = header.width;
+        options.outHeight = header.height;
+        options.outMimeType = header.mimeType;
+    }
+
+    /**
+     * Streams which can already be reset, like memory mapped files, are
+     * used as is
+     */
+    private static InputStream buffer(InputStream is) {
+        if (is.markSupported()) {
+            return is;
+        }
+
+        return new BufferedInputStream(is, BUFFER_SIZE);
+    }
+
+    private static InputStream reset(InputSupplier input, InputStream is) throws IOException {
+        try {
+            is.reset();
+
+            return is;
+        } catch (IOException e) {
+            // We read past the mark, start over
+            is.close();
+
+            return buffer(input.getInput());
+        }
+    }
+
+    /**
+     * Returns null if the pooled bitmap turned out to be unusable, in which
+     * case the stream has been consumed and has to be opened again.
+     */
+    @TargetApi(11)
+    private static Bitmap decodeReusing(InputStream is, BitmapFactory.Options options, BitmapPool pool) throws IOException {
+        Bitmap inBitmap = getReusableBitmap(options, pool);
+
+        // Decode as mutable so the result can be pooled later on
+        options.inMutable = true;
+        options.inBitmap = inBitmap;
+
+        try {
+            Bitmap b = BitmapFactory.decodeStream(is, null, options);
+            if (b == null) {
+                throw new IOException("Failed to create bitmap, decodeStream() returned null");
+            }
+
+            return b;
+        } catch (IllegalArgumentException e) {
+            if (inBitmap == null) {
+                throw e;
+            }
+
+            // The decoder refused the bitmap, it can still be used for other images
+            options.inBitmap = null;
+            pool.put(inBitmap);
+
+            return null;
+        }
+    }
+
+    private static Bitmap getReusableBitmap(BitmapFactory.Options options, BitmapPool pool) {
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = Math.max(1, options.inSampleSize);
+
+        // Before KitKat the sizes had to match exactly and only
+        // jpeg and png images could be decoded into existing bitmaps
+        if (!Android.isAPI(19)) {
+            String mimeType = options.outMimeType;
+            if (sampleSize != 1 || !("image/jpeg".equals(mimeType) || "image/png".equals(mimeType))) {
+                return null;
+            }
+        }
+
+        // Round up, the pool hands out any bitmap large enough on KitKat
+        // and above so the decoded image has to fit whichever way it rounds
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+
+        Bitmap.Config config = options.inPreferredConfig;
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+
+        return pool.get(width, height, config);
+    }
+
+    /**
+     * Hides the mark support of a stream, otherwise {@link BitmapFactory}
+     * would move the mark we set ourselves.
+     */
+    private static class UnmarkableInputStream extends FilterInputStream {
+        public UnmarkableInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void mark(int readlimit) {}
+
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+
+        @Override
+        public void close() {
+            // The underlying stream is closed by its owner
+        }
+    }
+
     private BitmapUtils() {}
 }
@@ -0,0 +1,472 @@
+package com.webimageloader.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread safe LRU cache with the same semantics as {@link LruCache} but
+ * where {@link #get} never blocks.
+ * <p>
+ * Lookups go straight to a {@link ConcurrentHashMap} and only record the
+ * access in a small lossy ring buffer. The buffer is drained, and the recency
+ * order updated, by whichever thread holds the eviction lock next, which is
+ * either a writer or a reader that manages to grab it without waiting. Under
+ * heavy load some accesses may be dropped which makes the order approximate,
+ * this is fine for a cache.
+ */
+public class ConcurrentLruCache<K, V> {
+    private static final int READ_BUFFER_SIZE = 64;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+    private final ConcurrentHashMap<K, Node<K, V>> map;
+
+    private final ReentrantLock evictionLock;
+
+    // Sentinel of the access ordered list, head.next is the eldest entry.
+    // The list and the fields below are guarded by evictionLock.
+    private final Node<K, V> head;
+    private int size;
+    private int maxSize;
+
+    private final AtomicReferenceArray<Node<K, V>> readBuffer;
+    private final AtomicInteger readBufferWriteCount;
+    private volatile int readBufferReadCount;
+
+    private final AtomicInteger hitCount;
+    private final AtomicInteger missCount;
+    private volatile int putCount;
+    private volatile int evictionCount;
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     */
+    public ConcurrentLruCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+
+        map = new ConcurrentHashMap<K, Node<K, V>>();
+        evictionLock = new ReentrantLock();
+
+        head = new Node<K, V>(null, null, 0);
+        head.prev = head;
+        head.next = head;
+
+        readBuffer = new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+        readBufferWriteCount = new AtomicInteger();
+
+        hitCount = new AtomicInteger();
+        missCount = new AtomicInteger();
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache. The access
+     * is recorded and the entry will be moved to the head of the queue at a
+     * later point. This returns null if a value is not cached.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        Node<K, V> node = map.get(key);
+        if (node == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        recordRead(node);
+
+        return node.value;
+    }
+
+    /**
+     * Returns true if there is a value for {@code key}, without counting it as
+     * an access.
+     */
+    public final boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache, without
+     * counting it as an access.
+     */
+    public final V peek(K key) {
+        Node<K, V> node = map.get(key);
+
+        return node != null ? node.value : null;
+    }
+
+    /**
+     * Caches {@code value} for {@code key}. The value is moved to the head of
+     * the queue.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        Node<K, V> node = new Node<K, V>(key, value, safeSizeOf(key, value));
+        Node<K, V> previous = map.put(key, node);
+
+        List<Node<K, V>> evicted;
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+
+            putCount++;
+            if (previous != null) {
+                unlink(previous);
+            }
+
+            // A concurrent put or remove of the same key might already have
+            // replaced this node, in that case it should not be linked
+            Node<K, V> candidate = null;
+            if (map.get(key) == node) {
+                link(node);
+
+                // Replacing a value doesn't need to go through admission
+                if (previous == null) {
+                    candidate = node;
+                }
+            }
+
+            evicted = evict(maxSize, candidate);
+        } finally {
+            evictionLock.unlock();
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, value);
+        }
+        notifyEvicted(evicted);
+
+        return previous != null ? previous.value : null;
+    }
+
+    /**
+     * @param maxSize the maximum size of the cache before returning. May be -1
+     *     to evict even 0-sized elements.
+     */
+    public void trimToSize(int maxSize) {
+        List<Node<K, V>> evicted;
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            evicted = evict(maxSize, null);
+        } finally {
+            evictionLock.unlock();
+        }
+
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        Node<K, V> previous = map.remove(key);
+        if (previous == null) {
+            return null;
+        }
+
+        evictionLock.lock();
+        try {
+            unlink(previous);
+        } finally {
+            evictionLock.unlock();
+        }
+
+        entryRemoved(false, key, previous.value, null);
+
+        return previous.value;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is
+     * invoked when a value is evicted to make space, removed by a call to
+     * {@link #remove}, or replaced by a call to {@link #put}. The default
+     * implementation does nothing.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * @param evicted true if the entry is being removed to make space, false
+     *     if the removal was caused by a {@link #put} or {@link #remove}.
+     * @param newValue the new value for {@code key}, if it exists. If non-null,
+     *     this removal was caused by a {@link #put}. Otherwise it was caused by
+     *     an eviction or a {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+    /**
+     * Called when {@code candidateKey} was just added and {@code victimKey}
+     * is about to be evicted to make room for it. Returning false evicts the
+     * candidate instead, this can be used to implement an admission policy.
+     * The default implementation always admits the candidate.
+     *
+     * <p>The method is called while holding the eviction lock and should return
+     * quickly.
+     */
+    protected boolean admit(K candidateKey, K victimKey) {
+        return true;
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units.  The default implementation returns 1 so that size
+     * is the number of entries and max size is the maximum number of entries.
+     *
+     * <p>An entry's size must not change while it is in the cache.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number
+     * of entries in the cache. For all other caches, this returns the sum of
+     * the sizes of the entries in this cache.
+     */
+    public final int size() {
+        evictionLock.lock();
+        try {
+            return size;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum
+     * number of entries in the cache. For all other caches, this returns the
+     * maximum sum of the sizes of the entries in this cache.
+     */
+    public final int maxSize() {
+        evictionLock.lock();
+        try {
+            return maxSize;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value.
+     */
+    public final int hitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null.
+     */
+    public final int missCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public final int putCount() {
+        return putCount;
+    }
+
+    /**
+     * Returns the number of values that have been evicted.
+     */
+    public final int evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache, ordered from least
+     * recently accessed to most recently accessed.
+     */
+    public final Map<K, V> snapshot() {
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+
+            LinkedHashMap<K, V> copy = new LinkedHashMap<K, V>();
+            for (Node<K, V> node = head.next; node != head; node = node.next) {
+                copy.put(node.key, node.value);
+            }
+
+            return copy;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override public final String toString() {
+        int hits = hitCount.get();
+        int accesses = hits + missCount.get();
+        int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format("ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                maxSize(), hits, accesses - hits, hitPercent);
+    }
+
+    private void recordRead(Node<K, V> node) {
+        int index = readBufferWriteCount.getAndIncrement();
+        readBuffer.lazySet(index & READ_BUFFER_MASK, node);
+
+        int pending = index + 1 - readBufferReadCount;
+        if (pending >= READ_BUFFER_DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    // Must hold evictionLock
+    private void drainReadBuffer() {
+        int writeCount = readBufferWriteCount.get();
+        int readCount = readBufferReadCount;
+
+        // Readers might have lapped us, in that case only the
+        // last READ_BUFFER_SIZE accesses are still around
+        if (writeCount - readCount > READ_BUFFER_SIZE) {
+            readCount = writeCount - READ_BUFFER_SIZE;
+        }
+
+        for (; readCount != writeCount; readCount++) {
+            Node<K, V> node = readBuffer.getAndSet(readCount & READ_BUFFER_MASK, null);
+
+            // The node might have been removed since it was read
+            if (node != null && node.isLinked()) {
+                unlink(node);
+                link(node);
+            }
+        }
+
+        readBufferReadCount = writeCount;
+    }
+
+    // Must hold evictionLock, the candidate is the newly added node if it may be rejected
+    private List<Node<K, V>> evict(int maxSize, Node<K, V> candidate) {
+        if (size < 0) {
+            throw new IllegalStateException(getClass().getName()
+                    + ".sizeOf() is reporting inconsistent results!");
+        }
+
+        List<Node<K, V>> evicted = null;
+        while (size > maxSize && head.next != head) {
+            Node<K, V> victim = head.next;
+
+            if (candidate != null && victim != candidate && !admit(candidate.key, victim.key)) {
+                victim = candidate;
+            }
+
+            // A candidate only gets one chance
+            candidate = null;
+
+            unlink(victim);
+
+            // Only count it if it wasn't replaced while we were waiting for the lock,
+            // the thread replacing it will take care of notifying about the removal
+            if (map.remove(victim.key, victim)) {
+                evictionCount++;
+
+                if (evicted == null) {
+                    evicted = new ArrayList<Node<K, V>>();
+                }
+                evicted.add(victim);
+            }
+        }
+
+        return evicted;
+    }
+
+    private void notifyEvicted(List<Node<K, V>> evicted) {
+        if (evicted == null) {
+            return;
+        }
+
+        for (Node<K, V> node : evicted) {
+            entryRemoved(true, node.key, node.value, null);
+        }
+    }
+
+    // Must hold evictionLock, links the node as the most recently used
+    private void link(Node<K, V> node) {
+        Node<K, V> last = head.prev;
+        node.prev = last;
+        node.next = head;
+        last.next = node;
+        head.prev = node;
+
+        size += node.size;
+    }
+
+    // Must hold evictionLock, does nothing if the node isn't linked
+    private void unlink(Node<K, V> node) {
+        if (!node.isLinked()) {
+            return;
+        }
+
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+
+        size -= node.size;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int size;
+
+        // Guarded by evictionLock
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+
+        boolean isLinked() {
+            return prev != null;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.webimageloader.util;
+
+/**
+ * Approximate access frequency of keys, using a count-min sketch with 4-bit
+ * counters as described in the TinyLFU paper. Counters are halved once the
+ * number of recorded accesses reaches the sample size, so old popularity
+ * fades away.
+ * <p>
+ * This class is intentionally not synchronized, concurrent increments might
+ * be lost which only makes the estimate slightly less accurate.
+ */
+public class FrequencySketch {
+    private static final int[] SEEDS = { 0x97cb3127, 0xb492b66f, 0x9ae16a3b, 0xc2b2ae35 };
+
+    // Each int holds eight 4-bit counters
+    private static final int RESET_MASK = 0x77777777;
+    private static final int MAX_COUNT = 15;
+
+    private final int[] table;
+    private final int tableMask;
+    private final int sampleSize;
+
+    private int additions;
+
+    /**
+     * @param sampleSize number of accesses after which all frequencies are halved
+     */
+    public FrequencySketch(int sampleSize) {
+        if (sampleSize <= 0) {
+            throw new IllegalArgumentException("sampleSize <= 0");
+        }
+
+        this.sampleSize = sampleSize;
+
+        // Roughly two counters per sampled access
+        int length = ceilingPowerOfTwo(Math.max(sampleSize / 4, 16));
+        table = new int[length];
+        tableMask = length - 1;
+    }
+
+    /**
+     * Returns the estimated number of times {@code key} has been seen, at most 15.
+     */
+    public int frequency(Object key) {
+        int hash = spread(key.hashCode());
+
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int h = rehash(hash, i);
+            int index = (h >>> 3) & tableMask;
+            int shift = (h & 7) << 2;
+
+            int count = (table[index] >>> shift) & 0xf;
+            frequency = Math.min(frequency, count);
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Record an access of {@code key}.
+     */
+    public void increment(Object key) {
+        int hash = spread(key.hashCode());
+
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int h = rehash(hash, i);
+            int index = (h >>> 3) & tableMask;
+            int shift = (h & 7) << 2;
+
+            int value = table[index];
+            if (((value >>> shift) & 0xf) < MAX_COUNT) {
+                table[index] = value + (1 << shift);
+                added = true;
+            }
+        }
+
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+
+        additions /= 2;
+    }
+
+    private static int rehash(int hash, int i) {
+        int h = (hash + SEEDS[i]) * SEEDS[i];
+        return h + (h >>> 16);
+    }
+
+    private static int spread(int h) {
+        // Same supplemental hash as HashMap, protects against poor hash codes
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    private static int ceilingPowerOfTwo(int x) {
+        return 1 << (32 - Integer.numberOfLeadingZeros(x - 1));
+    }
+}
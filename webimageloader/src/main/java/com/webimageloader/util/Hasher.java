@@ -1,19 +1,55 @@
 package com.webimageloader.util;
 
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+/**
+ * Changes strings (like URLs) into hashes suitable for using as disk
+ * filenames. Safe to use from several threads at once, each thread keeps its
+ * own digest and buffers so hashing doesn't allocate more than the result.
+ */
 public class Hasher {
     private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
 
-    private MessageDigest digester;
+    private static final int SHA1_LENGTH = 20;
+    private static final int MURMUR3_LENGTH = 16;
 
-    public Hasher() {
-        try {
-            digester = MessageDigest.getInstance("SHA-1");
-        } catch (NoSuchAlgorithmException e) {
-            digester = null;
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    public enum Algorithm {
+        /**
+         * SHA-1, 160 bits. The default, keeps the keys of existing caches.
+         */
+        SHA1,
+
+        /**
+         * 128-bit MurmurHash3 (x64 variant), much cheaper than SHA-1 and
+         * stable across platforms, but not cryptographic.
+         */
+        MURMUR3_128
+    }
+
+    private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
         }
+    };
+
+    private final Algorithm algorithm;
+
+    public Hasher() {
+        this(Algorithm.SHA1);
+    }
+
+    public Hasher(Algorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
     }
 
     /**
@@ -21,23 +57,205 @@ public class Hasher {
      * for using as a disk filename.
      */
     public String hash(String key) {
-        if (digester != null) {
-            byte[] bytes = digester.digest(key.getBytes());
-            return bytesToHexString(bytes);
+        State state = STATE.get();
+        int length = state.encode(key);
+
+        if (algorithm == Algorithm.SHA1 && state.sha1 != null) {
+            MessageDigest digest = state.sha1;
+            digest.update(state.input, 0, length);
+
+            try {
+                digest.digest(state.output, 0, SHA1_LENGTH);
+            } catch (DigestException e) {
+                // Can't happen, the output always fits
+                throw new IllegalStateException(e);
+            }
+
+            return state.toHex(SHA1_LENGTH);
         } else {
-            return Integer.toHexString(key.hashCode());
+            // Also used if SHA-1 isn't available, it's much less prone to
+            // collisions than String.hashCode()
+            murmur3(state.input, length, state.output);
+
+            return state.toHex(MURMUR3_LENGTH);
         }
     }
 
-    private static String bytesToHexString(byte[] bytes) {
-        // http://stackoverflow.com/a/5446120/253583
-        char[] buf = new char[bytes.length * 2];
-        int c = 0;
-        for (byte b : bytes) {
-            buf[c++] = HEX_CHARS[(b & 0xF0) >> 4];
-            buf[c++] = HEX_CHARS[b & 0x0F];
+    /**
+     * MurmurHash3 x64 128-bit with seed 0, written little endian to the
+     * first 16 bytes of {@code out}
+     */
+    private static void murmur3(byte[] data, int length, byte[] out) {
+        long h1 = 0;
+        long h2 = 0;
+
+        int blocks = length / 16;
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLong(data, i * 16);
+            long k2 = getLong(data, i * 16 + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = blocks * 16;
+        long k1 = 0;
+        long k2 = 0;
+
+        switch (length & 15) {
+            case 15: k2 ^= (long) (data[tail + 14] & 0xff) << 48; // fall through
+            case 14: k2 ^= (long) (data[tail + 13] & 0xff) << 40; // fall through
+            case 13: k2 ^= (long) (data[tail + 12] & 0xff) << 32; // fall through
+            case 12: k2 ^= (long) (data[tail + 11] & 0xff) << 24; // fall through
+            case 11: k2 ^= (long) (data[tail + 10] & 0xff) << 16; // fall through
+            case 10: k2 ^= (long) (data[tail + 9] & 0xff) << 8; // fall through
+            case 9: k2 ^= (long) (data[tail + 8] & 0xff);
+                h2 ^= mixK2(k2); // fall through
+            case 8: k1 ^= (long) (data[tail + 7] & 0xff) << 56; // fall through
+            case 7: k1 ^= (long) (data[tail + 6] & 0xff) << 48; // fall through
+            case 6: k1 ^= (long) (data[tail + 5] & 0xff) << 40; // fall through
+            case 5: k1 ^= (long) (data[tail + 4] & 0xff) << 32; // fall through
+            case 4: k1 ^= (long) (data[tail + 3] & 0xff) << 24; // fall through
+            case 3: k1 ^= (long) (data[tail + 2] & 0xff) << 16; // fall through
+            case 2: k1 ^= (long) (data[tail + 1] & 0xff) << 8; // fall through
+            case 1: k1 ^= (long) (data[tail] & 0xff);
+                h1 ^= mixK1(k1);
         }
 
-        return new String(buf);
+        h1 ^= length;
+        h2 ^= length;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        putLong(out, 0, h1);
+        putLong(out, 8, h2);
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+
+        return k;
+    }
+
+    private static long getLong(byte[] b, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = value << 8 | (b[offset + i] & 0xff);
+        }
+
+        return value;
+    }
+
+    private static void putLong(byte[] b, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            b[offset + i] = (byte) (value >>> (i * 8));
+        }
+    }
+
+    /**
+     * Buffers owned by a single thread
+     */
+    private static class State {
+        final MessageDigest sha1;
+        final byte[] output = new byte[SHA1_LENGTH];
+        final char[] hex = new char[SHA1_LENGTH * 2];
+        byte[] input = new byte[256];
+
+        State() {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                digest = null;
+            }
+
+            sha1 = digest;
+        }
+
+        /**
+         * Encode the key as UTF-8 into the input buffer, the same bytes as
+         * {@link String#getBytes()} gives on Android
+         *
+         * @return number of bytes
+         */
+        int encode(String s) {
+            int length = s.length();
+            if (input.length < length * 3) {
+                input = new byte[length * 3];
+            }
+
+            byte[] b = input;
+            int n = 0;
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+
+                if (c < 0x80) {
+                    b[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    b[n++] = (byte) (0xc0 | c >> 6);
+                    b[n++] = (byte) (0x80 | c & 0x3f);
+                } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                        b[n++] = (byte) (0xf0 | codePoint >> 18);
+                        b[n++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                        b[n++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                        b[n++] = (byte) (0x80 | codePoint & 0x3f);
+                    } else {
+                        // Malformed, replaced like the platform encoder does
+                        b[n++] = '?';
+                    }
+                } else {
+                    b[n++] = (byte) (0xe0 | c >> 12);
+                    b[n++] = (byte) (0x80 | c >> 6 & 0x3f);
+                    b[n++] = (byte) (0x80 | c & 0x3f);
+                }
+            }
+
+            return n;
+        }
+
+        String toHex(int length) {
+            // http://stackoverflow.com/a/5446120/253583
+            char[] buf = hex;
+            int c = 0;
+            for (int i = 0; i < length; i++) {
+                byte b = output[i];
+                buf[c++] = HEX_CHARS[(b & 0xF0) >> 4];
+                buf[c++] = HEX_CHARS[b & 0x0F];
+            }
+
+            return new String(buf, 0, c);
+        }
     }
 }
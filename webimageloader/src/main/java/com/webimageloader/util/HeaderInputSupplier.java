@@ -0,0 +1,14 @@
+package com.webimageloader.util;
+
+/**
+ * An {@link InputSupplier} which already knows the header of the image it
+ * supplies, so it doesn't have to be parsed again before decoding
+ */
+public interface HeaderInputSupplier extends InputSupplier {
+    /**
+     * Get the header of the supplied image
+     *
+     * @return the header, or null if it isn't known
+     */
+    ImageHeaderParser.Header getImageHeader();
+}
@@ -1,40 +1,197 @@
 package com.webimageloader.util;
 
 import java.net.URLConnection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 public class HeaderParser {
-    private static final String MAX_AGE = "max-age";
+    private static final String CACHE_CONTROL = "Cache-Control";
 
+    // Larger values are cut down to this, see RFC 7234 section 1.2.1
+    private static final long MAX_SECONDS = Integer.MAX_VALUE;
+
+    /**
+     * The Cache-Control directives we care about as a private cache, see
+     * RFC 7234 and RFC 8246. Directives for shared caches like s-maxage are
+     * ignored.
+     */
+    public static class CacheControl {
+        /**
+         * Value of a directive which wasn't present
+         */
+        public static final long NOT_SET = -1;
+
+        private static final CacheControl EMPTY = new CacheControl(NOT_SET, NOT_SET, false, false, false, false);
+
+        /**
+         * max-age in seconds, at most {@link Integer#MAX_VALUE}
+         */
+        public final long maxAge;
+
+        /**
+         * stale-while-revalidate in seconds, at most {@link Integer#MAX_VALUE}
+         */
+        public final long staleWhileRevalidate;
+
+        public final boolean noCache;
+        public final boolean noStore;
+        public final boolean mustRevalidate;
+        public final boolean immutable;
+
+        private CacheControl(long maxAge, long staleWhileRevalidate, boolean noCache, boolean noStore,
+                boolean mustRevalidate, boolean immutable) {
+            this.maxAge = maxAge;
+            this.staleWhileRevalidate = staleWhileRevalidate;
+            this.noCache = noCache;
+            this.noStore = noStore;
+            this.mustRevalidate = mustRevalidate;
+            this.immutable = immutable;
+        }
+    }
+
+    /**
+     * Get the max-age of a response
+     *
+     * @param urlConnection the connection
+     * @return max-age in seconds, or -1 if not set
+     */
     public static long getMaxAge(URLConnection urlConnection) {
-        String cacheControl = urlConnection.getHeaderField("Cache-Control");
-        if (cacheControl == null) {
-            return -1;
+        return getCacheControl(urlConnection).maxAge;
+    }
+
+    /**
+     * Parse all Cache-Control headers of a response
+     *
+     * @param urlConnection the connection
+     * @return the directives, never null
+     */
+    public static CacheControl getCacheControl(URLConnection urlConnection) {
+        Map<String, List<String>> headers = urlConnection.getHeaderFields();
+        if (headers == null) {
+            return CacheControl.EMPTY;
+        }
+
+        // Header names aren't case sensitive and a response may have several
+        StringBuilder value = null;
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (!CACHE_CONTROL.equalsIgnoreCase(header.getKey())) {
+                continue;
+            }
+
+            for (String v : header.getValue()) {
+                if (value == null) {
+                    value = new StringBuilder(v);
+                } else {
+                    value.append(',').append(v);
+                }
+            }
         }
 
-        int pos = cacheControl.indexOf(MAX_AGE);
-        if (pos == -1) {
-            return -1;
+        return parseCacheControl(value != null ? value.toString() : null);
+    }
+
+    /**
+     * Parse the value of a Cache-Control header
+     *
+     * @param cacheControl the header value, may be null
+     * @return the directives, never null
+     */
+    public static CacheControl parseCacheControl(String cacheControl) {
+        if (cacheControl == null) {
+            return CacheControl.EMPTY;
         }
 
-        pos += MAX_AGE.length();
-        pos = skipWhitespace(cacheControl, pos);
+        long maxAge = CacheControl.NOT_SET;
+        long staleWhileRevalidate = CacheControl.NOT_SET;
+        boolean noCache = false;
+        boolean noStore = false;
+        boolean mustRevalidate = false;
+        boolean immutable = false;
+
+        int pos = 0;
+        int length = cacheControl.length();
+        while (pos < length) {
+            pos = skipWhitespace(cacheControl, pos);
 
-        // Consume '='
-        pos++;
+            int start = pos;
+            pos = skipUntil(cacheControl, pos, "=,");
+            String name = cacheControl.substring(start, pos).trim().toLowerCase(Locale.US);
 
-        pos = skipWhitespace(cacheControl, pos);
+            String value = null;
+            if (pos < length && cacheControl.charAt(pos) == '=') {
+                // Consume '='
+                pos++;
+                pos = skipWhitespace(cacheControl, pos);
 
-        int start = pos;
-        pos = skipUntil(cacheControl, pos, ",");
-        String value = cacheControl.substring(start, pos).trim();
+                if (pos < length && cacheControl.charAt(pos) == '"') {
+                    // Quoted string, which may contain commas
+                    pos++;
+                    start = pos;
+                    pos = skipUntil(cacheControl, pos, "\"");
+                    value = cacheControl.substring(start, pos);
+
+                    // Consume '"' and anything up to the next directive
+                    pos = skipUntil(cacheControl, pos + 1, ",");
+                } else {
+                    start = pos;
+                    pos = skipUntil(cacheControl, pos, ",");
+                    value = cacheControl.substring(start, pos).trim();
+                }
+            }
+
+            // Consume ','
+            pos++;
+
+            if ("max-age".equals(name)) {
+                maxAge = parseSeconds(value);
+            } else if ("stale-while-revalidate".equals(name)) {
+                staleWhileRevalidate = parseSeconds(value);
+            } else if ("no-cache".equals(name)) {
+                // With field names only those headers can't be reused, the
+                // image itself still can
+                noCache |= value == null;
+            } else if ("no-store".equals(name)) {
+                noStore = true;
+            } else if ("must-revalidate".equals(name)) {
+                mustRevalidate = true;
+            } else if ("immutable".equals(name)) {
+                immutable = true;
+            }
+        }
+
+        return new CacheControl(maxAge, staleWhileRevalidate, noCache, noStore, mustRevalidate, immutable);
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null) {
+            return CacheControl.NOT_SET;
+        }
 
         try {
-            return Long.parseLong(value);
+            long seconds = Long.parseLong(value);
+            return seconds < 0 ? CacheControl.NOT_SET : Math.min(seconds, MAX_SECONDS);
         } catch (NumberFormatException e) {
-            return -1;
+            // Even too large for a long it's still a valid number
+            return isDigits(value) ? MAX_SECONDS : CacheControl.NOT_SET;
         }
     }
 
+    private static boolean isDigits(String value) {
+        if (value.length() == 0) {
+            return false;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     /**
      * Returns the next index in {@code input} at or after {@code pos} that
      * contains a character from {@code characters}. Returns the input length if
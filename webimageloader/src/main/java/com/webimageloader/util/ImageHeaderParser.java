@@ -0,0 +1,436 @@
+package com.webimageloader.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the format, dimensions, EXIF orientation and progressive/animated
+ * flags of PNG, JPEG, GIF and WebP images from the first bytes of the
+ * image, without decoding it.
+ */
+public class ImageHeaderParser {
+    /**
+     * Orientation used when the image has no EXIF orientation, same as
+     * ExifInterface.ORIENTATION_UNDEFINED
+     */
+    public static final int ORIENTATION_UNDEFINED = 0;
+
+    private static final int PNG_SIGNATURE_1 = 0x89504e47;
+    private static final int PNG_SIGNATURE_2 = 0x0d0a1a0a;
+    private static final int PNG_IHDR = 0x49484452;
+    private static final int PNG_IDAT = 0x49444154;
+    private static final int PNG_ACTL = 0x6163544c;
+
+    private static final int GIF_SIGNATURE = 0x474946;
+    private static final int GIF_EXTENSION = 0x21;
+    private static final int GIF_APPLICATION = 0xff;
+    private static final int GIF_IMAGE = 0x2c;
+    private static final byte[] GIF_NETSCAPE = { 'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0' };
+
+    private static final int RIFF = 0x52494646;
+    private static final int WEBP = 0x57454250;
+    private static final int WEBP_VP8 = 0x56503820;
+    private static final int WEBP_VP8L = 0x5650384c;
+    private static final int WEBP_VP8X = 0x56503858;
+    private static final int WEBP_ANIMATION_FLAG = 0x02;
+
+    private static final int JPEG_SOI = 0xffd8;
+    private static final int JPEG_SOS = 0xda;
+    private static final int JPEG_EOI = 0xd9;
+    private static final int JPEG_APP1 = 0xe1;
+    private static final int JPEG_EXIF = 0x45786966;
+
+    private static final int TIFF_LITTLE_ENDIAN = 0x4949;
+    private static final int TIFF_BIG_ENDIAN = 0x4d4d;
+    private static final int TIFF_ORIENTATION = 0x0112;
+
+    public static class Header {
+        public final String mimeType;
+        public final int width;
+        public final int height;
+        public final int orientation;
+        public final boolean progressive;
+        public final boolean animated;
+
+        public Header(String mimeType, int width, int height, int orientation, boolean progressive, boolean animated) {
+            this.mimeType = mimeType;
+            this.width = width;
+            this.height = height;
+            this.orientation = orientation;
+            this.progressive = progressive;
+            this.animated = animated;
+        }
+    }
+
+    /**
+     * Parse the header of an image, the stream will be left somewhere
+     * after the header.
+     *
+     * @param is the image
+     * @return the header, or null if the format isn't supported or the
+     *     header is broken
+     * @throws IOException if reading the stream failed
+     */
+    public static Header parse(InputStream is) throws IOException {
+        return parse(is, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Parse the header of an image, reading at most {@code limit} bytes. Useful
+     * to make sure a marked stream can be reset afterwards.
+     *
+     * @param is the image
+     * @param limit max number of bytes to read
+     * @return the header, or null if the format isn't supported or the
+     *     header is broken or larger than the limit
+     * @throws IOException if reading the stream failed
+     */
+    public static Header parse(InputStream is, int limit) throws IOException {
+        ImageHeaderParser parser = new ImageHeaderParser(is, limit);
+
+        try {
+            parser.parse();
+        } catch (EOFException e) {
+            // Use what we got, the optional parts come after the dimensions
+        }
+
+        return parser.createHeader();
+    }
+
+    private final InputStream is;
+    private final int limit;
+    private int position;
+
+    private String mimeType;
+    private int width;
+    private int height;
+    private int orientation = ORIENTATION_UNDEFINED;
+    private boolean progressive;
+    private boolean animated;
+
+    private ImageHeaderParser(InputStream is, int limit) {
+        this.is = is;
+        this.limit = limit;
+    }
+
+    private Header createHeader() {
+        if (mimeType == null || width <= 0 || height <= 0) {
+            return null;
+        }
+
+        return new Header(mimeType, width, height, orientation, progressive, animated);
+    }
+
+    private void parse() throws IOException {
+        int magic = readUInt16(false);
+
+        if (magic == JPEG_SOI) {
+            parseJpeg();
+            return;
+        }
+
+        magic = magic << 16 | readUInt16(false);
+        if (magic == PNG_SIGNATURE_1) {
+            parsePng();
+        } else if (magic >>> 8 == GIF_SIGNATURE) {
+            parseGif();
+        } else if (magic == RIFF) {
+            parseWebp();
+        }
+    }
+
+    private void parsePng() throws IOException {
+        if (readInt32(false) != PNG_SIGNATURE_2) {
+            return;
+        }
+
+        // The IHDR chunk is always first
+        readInt32(false);
+        if (readInt32(false) != PNG_IHDR) {
+            return;
+        }
+
+        width = readInt32(false);
+        height = readInt32(false);
+        mimeType = "image/png";
+
+        // Bit depth, color type, compression and filter method
+        skip(4);
+        progressive = readByte() == 1;
+        // CRC
+        skip(4);
+
+        // An animated image has an acTL chunk before the image data
+        while (true) {
+            int length = readInt32(false);
+            int type = readInt32(false);
+
+            if (type == PNG_ACTL) {
+                animated = true;
+                return;
+            } else if (type == PNG_IDAT) {
+                return;
+            }
+
+            // Chunk data and CRC
+            skip(length + 4L);
+        }
+    }
+
+    private void parseGif() throws IOException {
+        // Rest of the version, "87a" or "89a"
+        skip(2);
+
+        width = readUInt16(true);
+        height = readUInt16(true);
+        mimeType = "image/gif";
+
+        int flags = readByte();
+        // Background color and aspect ratio
+        skip(2);
+        skipGifColorTable(flags);
+
+        // Animated images have a looping extension before the first image
+        while (true) {
+            int block = readByte();
+
+            if (block == GIF_EXTENSION) {
+                int label = readByte();
+                if (label == GIF_APPLICATION && readByte() == GIF_NETSCAPE.length && matches(GIF_NETSCAPE)) {
+                    animated = true;
+                }
+
+                skipGifSubBlocks();
+            } else if (block == GIF_IMAGE) {
+                // Position and size
+                skip(8);
+                progressive = (readByte() & 0x40) != 0;
+                return;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void skipGifColorTable(int flags) throws IOException {
+        if ((flags & 0x80) != 0) {
+            skip(3 * (2 << (flags & 0x07)));
+        }
+    }
+
+    private void skipGifSubBlocks() throws IOException {
+        int size;
+        while ((size = readByte()) != 0) {
+            skip(size);
+        }
+    }
+
+    private boolean matches(byte[] expected) throws IOException {
+        boolean matches = true;
+        for (byte b : expected) {
+            if (readByte() != b) {
+                matches = false;
+            }
+        }
+
+        return matches;
+    }
+
+    private void parseWebp() throws IOException {
+        // File size
+        skip(4);
+        if (readInt32(false) != WEBP) {
+            return;
+        }
+
+        int chunk = readInt32(false);
+        // Chunk size
+        skip(4);
+
+        switch (chunk) {
+            case WEBP_VP8:
+                // Frame tag and start code
+                skip(6);
+                width = readUInt16(true) & 0x3fff;
+                height = readUInt16(true) & 0x3fff;
+                break;
+            case WEBP_VP8L:
+                if (readByte() != 0x2f) {
+                    return;
+                }
+
+                // 14 bits each for width - 1 and height - 1
+                int bits = readInt32(true);
+                width = (bits & 0x3fff) + 1;
+                height = (bits >>> 14 & 0x3fff) + 1;
+                break;
+            case WEBP_VP8X:
+                animated = (readByte() & WEBP_ANIMATION_FLAG) != 0;
+                // Reserved
+                skip(3);
+                width = readUInt24LittleEndian() + 1;
+                height = readUInt24LittleEndian() + 1;
+                break;
+            default:
+                return;
+        }
+
+        mimeType = "image/webp";
+    }
+
+    private void parseJpeg() throws IOException {
+        while (true) {
+            if (readByte() != 0xff) {
+                return;
+            }
+
+            // Markers may be padded with any number of 0xff
+            int marker;
+            do {
+                marker = readByte();
+            } while (marker == 0xff);
+
+            if (marker == JPEG_SOS || marker == JPEG_EOI) {
+                // Image data starts without us having seen a frame
+                return;
+            }
+
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                // Standalone markers without a length
+                continue;
+            }
+
+            int length = readUInt16(false) - 2;
+            if (length < 0) {
+                return;
+            }
+
+            int end = position + length;
+
+            if (isStartOfFrame(marker)) {
+                // Sample precision
+                skip(1);
+
+                height = readUInt16(false);
+                width = readUInt16(false);
+                progressive = isProgressive(marker);
+                mimeType = "image/jpeg";
+                return;
+            } else if (marker == JPEG_APP1 && orientation == ORIENTATION_UNDEFINED) {
+                parseExif(end);
+            }
+
+            skip(end - position);
+        }
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0-SOF15, except DHT, JPG and DAC which share the range
+        return marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+    }
+
+    private static boolean isProgressive(int marker) {
+        return marker == 0xc2 || marker == 0xc6 || marker == 0xca || marker == 0xce;
+    }
+
+    /**
+     * Find the orientation in the first IFD of an APP1 segment, reading up to
+     * {@code end} at most
+     */
+    private void parseExif(int end) throws IOException {
+        if (end - position < 14 || readInt32(false) != JPEG_EXIF || readUInt16(false) != 0) {
+            return;
+        }
+
+        int tiffStart = position;
+
+        boolean littleEndian;
+        int byteOrder = readUInt16(false);
+        if (byteOrder == TIFF_LITTLE_ENDIAN) {
+            littleEndian = true;
+        } else if (byteOrder == TIFF_BIG_ENDIAN) {
+            littleEndian = false;
+        } else {
+            return;
+        }
+
+        // TIFF magic number
+        skip(2);
+
+        int offset = readInt32(littleEndian);
+        int ifdStart = tiffStart + offset;
+        if (offset < 0 || ifdStart < position || ifdStart + 2 > end) {
+            return;
+        }
+
+        skip(ifdStart - position);
+
+        int count = readUInt16(littleEndian);
+        for (int i = 0; i < count && position + 12 <= end; i++) {
+            int tag = readUInt16(littleEndian);
+            if (tag == TIFF_ORIENTATION) {
+                // Type and count, the value is a short stored in the first
+                // half of the value field
+                skip(6);
+                orientation = readUInt16(littleEndian);
+                return;
+            }
+
+            // Type, count and value
+            skip(10);
+        }
+    }
+
+    private int readByte() throws IOException {
+        if (position >= limit) {
+            throw new EOFException();
+        }
+
+        int b = is.read();
+        if (b == -1) {
+            throw new EOFException();
+        }
+
+        position++;
+
+        return b;
+    }
+
+    private int readUInt16(boolean littleEndian) throws IOException {
+        int b1 = readByte();
+        int b2 = readByte();
+
+        return littleEndian ? b2 << 8 | b1 : b1 << 8 | b2;
+    }
+
+    private int readUInt24LittleEndian() throws IOException {
+        return readByte() | readByte() << 8 | readByte() << 16;
+    }
+
+    private int readInt32(boolean littleEndian) throws IOException {
+        int s1 = readUInt16(littleEndian);
+        int s2 = readUInt16(littleEndian);
+
+        return littleEndian ? s2 << 16 | s1 : s1 << 16 | s2;
+    }
+
+    private void skip(long count) throws IOException {
+        if (count > limit - position) {
+            throw new EOFException();
+        }
+
+        while (count > 0) {
+            long skipped = is.skip(count);
+            if (skipped <= 0) {
+                // Some streams refuse to skip before reaching the end
+                readByte();
+                skipped = 1;
+            } else {
+                position += skipped;
+            }
+
+            count -= skipped;
+        }
+    }
+}
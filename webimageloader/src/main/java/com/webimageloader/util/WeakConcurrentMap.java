@@ -0,0 +1,94 @@
+package com.webimageloader.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A thread safe map with weak keys, like a concurrent {@link java.util.WeakHashMap}.
+ * Entries whose keys have been GC'd are purged on writes.
+ */
+public class WeakConcurrentMap<K, V> {
+    private final ConcurrentHashMap<WeakKey<K>, V> map;
+    private final ReferenceQueue<K> queue;
+
+    public WeakConcurrentMap() {
+        map = new ConcurrentHashMap<WeakKey<K>, V>();
+        queue = new ReferenceQueue<K>();
+    }
+
+    public V get(K key) {
+        return map.get(new WeakKey<K>(key, null));
+    }
+
+    public V put(K key, V value) {
+        purge();
+
+        return map.put(new WeakKey<K>(key, queue), value);
+    }
+
+    public V remove(K key) {
+        purge();
+
+        return map.remove(new WeakKey<K>(key, null));
+    }
+
+    /**
+     * Remove the entry for {@code key} only if it's currently mapped to {@code value}
+     *
+     * @return true if the entry was removed
+     */
+    public boolean remove(K key, V value) {
+        purge();
+
+        return map.remove(new WeakKey<K>(key, null), value);
+    }
+
+    public int size() {
+        purge();
+
+        return map.size();
+    }
+
+    private void purge() {
+        Reference<? extends K> reference;
+        while ((reference = queue.poll()) != null) {
+            map.remove(reference);
+        }
+    }
+
+    private static class WeakKey<K> extends WeakReference<K> {
+        // Keep the hash code around so cleared keys can still be found
+        private final int hashCode;
+
+        public WeakKey(K key, ReferenceQueue<K> queue) {
+            super(key, queue);
+
+            if (key == null) {
+                throw new NullPointerException("key == null");
+            }
+
+            hashCode = key.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (obj instanceof WeakKey) {
+                Object key = get();
+                return key != null && key.equals(((WeakKey<?>) obj).get());
+            } else {
+                return false;
+            }
+        }
+    }
+}